@@ -0,0 +1,108 @@
+package org.idev.tools.hms.benchmarks;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonObject.Member;
+import com.eclipsesource.json.JsonValue;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compare JMH results, as written with "-rf json", with a baseline
+ * <p/>
+ * Usage: CompareBaseline baseline.json results.json [tolerance]
+ * <p/>
+ * Prints every benchmark of the results next to its baseline, and exits with status 1 if any got
+ * slower, or allocates more per operation, by more than the tolerance, 0.2 (20%) by default.
+ * Benchmarks missing from either side are listed but don't fail the comparison.
+ */
+public class CompareBaseline {
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareBaseline baseline.json results.json [tolerance]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.2;
+        Map<String, JsonObject> baseline = read(args[0]);
+        Map<String, JsonObject> results = read(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, JsonObject> each : results.entrySet()) {
+            JsonObject before = baseline.get(each.getKey());
+            if (null == before) {
+                System.out.println(String.format("%-60s new", each.getKey()));
+                continue;
+            }
+            JsonObject after = each.getValue();
+            double time = change(score(before.get("primaryMetric")), score(after.get("primaryMetric")));
+            double allocation = change(score(secondary(before, ALLOCATION)), score(secondary(after, ALLOCATION)));
+            boolean regressed = time > tolerance || allocation > tolerance;
+            System.out.println(String.format("%-60s time %+7.1f%%  alloc %+7.1f%%%s",
+                each.getKey(), 100 * time, 100 * allocation, regressed ? "  REGRESSION" : ""));
+            if (regressed) {
+                regressions++;
+            }
+        }
+        for (String name : baseline.keySet()) {
+            if (!results.containsKey(name)) {
+                System.out.println(String.format("%-60s missing", name));
+            }
+        }
+
+        System.out.println(regressions + " regression(s) beyond " + Math.round(100 * tolerance) + "%");
+        System.exit(0 == regressions ? 0 : 1);
+    }
+
+    /**
+     * The results of a file, by benchmark name and parameters
+     */
+    private static Map<String, JsonObject> read(String file) throws IOException {
+        Map<String, JsonObject> results = new LinkedHashMap<String, JsonObject>();
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            for (JsonValue value : JsonValue.readFrom(reader).asArray()) {
+                JsonObject result = value.asObject();
+                String benchmark = result.get("benchmark").asString();
+                StringBuilder name = new StringBuilder(benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1));
+                JsonValue params = result.get("params");
+                if (null != params) {
+                    String separator = " {";
+                    for (Member param : params.asObject()) {
+                        name.append(separator).append(param.getName()).append('=').append(param.getValue().asString());
+                        separator = ", ";
+                    }
+                    name.append('}');
+                }
+                results.put(name.toString(), result);
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    private static JsonValue secondary(JsonObject result, String name) {
+        JsonValue metrics = result.get("secondaryMetrics");
+        return null == metrics ? null : metrics.asObject().get(name);
+    }
+
+    private static double score(JsonValue metric) {
+        return null == metric ? Double.NaN : metric.asObject().get("score").asDouble();
+    }
+
+    /**
+     * Relative change from before to after, 0 if either is unknown
+     */
+    private static double change(double before, double after) {
+        if (Double.isNaN(before) || Double.isNaN(after) || 0 == before) {
+            return 0;
+        }
+        return (after - before) / before;
+    }
+}
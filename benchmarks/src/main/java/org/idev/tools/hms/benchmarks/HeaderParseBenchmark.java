@@ -0,0 +1,54 @@
+package org.idev.tools.hms.benchmarks;
+
+import fi.iki.elonen.Response;
+import fi.iki.elonen.Status;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and decoding requests, HTTPSession.decodeHeader and around, answered by an empty response
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderParseBenchmark {
+    private static final int REQUESTS = 100;
+
+    @Param({"4", "16", "64"})
+    public int headerCount;
+
+    private byte[] request;
+    private ReplayServer server;
+
+    @Setup
+    public void setUp() {
+        this.request = Requests.get("/items/42?page=2&size=20", this.headerCount);
+        this.server = new ReplayServer() {
+            @Override
+            public Response serve(HTTPSession session) {
+                return new Response(Status.NO_CONTENT, MIME_PLAINTEXT, "");
+            }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public long parse() {
+        return this.server.replay(this.request, REQUESTS);
+    }
+}
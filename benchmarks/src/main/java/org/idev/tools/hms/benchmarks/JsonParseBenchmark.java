@@ -0,0 +1,65 @@
+package org.idev.tools.hms.benchmarks;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonValue;
+import org.idev.tools.hms.MockRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading rule definitions, JsonParser alone and followed by MockRule.readFrom, for an array of rules
+ * as posted to /__expect/bulk or loaded from a file
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonParseBenchmark {
+    @Param({"1", "100", "1000"})
+    public int ruleCount;
+
+    @Param({"16", "1024"})
+    public int bodySize;
+
+    private String json;
+
+    @Setup
+    public void setUp() {
+        String body = Requests.text(this.bodySize);
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < this.ruleCount; i++) {
+            json.append(0 == i ? "" : ",\n").append(Requests.rule("/items/" + i, "x-client", body));
+        }
+        this.json = json.append("]").toString();
+    }
+
+    @Benchmark
+    public JsonValue parse() {
+        return JsonValue.readFrom(this.json);
+    }
+
+    @Benchmark
+    public List<MockRule> parseAndCompile() {
+        JsonArray definitions = JsonValue.readFrom(this.json).asArray();
+        List<MockRule> rules = new ArrayList<MockRule>(definitions.size());
+        for (JsonValue definition : definitions) {
+            rules.add(MockRule.readFrom(definition.asObject()));
+        }
+        return rules;
+    }
+}
@@ -0,0 +1,125 @@
+package org.idev.tools.hms.benchmarks;
+
+import java.io.PrintStream;
+
+/**
+ * Latencies counted in log-linear buckets fine enough for reporting percentiles
+ * <p/>
+ * Durations under 256 ns are counted exactly; above, every power of two is split into 128 buckets,
+ * so a duration is reported within 0.8% of its value. Unlike the server's own histogram, a
+ * recorder belongs to a single thread, and recorders are merged once the run is over.
+ */
+final class LatencyRecorder {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_BITS = 40;
+    private static final int LINEAR = 2 * SUB_COUNT;
+
+    private final long[] counts = new long[LINEAR + (MAX_BITS - SUB_BITS - 1) * SUB_COUNT];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * Count a duration, in nanoseconds; those beyond about 18 minutes are counted as such
+     */
+    void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), (1L << MAX_BITS) - 1);
+        this.counts[bucket(value)]++;
+        this.count++;
+        this.sum += value;
+        this.max = Math.max(this.max, value);
+    }
+
+    /**
+     * Add the durations of another recorder
+     */
+    void add(LatencyRecorder other) {
+        for (int i = 0; i < this.counts.length; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.count += other.count;
+        this.sum += other.sum;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    long getCount() {
+        return this.count;
+    }
+
+    long getMax() {
+        return this.max;
+    }
+
+    double getMean() {
+        return 0 == this.count ? 0 : (double) this.sum / this.count;
+    }
+
+    /**
+     * The duration the given fraction of all durations are at most, in nanoseconds
+     */
+    long getValueAt(double fraction) {
+        long rank = Math.max(1, (long) Math.ceil(fraction * this.count));
+        long seen = 0;
+        for (int i = 0; i < this.counts.length; i++) {
+            seen += this.counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), this.max);
+            }
+        }
+        return this.max;
+    }
+
+    /**
+     * Print the distribution the way HdrHistogram does: percentiles getting closer to 100%, each
+     * step halving the distance left, with the given number of steps per halving
+     */
+    void printSpectrum(PrintStream out, double unit, int stepsPerHalf) {
+        out.println(String.format("%14s %12s %12s %16s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+        if (0 == this.count) {
+            return;
+        }
+        long seen = 0;
+        double next = 0;
+        for (int i = 0; i < this.counts.length && seen < this.count; i++) {
+            if (0 == this.counts[i]) {
+                continue;
+            }
+            seen += this.counts[i];
+            double percentile = (double) seen / this.count;
+            if (percentile < next && seen < this.count) {
+                continue;
+            }
+            double value = Math.min(upperBound(i), this.max) / unit;
+            if (seen < this.count) {
+                out.println(String.format("%14.3f %12.6f %12d %16.2f", value, percentile, seen, 1 / (1 - percentile)));
+            } else {
+                out.println(String.format("%14.3f %12.6f %12d %16s", value, percentile, seen, "inf"));
+            }
+
+            // The next step: a fraction of the way from this percentile to 100%
+            double half = Math.pow(2, Math.floor(Math.log(1 / (1 - percentile)) / Math.log(2)) + 1);
+            next = percentile + 1 / (half * stepsPerHalf);
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return LINEAR + (shift - 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    /**
+     * Largest duration of a bucket, in nanoseconds
+     */
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int shift = 1 + (bucket - LINEAR) / SUB_COUNT;
+        long mantissa = SUB_COUNT + (bucket - LINEAR) % SUB_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,488 @@
+package org.idev.tools.hms.benchmarks;
+
+import fi.iki.elonen.Method;
+import org.idev.tools.hms.mock.MockServer;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drive a {@link MockServer} on the loopback interface at a constant rate and report its latencies
+ * <p/>
+ * Usage: LoadDriver [--option=value ...], with the options
+ * - connections: number of client connections, 4 by default
+ * - rate: requests per second, over all connections, 1000 by default
+ * - duration: seconds measured, 10 by default
+ * - warmup: seconds run before measuring, 2 by default
+ * - keep-alive: whether connections are kept open between requests, true by default; otherwise
+ *   every request opens a connection of its own
+ * - pipeline: requests a kept-alive connection may have sent and not yet answered, 1 by default
+ * - mix: the requests, as "METHOD /path*weight" separated by commas, "GET /small*8,GET /large*1,POST /echo*1"
+ *   by default; every path gets a rule answering it
+ * - body: bytes in the body of each response, 1024 by default; "/large" gets 64 times more
+ * - request-body: bytes in the body of each POST and PUT request, 256 by default
+ * <p/>
+ * The load follows an open model: request n of a connection is due at a fixed time, whether or not
+ * the previous ones were answered, and its latency is counted from that time rather than from when
+ * it could actually be sent. A server stalling for a while thus gets charged for all requests which
+ * should have been sent meanwhile, instead of for the single one it held up; without this,
+ * "coordinated omission" hides most of a stall from the percentiles. The report also shows how late
+ * the driver itself was in sending requests, so that an overloaded client isn't mistaken for a slow
+ * server.
+ */
+public class LoadDriver {
+    private static final String DEFAULT_MIX = "GET /small*8,GET /large*1,POST /echo*1";
+    private static final int TIMEOUT = 30000;
+    private static final String[] PERCENTILES = {"50", "75", "90", "99", "99.9", "99.99", "99.999"};
+
+    private int connections = 4;
+    private double rate = 1000;
+    private double duration = 10;
+    private double warmup = 2;
+    private boolean keepAlive = true;
+    private int pipeline = 1;
+    private String mix = DEFAULT_MIX;
+    private int bodySize = 1024;
+    private int requestBodySize = 256;
+
+    public static void main(String[] args) throws Exception {
+        LoadDriver driver = new LoadDriver();
+        try {
+            for (String arg : args) {
+                driver.set(arg);
+            }
+            driver.run(System.out);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.err.println("Usage: LoadDriver [--connections=4] [--rate=1000] [--duration=10] [--warmup=2]"
+                + " [--keep-alive=true] [--pipeline=1] [--mix=\"" + DEFAULT_MIX + "\"] [--body=1024] [--request-body=256]");
+            System.exit(2);
+        }
+    }
+
+    private void set(String arg) throws IllegalArgumentException {
+        int equals = arg.indexOf('=');
+        if (!arg.startsWith("--") || equals < 0) {
+            throw new IllegalArgumentException("Expected --option=value but got \"" + arg + "\"");
+        }
+        String name = arg.substring(2, equals);
+        String value = arg.substring(equals + 1);
+        if ("connections".equals(name)) {
+            this.connections = positive(name, Integer.parseInt(value));
+        } else if ("rate".equals(name)) {
+            this.rate = Double.parseDouble(value);
+        } else if ("duration".equals(name)) {
+            this.duration = Double.parseDouble(value);
+        } else if ("warmup".equals(name)) {
+            this.warmup = Double.parseDouble(value);
+        } else if ("keep-alive".equals(name)) {
+            this.keepAlive = Boolean.parseBoolean(value);
+        } else if ("pipeline".equals(name)) {
+            this.pipeline = positive(name, Integer.parseInt(value));
+        } else if ("mix".equals(name)) {
+            this.mix = value;
+        } else if ("body".equals(name)) {
+            this.bodySize = Integer.parseInt(value);
+        } else if ("request-body".equals(name)) {
+            this.requestBodySize = Integer.parseInt(value);
+        } else {
+            throw new IllegalArgumentException("Unknown option \"" + name + "\"");
+        }
+        if (this.rate <= 0 || this.duration <= 0 || this.warmup < 0) {
+            throw new IllegalArgumentException("The rate and duration must be positive, the warm-up not negative");
+        }
+    }
+
+    private static int positive(String name, int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException(name + " must be at least 1");
+        }
+        return value;
+    }
+
+    /**
+     * Start a server, run the load against it, then print the report
+     */
+    public void run(PrintStream out) throws IOException, InterruptedException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        MockServer server = new MockServer(loopback.getHostAddress(), 0);
+        List<Target> targets = this.targets(server);
+        server.start();
+        int port = server.getListeningPort();
+        try {
+            out.println(String.format("Target %.0f req/s over %d connection(s), %s, for %.0f s after %.0f s of warm-up",
+                this.rate, this.connections, this.keepAlive ? "keep-alive, pipeline " + this.pipeline : "a connection per request",
+                this.duration, this.warmup));
+            StringBuilder description = new StringBuilder("Mix:");
+            for (Target target : targets) {
+                description.append(' ').append(target.method).append(' ').append(target.path).append(" x").append(target.weight);
+            }
+            out.println(description);
+
+            long period = Math.round(this.connections * 1e9 / this.rate);
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long measured = start + (long) (this.warmup * 1e9);
+            long end = measured + (long) (this.duration * 1e9);
+            List<Client> clients = new ArrayList<Client>();
+            for (int i = 0; i < this.connections; i++) {
+                // Spread the connections over the period, so that requests arrive evenly
+                Client client = new Client(i, new InetSocketAddress(loopback, port), targets, new Random(i),
+                    start + i * period / this.connections, period, measured, end);
+                clients.add(client);
+                client.start();
+            }
+
+            LatencyRecorder latencies = new LatencyRecorder();
+            long sent = 0;
+            long errors = 0;
+            long failures = 0;
+            long bytes = 0;
+            long lag = 0;
+            for (Client client : clients) {
+                client.join();
+                latencies.add(client.latencies);
+                sent += client.sent;
+                errors += client.errors + client.readErrors;
+                failures += client.failures;
+                bytes += client.bytes;
+                lag = Math.max(lag, client.lag);
+            }
+
+            double seconds = (end - measured) / 1e9;
+            out.println(String.format("Sent %d, answered %d, %d non-2xx, %d error(s)", sent, latencies.getCount(), failures, errors));
+            out.println(String.format("Throughput %.1f req/s, %.2f MB/s received", latencies.getCount() / seconds, bytes / seconds / 1e6));
+            out.println(String.format("Driver lag: requests were sent up to %.3f ms after they were due", lag / 1e6));
+            out.println();
+            out.println("Latency from the time each request was due, in milliseconds");
+            out.println(String.format("   mean  %10.3f", latencies.getMean() / 1e6));
+            for (String percentile : PERCENTILES) {
+                out.println(String.format("%7s%% %10.3f", percentile, latencies.getValueAt(Double.parseDouble(percentile) / 100) / 1e6));
+            }
+            out.println(String.format("    max  %10.3f", latencies.getMax() / 1e6));
+            out.println();
+            out.println("Distribution, in milliseconds");
+            latencies.printSpectrum(out, 1e6, 5);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * The requests of the mix, with a rule answering each
+     */
+    private List<Target> targets(MockServer server) throws IllegalArgumentException {
+        List<Target> targets = new ArrayList<Target>();
+        for (String entry : this.mix.split(",")) {
+            String[] parts = entry.trim().split("[ *]+");
+            if (parts.length < 2) {
+                throw new IllegalArgumentException("Expected \"METHOD /path*weight\" but got \"" + entry + "\"");
+            }
+            Method method = Method.valueOf(parts[0].toUpperCase());
+            int weight = parts.length > 2 ? positive("weight", Integer.parseInt(parts[2])) : 1;
+            String body = Requests.text("/large".equals(parts[1]) ? 64 * this.bodySize : this.bodySize);
+            server.when(parts[1], method).thenReturn(body);
+            targets.add(new Target(method, parts[1], weight, this.request(method, parts[1])));
+        }
+        return targets;
+    }
+
+    private byte[] request(Method method, String path) {
+        StringBuilder request = new StringBuilder(method.name()).append(' ').append(path)
+            .append(" HTTP/1.1\r\nHost: 127.0.0.1\r\n");
+        if (!this.keepAlive) {
+            request.append("Connection: close\r\n");
+        }
+        if (Method.POST == method || Method.PUT == method) {
+            request.append("Content-Type: text/plain\r\nContent-Length: ").append(this.requestBodySize).append("\r\n\r\n")
+                .append(Requests.text(this.requestBodySize));
+        } else {
+            request.append("\r\n");
+        }
+        return Requests.bytes(request.toString());
+    }
+
+    /**
+     * A request of the mix
+     */
+    private static final class Target {
+        private final Method method;
+        private final String path;
+        private final int weight;
+        private final byte[] bytes;
+
+        private Target(Method method, String path, int weight, byte[] bytes) {
+            this.method = method;
+            this.path = path;
+            this.weight = weight;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A connection sending its requests on schedule; with keep-alive, a second thread reads the
+     * responses, so that sending never waits for them beyond the pipeline depth
+     */
+    private final class Client extends Thread {
+        private final InetSocketAddress address;
+        private final List<Target> targets;
+        private final Random random;
+        private final long first;
+        private final long period;
+        private final long measured;
+        private final long end;
+        private final int totalWeight;
+        private final LatencyRecorder latencies = new LatencyRecorder();
+        private long sent;
+
+        // The sender's, and the reader's with keep-alive, each counted by its own thread
+        private long errors;
+        private long readErrors;
+        private long failures;
+        private long bytes;
+        private long lag;
+        private long read;
+
+        private Client(int index, InetSocketAddress address, List<Target> targets, Random random, long first, long period, long measured, long end) {
+            super("load-driver-" + index);
+            this.address = address;
+            this.targets = targets;
+            this.random = random;
+            this.first = first;
+            this.period = period;
+            this.measured = measured;
+            this.end = end;
+            int total = 0;
+            for (Target target : targets) {
+                total += target.weight;
+            }
+            this.totalWeight = total;
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            if (LoadDriver.this.keepAlive) {
+                this.runKeptAlive();
+            } else {
+                this.runClosing();
+            }
+        }
+
+        private void runKeptAlive() {
+            final Semaphore window = new Semaphore(LoadDriver.this.pipeline);
+            final BlockingQueue<Long> due = new LinkedBlockingQueue<Long>();
+            final Socket socket = new Socket();
+            Thread reader = null;
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(TIMEOUT);
+                socket.connect(this.address);
+                final InputStream in = new BufferedInputStream(socket.getInputStream());
+                reader = new Thread(this.getName() + "-reader") {
+                    @Override
+                    public void run() {
+                        try {
+                            for (long dueTime = due.take(); dueTime >= 0; dueTime = due.take()) {
+                                int status = readResponse(in);
+                                answered(dueTime, System.nanoTime(), status);
+                                window.release();
+                            }
+                        } catch (IOException ex) {
+                            readErrors++;
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            // Let the sender run into the closed socket rather than wait forever
+                            close(socket);
+                            window.release(LoadDriver.this.pipeline);
+                        }
+                    }
+                };
+                reader.setDaemon(true);
+                reader.start();
+
+                OutputStream out = socket.getOutputStream();
+                for (long n = 0; ; n++) {
+                    long dueTime = this.first + n * this.period;
+                    if (dueTime >= this.end) {
+                        break;
+                    }
+                    waitUntil(dueTime);
+
+                    // Blocks while the pipeline is full, the wait being charged to the request
+                    window.acquire();
+                    due.put(dueTime);
+                    this.sending(dueTime);
+                    out.write(this.next().bytes);
+                    out.flush();
+                }
+            } catch (IOException ex) {
+                if (!socket.isClosed()) {
+                    this.errors++;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                due.add(-1L);
+                try {
+                    if (null != reader) {
+                        reader.join();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                close(socket);
+            }
+        }
+
+        private void runClosing() {
+            for (long n = 0; ; n++) {
+                long dueTime = this.first + n * this.period;
+                if (dueTime >= this.end) {
+                    break;
+                }
+                waitUntil(dueTime);
+                this.sending(dueTime);
+                Socket socket = new Socket();
+                try {
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(TIMEOUT);
+                    socket.connect(this.address);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(this.next().bytes);
+                    out.flush();
+                    int status = readResponse(new BufferedInputStream(socket.getInputStream()));
+                    this.answered(dueTime, System.nanoTime(), status);
+                } catch (IOException ex) {
+                    this.errors++;
+                } finally {
+                    close(socket);
+                }
+            }
+        }
+
+        private Target next() {
+            int pick = this.random.nextInt(this.totalWeight);
+            for (Target target : this.targets) {
+                pick -= target.weight;
+                if (pick < 0) {
+                    return target;
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        private void sending(long dueTime) {
+            if (dueTime >= this.measured) {
+                this.sent++;
+                this.lag = Math.max(this.lag, System.nanoTime() - dueTime);
+            }
+        }
+
+        private void answered(long dueTime, long time, int status) {
+            long length = this.read;
+            this.read = 0;
+            if (dueTime < this.measured) {
+                return;
+            }
+            this.latencies.record(time - dueTime);
+            this.bytes += length;
+            if (status < 200 || status > 299) {
+                this.failures++;
+            }
+        }
+
+        /**
+         * Read a response, counting its bytes
+         *
+         * @return its status
+         */
+        private int readResponse(InputStream in) throws IOException {
+            String statusLine = readLine(in);
+            int status = Integer.parseInt(statusLine.split(" ")[1]);
+            long length = -1;
+            boolean chunked = false;
+            for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                int colon = line.indexOf(':');
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if ("content-length".equalsIgnoreCase(name)) {
+                    length = Long.parseLong(value);
+                } else if ("transfer-encoding".equalsIgnoreCase(name)) {
+                    chunked = "chunked".equalsIgnoreCase(value);
+                }
+            }
+            if (chunked) {
+                for (long size = Long.parseLong(readLine(in).trim(), 16); size > 0; size = Long.parseLong(readLine(in).trim(), 16)) {
+                    this.skip(in, size);
+                    readLine(in);
+                }
+                readLine(in);
+            } else if (length >= 0) {
+                this.skip(in, length);
+            } else {
+                while (in.read() >= 0) {
+                    this.read++;
+                }
+            }
+            return status;
+        }
+
+        private String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c = in.read(); c != '\n'; c = in.read()) {
+                if (c < 0) {
+                    throw new EOFException("Connection closed in the middle of a response");
+                }
+                this.read++;
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            this.read++;
+            return line.toString();
+        }
+
+        private void skip(InputStream in, long length) throws IOException {
+            for (long left = length; left > 0; ) {
+                long skipped = in.skip(left);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException("Connection closed in the middle of a response");
+                    }
+                    skipped = 1;
+                }
+                left -= skipped;
+            }
+            this.read += length;
+        }
+    }
+
+    private static void waitUntil(long time) {
+        for (long left = time - System.nanoTime(); left > 0; left = time - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
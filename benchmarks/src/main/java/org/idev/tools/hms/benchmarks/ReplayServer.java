@@ -0,0 +1,97 @@
+package org.idev.tools.hms.benchmarks;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Serves requests through the real connection handling of NanoHTTPD, without any socket
+ * <p/>
+ * A replay hands the same request a number of times to a connection kept alive, one request per
+ * read as a client waiting for each response would, and throws the responses away. Nothing is
+ * ever bound, so subclasses only answer requests, see {@link #serve(HTTPSession)}.
+ */
+public abstract class ReplayServer extends NanoHTTPD {
+    private final Sink sink = new Sink();
+    private final Socket socket = new Socket() {
+        @Override
+        public OutputStream getOutputStream() {
+            return sink;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+    };
+
+    protected ReplayServer() {
+        super("127.0.0.1", 0);
+    }
+
+    /**
+     * Serve the request the given number of times on one connection
+     *
+     * @return the number of bytes sent back
+     */
+    public long replay(byte[] request, int times) {
+        long before = this.sink.count;
+        new ClientHandler(this.socket, new Replay(request, times)).run();
+        return this.sink.count - before;
+    }
+
+    /**
+     * The same request, over and over
+     */
+    private static final class Replay extends InputStream {
+        private final byte[] request;
+        private int remaining;
+        private int position;
+
+        private Replay(byte[] request, int times) {
+            this.request = request;
+            this.remaining = times;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return -1 == this.read(b, 0, 1) ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (0 == this.remaining) {
+                return -1;
+            }
+            int n = Math.min(len, this.request.length - this.position);
+            System.arraycopy(this.request, this.position, b, off, n);
+            this.position += n;
+            if (this.position == this.request.length) {
+                this.position = 0;
+                this.remaining--;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Counts what it is given, and keeps nothing
+     */
+    private static final class Sink extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.count += len;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.idev.tools.hms.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Requests and rules as the benchmarks use them
+ */
+final class Requests {
+    private Requests() {
+    }
+
+    /**
+     * A GET request with the given number of headers besides Host
+     */
+    static byte[] get(String uri, int headerCount) {
+        StringBuilder request = new StringBuilder("GET ").append(uri).append(" HTTP/1.1\r\nHost: 127.0.0.1\r\n");
+        for (int i = 0; i < headerCount; i++) {
+            request.append("X-Header-").append(i).append(": value-").append(i).append("\r\n");
+        }
+        return bytes(request.append("\r\n").toString());
+    }
+
+    /**
+     * Text of the given length
+     */
+    static String text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        return text.toString();
+    }
+
+    /**
+     * A rule answering GET requests to the uri with the body, if they have the given header
+     */
+    static String rule(String uri, String header, String body) {
+        return "{\"request\":{\"method\":\"GET\",\"uri\":\"" + uri + "\""
+            + (null == header ? "" : ",\"headers\":{\"" + header + "\":\"bench\"}")
+            + "},\"response\":{\"status\":200,\"mimeType\":\"text/plain\",\"body\":\"" + body + "\"}}";
+    }
+
+    static byte[] bytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.idev.tools.hms.benchmarks;
+
+import fi.iki.elonen.Response;
+import org.idev.tools.hms.MockRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and sending the response of a rule, Response.send and around, plain and gzipped
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWriteBenchmark {
+    private static final int REQUESTS = 100;
+
+    @Param({"0", "1024", "65536"})
+    public int bodySize;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private byte[] request;
+    private ReplayServer server;
+
+    @Setup
+    public void setUp() throws IOException {
+        String request = new String(Requests.get("/items/42", 4), "UTF-8");
+        if (this.gzip) {
+            request = request.replace("Host:", "Accept-Encoding: gzip\r\nHost:");
+        }
+        this.request = Requests.bytes(request);
+
+        final MockRule rule = MockRule.readFrom(Requests.rule("/items/42", null, Requests.text(this.bodySize)));
+        this.server = new ReplayServer() {
+            @Override
+            public Response serve(HTTPSession session) {
+                return rule.getResponse(session.getHeaders());
+            }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public long write() {
+        return this.server.replay(this.request, REQUESTS);
+    }
+}
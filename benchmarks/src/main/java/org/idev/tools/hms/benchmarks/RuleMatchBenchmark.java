@@ -0,0 +1,72 @@
+package org.idev.tools.hms.benchmarks;
+
+import fi.iki.elonen.Method;
+import org.idev.tools.hms.MockRule;
+import org.idev.tools.hms.RuleRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching a request against the rules, MockRule.matches and RuleRegistry.match; the request is
+ * answered by the last rule, so every rule is tried
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleMatchBenchmark {
+    @Param({"1", "100", "10000"})
+    public int ruleCount;
+
+    @Param({"4", "32"})
+    public int headerCount;
+
+    private RuleRegistry registry;
+    private MockRule last;
+    private String uri;
+    private Map<String, String> headers;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.registry = new RuleRegistry();
+        for (int i = 0; i < this.ruleCount; i++) {
+            this.last = MockRule.readFrom(Requests.rule("/items/" + i, "x-client", "item " + i));
+            this.registry.add(this.last);
+        }
+        this.uri = "/items/" + (this.ruleCount - 1);
+
+        // Named like NanoHTTPD names them, in lower case
+        this.headers = new HashMap<String, String>();
+        this.headers.put("host", "127.0.0.1");
+        this.headers.put("x-client", "bench");
+        for (int i = 2; i < this.headerCount; i++) {
+            this.headers.put("x-header-" + i, "value-" + i);
+        }
+    }
+
+    @Benchmark
+    public boolean matches() {
+        return this.last.matches(Method.GET, this.uri, this.headers, null);
+    }
+
+    @Benchmark
+    public RuleRegistry.Match match() {
+        return this.registry.match(Method.GET, this.uri, this.headers, null);
+    }
+}
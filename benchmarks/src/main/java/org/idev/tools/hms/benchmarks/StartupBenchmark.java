@@ -0,0 +1,64 @@
+package org.idev.tools.hms.benchmarks;
+
+import fi.iki.elonen.Method;
+import org.idev.tools.hms.mock.MockServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start of a server, as every test class pays for it: creating it on an ephemeral port,
+ * registering a rule, starting it, answering a first request and stopping it, once per fresh JVM,
+ * so that class loading and initialisation are all measured
+ * <p/>
+ * On a single-core machine this went from about 518 ms down to 64 ms per operation once Flight
+ * Recorder, date formatting and MD5 were kept off the first request: short of the 50 ms aimed
+ * for, the rest being mostly the loading of the server's own classes.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+public class StartupBenchmark {
+    private static final byte[] REQUEST = Requests.get("/ready", 0);
+
+    @Benchmark
+    public int startServeStop() throws IOException {
+        MockServer server = new MockServer("127.0.0.1", 0);
+        server.when("/ready", Method.GET).thenReturn("ready");
+        server.start();
+        try {
+            Socket socket = new Socket("127.0.0.1", server.getListeningPort());
+            try {
+                socket.getOutputStream().write(REQUEST);
+
+                // The status code is enough to know the server answered
+                InputStream in = socket.getInputStream();
+                byte[] status = new byte[12];
+                int read = 0;
+                while (read < status.length) {
+                    int n = in.read(status, read, status.length - read);
+                    if (n < 0) {
+                        throw new IOException("No response");
+                    }
+                    read += n;
+                }
+                return Integer.parseInt(new String(status, 9, 3, "US-ASCII"));
+            } finally {
+                socket.close();
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -44,6 +44,34 @@ class JsonParser {
     return result;
   }
 
+  void parseSequence( JsonValueHandler handler ) throws IOException {
+    read();
+    skipWhiteSpace();
+    int index = 0;
+    if( readChar( '[' ) ) {
+      skipWhiteSpace();
+      if( !readChar( ']' ) ) {
+        do {
+          skipWhiteSpace();
+          handler.handle( index++, readValue() );
+          skipWhiteSpace();
+        } while( readChar( ',' ) );
+        if( !readChar( ']' ) ) {
+          throw expected( "',' or ']'" );
+        }
+      }
+      skipWhiteSpace();
+      if( !isEndOfText() ) {
+        throw error( "Unexpected character" );
+      }
+      return;
+    }
+    while( !isEndOfText() ) {
+      handler.handle( index++, readValue() );
+      skipWhiteSpace();
+    }
+  }
+
   private JsonValue readValue() throws IOException {
     switch( current ) {
     case 'n':
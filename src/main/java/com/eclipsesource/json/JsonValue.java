@@ -91,6 +91,28 @@ public abstract class JsonValue implements Serializable {
     return new JsonParser( reader ).parse();
   }
 
+  /**
+   * Reads a sequence of JSON values from the given reader, handing each one to the handler as soon
+   * as it has been read. The input is either a single JSON array, whose elements are read one by
+   * one, or any number of JSON values separated by white space, such as newline-delimited JSON.
+   * <p>
+   * Unlike {@link #readFrom(Reader)}, the whole input is never held in memory at once. Values
+   * handed over before a syntax error is found are not taken back.
+   * </p>
+   *
+   * @param reader
+   *          the reader to read the JSON values from
+   * @param handler
+   *          the handler to pass each value to, along with its index in the sequence
+   * @throws IOException
+   *           if an I/O error occurs in the reader
+   * @throws ParseException
+   *           if the input is not valid JSON
+   */
+  public static void readSequence( Reader reader, JsonValueHandler handler ) throws IOException {
+    new JsonParser( reader ).parseSequence( handler );
+  }
+
   /**
    * Reads a JSON value from the given string.
    *
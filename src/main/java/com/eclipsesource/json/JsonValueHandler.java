@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright (c) 2013 EclipseSource.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.hms/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ralf Sternberg - initial implementation and API
+ ******************************************************************************/
+package com.eclipsesource.json;
+
+
+/**
+ * Receives the values of a sequence read by {@link JsonValue#readSequence(java.io.Reader, JsonValueHandler)}.
+ */
+public interface JsonValueHandler {
+
+  /**
+   * Called for each value, in the order of the input.
+   *
+   * @param index
+   *          the index of the value in the sequence, starting at 0
+   * @param value
+   *          the value that has been read
+   */
+  void handle( int index, JsonValue value );
+
+}
@@ -0,0 +1,36 @@
+package fi.iki.elonen;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Response body which can be read at any position.
+ * <p/>
+ * <p>Unlike an <code>InputStream</code>, a body source keeps no position of its own, so one instance
+ * may be shared by every response built from the same mock rule, concurrently. Each
+ * {@link Response} only tracks how far it got.</p>
+ */
+public abstract class BodySource {
+
+    /**
+     * Total length of the body in bytes.
+     */
+    public abstract long length();
+
+    /**
+     * Copies up to <code>len</code> bytes starting at <code>position</code> into the buffer.
+     *
+     * @return the number of bytes copied, or -1 if <code>position</code> is past the end
+     */
+    public abstract int read(long position, byte[] buff, int off, int len) throws IOException;
+
+    /**
+     * Writes up to <code>count</code> bytes starting at <code>position</code> straight to the channel,
+     * without copying them through the heap.
+     *
+     * @return the number of bytes written, or -1 if this source can't do that and must be read instead
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return -1;
+    }
+}
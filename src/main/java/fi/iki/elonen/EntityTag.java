@@ -0,0 +1,81 @@
+package fi.iki.elonen;
+
+/**
+ * Entity tags for conditional requests.
+ * <p/>
+ * <p>Tags are strong and quoted, ready to be used as the value of an ETag header. A body sent
+ * gzip-encoded is a different representation and gets its own tag, see {@link #gzipVariant}.</p>
+ */
+public class EntityTag {
+    private static final String GZIP_SUFFIX = "-gz";
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private EntityTag() {
+    }
+
+    /**
+     * Tag derived from the content of the body: its length and 64-bit FNV-1a hash.
+     * <p/>
+     * <p>Tags only tell versions of a body apart, which needs no cryptographic digest; MD5 would
+     * also load the security providers of the JDK with the first response.</p>
+     */
+    public static String of(byte[] body) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : body) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return quote(Integer.toHexString(body.length) + "-" + Long.toHexString(hash));
+    }
+
+    /**
+     * Tag derived from the size and modification time of a file; hashing its content could take
+     * longer than sending it.
+     */
+    public static String of(MappedFileBody body) {
+        return quote(Long.toHexString(body.length()) + "-" + Long.toHexString(body.lastModified()));
+    }
+
+    /**
+     * Tag of the gzip-encoded representation of the body with the given tag.
+     */
+    public static String gzipVariant(String tag) {
+        if (tag.endsWith(GZIP_SUFFIX + "\"")) {
+            return tag;
+        }
+        return tag.endsWith("\"") ? tag.substring(0, tag.length() - 1) + GZIP_SUFFIX + "\"" : tag + GZIP_SUFFIX;
+    }
+
+    /**
+     * Whether the value of an If-None-Match header lists the given tag. Uses the weak comparison
+     * required for If-None-Match: a <code>W/</code> prefix is ignored on either side.
+     */
+    public static boolean matches(String ifNoneMatch, String tag) {
+        if (ifNoneMatch == null || tag == null) {
+            return false;
+        }
+        String expected = opaque(tag);
+        int start = 0;
+        int length = ifNoneMatch.length();
+        while (start < length) {
+            int end = ifNoneMatch.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            String candidate = ifNoneMatch.substring(start, end).trim();
+            if (candidate.equals("*") || opaque(candidate).equals(expected)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static String quote(String value) {
+        return "\"" + value + "\"";
+    }
+}
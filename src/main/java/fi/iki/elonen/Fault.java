@@ -0,0 +1,27 @@
+package fi.iki.elonen;
+
+/**
+ * Ways of failing a request instead of answering it properly; see {@link Response#setFault(Fault)}.
+ * <p/>
+ * <p>None of them holds a thread: the connection is closed or reset as soon as the response is due,
+ * or simply left alone.</p>
+ */
+public enum Fault {
+    /**
+     * Close the connection without sending anything.
+     */
+    CLOSE,
+    /**
+     * Send the headers and about half of the body, then close the connection.
+     */
+    TRUNCATE,
+    /**
+     * Abort the connection with a TCP reset.
+     */
+    RESET,
+    /**
+     * Never answer. The connection is kept open until the response delay, if any, has elapsed, or
+     * until the server stops.
+     */
+    HANG
+}
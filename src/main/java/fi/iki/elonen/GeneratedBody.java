@@ -0,0 +1,133 @@
+package fi.iki.elonen;
+
+/**
+ * Response body of any size, generated on the fly and never stored.
+ * <p/>
+ * <p>The content is a pure function of the position, so the same bytes come out whether the body
+ * is sent in one go, in throttled pieces or as a range. Reading fills the caller's buffer in place
+ * and allocates nothing.</p>
+ */
+public class GeneratedBody extends BodySource {
+
+    public enum Kind {
+        /**
+         * The pattern, repeated.
+         */
+        PATTERN,
+        /**
+         * Pseudo-random bytes derived from the seed.
+         */
+        RANDOM,
+        /**
+         * The low byte of the position: 00 01 02 .. ff 00 01 ..
+         */
+        COUNTER
+    }
+
+    private final Kind kind;
+    private final long length;
+    private final byte[] pattern;
+    private final long seed;
+
+    private GeneratedBody(Kind kind, long length, byte[] pattern, long seed) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid body size " + length);
+        }
+        this.kind = kind;
+        this.length = length;
+        this.pattern = pattern;
+        this.seed = seed;
+    }
+
+    public static GeneratedBody pattern(long length, byte[] pattern) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("The body pattern must not be empty");
+        }
+
+        // Pre-repeat short patterns so that filling copies large blocks
+        int repeat = Math.max(1, 4096 / pattern.length);
+        byte[] block = new byte[pattern.length * repeat];
+        for (int i = 0; i < repeat; i++) {
+            System.arraycopy(pattern, 0, block, i * pattern.length, pattern.length);
+        }
+        return new GeneratedBody(Kind.PATTERN, length, block, 0);
+    }
+
+    public static GeneratedBody random(long length, long seed) {
+        return new GeneratedBody(Kind.RANDOM, length, null, seed);
+    }
+
+    public static GeneratedBody counter(long length) {
+        return new GeneratedBody(Kind.COUNTER, length, null, 0);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    @Override
+    public int read(long position, byte[] buff, int off, int len) {
+        if (position >= length) {
+            return -1;
+        }
+        len = (int) Math.min(len, length - position);
+
+        switch (kind) {
+            case PATTERN:
+                fillPattern(position, buff, off, len);
+                break;
+            case RANDOM:
+                fillRandom(position, buff, off, len);
+                break;
+            default:
+                for (int i = 0; i < len; i++) {
+                    buff[off + i] = (byte) (position + i);
+                }
+        }
+        return len;
+    }
+
+    private void fillPattern(long position, byte[] buff, int off, int len) {
+        int start = (int) (position % pattern.length);
+        while (len > 0) {
+            int n = Math.min(len, pattern.length - start);
+            System.arraycopy(pattern, start, buff, off, n);
+            off += n;
+            len -= n;
+            start = 0;
+        }
+    }
+
+    /**
+     * Every aligned 8 byte word is the SplitMix64 mix of its index and the seed.
+     */
+    private void fillRandom(long position, byte[] buff, int off, int len) {
+        long word = position >>> 3;
+        int skip = (int) (position & 7);
+        while (len > 0) {
+            long z = mix(seed + word * 0x9E3779B97F4A7C15L);
+            for (int i = skip; i < 8 && len > 0; i++) {
+                buff[off++] = (byte) (z >>> (i << 3));
+                len--;
+            }
+            skip = 0;
+            word++;
+        }
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        return "GeneratedBody{" + kind.name().toLowerCase() + ", " + length + " bytes}";
+    }
+}
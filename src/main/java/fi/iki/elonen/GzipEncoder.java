@@ -0,0 +1,174 @@
+package fi.iki.elonen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip-encodes a response body on the fly, as HTTP chunks.
+ * <p/>
+ * <p>Deflaters hold native memory and are costly to set up, so they are pooled along with their
+ * output buffer and reset between responses. An encoder must be {@link #finish finished} or
+ * {@link #release released} to give its deflater back.</p>
+ */
+public class GzipEncoder {
+    /**
+     * Bodies shorter than this are never compressed; the gzip framing would eat most of the gain.
+     */
+    public static final int MIN_LENGTH = 1024;
+
+    private static final int POOL_SIZE = 64;
+    private static final ConcurrentLinkedQueue<GzipEncoder> pool = new ConcurrentLinkedQueue<GzipEncoder>();
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] CRLF = "\r\n".getBytes();
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] out = new byte[Response.BUFFER_SIZE];
+    private boolean started;
+
+    private GzipEncoder() {
+    }
+
+    /**
+     * Takes an encoder from the pool.
+     */
+    public static GzipEncoder acquire() {
+        GzipEncoder encoder = pool.poll();
+        return encoder != null ? encoder : new GzipEncoder();
+    }
+
+    /**
+     * Compresses the given bytes in one go; meant for bodies known in advance.
+     */
+    public static byte[] gzip(byte[] data) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 4 + 32);
+            GZIPOutputStream gzip = new GZIPOutputStream(baos);
+            gzip.write(data);
+            gzip.close();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Whether content of the given mime type is worth compressing.
+     */
+    public static boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        String mime = mimeType.toLowerCase();
+        return mime.startsWith("text/") || mime.contains("json") || mime.contains("xml") || mime.contains("javascript");
+    }
+
+    /**
+     * Whether the value of an Accept-Encoding header allows gzip.
+     */
+    public static boolean isAccepted(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Float.parseFloat(param.substring(2).trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compresses the given body bytes and writes whatever output is ready as one chunk.
+     *
+     * @return the number of bytes written to the stream
+     */
+    public int write(OutputStream outputStream, byte[] buff, int off, int len) throws IOException {
+        int written = start(outputStream);
+        crc.update(buff, off, len);
+        deflater.setInput(buff, off, len);
+        while (!deflater.needsInput()) {
+            written += writeChunk(outputStream, deflater.deflate(out));
+        }
+        return written;
+    }
+
+    /**
+     * Writes the rest of the compressed data, the gzip trailer and the last chunk, then returns the
+     * encoder to the pool.
+     *
+     * @return the number of bytes written to the stream
+     */
+    public int finish(OutputStream outputStream) throws IOException {
+        try {
+            int written = start(outputStream);
+            deflater.finish();
+            while (!deflater.finished()) {
+                written += writeChunk(outputStream, deflater.deflate(out));
+            }
+
+            long value = crc.getValue();
+            long size = deflater.getBytesRead();
+            byte[] trailer = {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+                (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)};
+            System.arraycopy(trailer, 0, out, 0, trailer.length);
+            written += writeChunk(outputStream, trailer.length);
+            outputStream.write("0\r\n\r\n".getBytes());
+            return written + 5;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Returns the encoder to the pool without finishing the body, e.g. after a write error.
+     */
+    public void release() {
+        deflater.reset();
+        crc.reset();
+        started = false;
+        if (pool.size() < POOL_SIZE) {
+            pool.offer(this);
+        } else {
+            deflater.end();
+        }
+    }
+
+    private int start(OutputStream outputStream) throws IOException {
+        if (started) {
+            return 0;
+        }
+        started = true;
+        System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+        return writeChunk(outputStream, HEADER.length);
+    }
+
+    private int writeChunk(OutputStream outputStream, int len) throws IOException {
+        if (len <= 0) {
+            return 0;
+        }
+        byte[] size = (Integer.toHexString(len) + "\r\n").getBytes();
+        outputStream.write(size);
+        outputStream.write(out, 0, len);
+        outputStream.write(CRLF);
+        return size.length + len + 2;
+    }
+}
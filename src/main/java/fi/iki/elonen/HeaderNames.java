@@ -0,0 +1,150 @@
+package fi.iki.elonen;
+
+import java.util.Locale;
+
+/**
+ * Canonical table of lower-case HTTP header names.
+ * <p/>
+ * Every name in the table is stored exactly once, as an interned <code>String</code> whose hash code
+ * has already been computed. The request parser resolves incoming header names against this table
+ * without allocating, and mock rules register the names they expect, so both sides end up holding
+ * the very same instance and a header lookup succeeds on the first identity comparison.
+ * <p/>
+ * Names which were never registered are returned lower-cased but are not added to the table; no
+ * rule can ask for them, and clients must not be able to grow the table.
+ */
+public final class HeaderNames {
+    public static final String ACCEPT = "accept";
+    public static final String ACCEPT_ENCODING = "accept-encoding";
+    public static final String AUTHORIZATION = "authorization";
+    public static final String CONNECTION = "connection";
+    public static final String CONTENT_LENGTH = "content-length";
+    public static final String CONTENT_TYPE = "content-type";
+    public static final String COOKIE = "cookie";
+    public static final String HOST = "host";
+    public static final String IF_NONE_MATCH = "if-none-match";
+    public static final String RANGE = "range";
+    public static final String TRANSFER_ENCODING = "transfer-encoding";
+    public static final String USER_AGENT = "user-agent";
+
+    private static final Object lock = new Object();
+    /**
+     * Open addressing table, always at most half full. Replaced as a whole on every registration.
+     */
+    private static volatile String[] table = new String[64];
+    private static int size;
+
+    static {
+        String[] wellKnown = {ACCEPT, ACCEPT_ENCODING, AUTHORIZATION, CONNECTION, CONTENT_LENGTH, CONTENT_TYPE, COOKIE,
+            HOST, IF_NONE_MATCH, RANGE, TRANSFER_ENCODING, USER_AGENT, "accept-charset", "accept-language",
+            "cache-control", "content-encoding", "date", "expect", "if-match", "if-modified-since", "origin", "pragma",
+            "referer", "upgrade", "x-forwarded-for", "x-requested-with"};
+        for (String name : wellKnown) {
+            canonical(name);
+        }
+    }
+
+    private HeaderNames() {
+    }
+
+    /**
+     * Returns the canonical instance for the given header name, registering it if needed.
+     * <p/>
+     * Meant for rule registration, not for the request path.
+     */
+    public static String canonical(String name) {
+        String found = lookup(name);
+        if (isCanonical(found)) {
+            return found;
+        }
+
+        synchronized (lock) {
+            String[] current = table;
+            int slot = find(current, found, 0, found.length(), found.hashCode());
+            if (current[slot] != null) {
+                return current[slot];
+            }
+
+            // Computing the hash once here means no reader ever has to
+            String interned = found.intern();
+            interned.hashCode();
+            String[] next = (size + 1) * 2 > current.length ? new String[current.length * 2] : current.clone();
+            if (next.length != current.length) {
+                for (String existing : current) {
+                    if (existing != null) {
+                        next[find(next, existing, 0, existing.length(), existing.hashCode())] = existing;
+                    }
+                }
+            }
+            next[find(next, interned, 0, interned.length(), interned.hashCode())] = interned;
+            size++;
+            table = next;
+            return interned;
+        }
+    }
+
+    /**
+     * Resolves a header name to its canonical instance, or to a lower-cased copy if it is unknown.
+     */
+    public static String lookup(String name) {
+        return lookup(name, 0, name.length());
+    }
+
+    /**
+     * Resolves the header name found between <code>start</code> and <code>end</code> in the given
+     * header line. Surrounding white space is ignored. Known names are returned without allocating.
+     */
+    public static String lookup(String line, int start, int end) {
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        String[] current = table;
+        String found = current[find(current, line, start, end, hash(line, start, end))];
+        if (found != null) {
+            return found;
+        }
+        return line.substring(start, end).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Checks the given instance is the one stored in the table.
+     */
+    public static boolean isCanonical(String name) {
+        String[] current = table;
+        return current[find(current, name, 0, name.length(), name.hashCode())] == name;
+    }
+
+    /**
+     * Same value as <code>String.hashCode()</code> of the lower-cased name.
+     */
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(s.charAt(i));
+        }
+        return h;
+    }
+
+    /**
+     * Returns the slot holding the given name, or the empty slot where it would go.
+     */
+    private static int find(String[] t, String s, int start, int end, int hash) {
+        int mask = t.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        int length = end - start;
+        while (true) {
+            String candidate = t[slot];
+            if (candidate == null) {
+                return slot;
+            }
+            if (candidate.hashCode() == hash && candidate.length() == length && candidate.regionMatches(true, 0, s, start, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package fi.iki.elonen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Response body backed by a file, opened and memory-mapped once.
+ * <p/>
+ * <p>When the response goes to a socket channel the file is sent with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which the operating system
+ * performs without copying the data into the JVM. Otherwise it is copied straight from the mapping.
+ * Either way the heap usage does not depend on the file size nor on the number of downloads.</p>
+ * <p/>
+ * <p>Instances are cached by path and reused for as long as the file keeps its size and modification
+ * time. A changed file gets a new instance, see {@link #current()}; the replaced one is never closed,
+ * as responses may still be sent from it, and is left to the garbage collector instead.</p>
+ */
+public class MappedFileBody extends BodySource {
+    /**
+     * A single mapping can't exceed 2GB; larger files are mapped in segments of this size.
+     */
+    private static final int SEGMENT_SIZE = 1 << 30;
+    private static final ConcurrentMap<String, MappedFileBody> cache = new ConcurrentHashMap<String, MappedFileBody>();
+
+    private final File file;
+    private final long length;
+    private final long lastModified;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+
+    private MappedFileBody(File file) throws IOException {
+        this.file = file;
+        this.lastModified = file.lastModified();
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        this.length = channel.size();
+        this.segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int i = 0; i < segments.length; i++) {
+            long position = (long) i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, length - position));
+        }
+    }
+
+    /**
+     * Returns the body for the given file, mapping it if it was not mapped yet or has changed.
+     *
+     * @throws IOException if the file can't be read
+     */
+    public static MappedFileBody open(File file) throws IOException {
+        File canonical = file.getCanonicalFile();
+        if (!canonical.isFile() || !canonical.canRead()) {
+            throw new IOException("Cannot read file \"" + file + "\"");
+        }
+
+        String key = canonical.getPath();
+        MappedFileBody body = cache.get(key);
+        if (body != null && body.length == canonical.length() && body.lastModified == canonical.lastModified()) {
+            return body;
+        }
+
+        MappedFileBody fresh = new MappedFileBody(canonical);
+        if (body == null ? cache.putIfAbsent(key, fresh) != null : !cache.replace(key, body, fresh)) {
+            // Somebody else mapped it meanwhile; theirs is as good as ours
+            MappedFileBody winner = cache.get(key);
+            if (winner != null) {
+                fresh.channel.close();
+                return winner;
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Returns the body for the file as it is now: this one if the file kept its size and
+     * modification time, the one mapped again through the cache otherwise, or this one still if
+     * the file can't be read anymore.
+     */
+    public MappedFileBody current() {
+        if (file.length() == length && file.lastModified() == lastModified) {
+            return this;
+        }
+        try {
+            return open(file);
+        } catch (IOException ex) {
+            return this;
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public int read(long position, byte[] buff, int off, int len) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+
+        // Reading a mapping past the end of a truncated file faults, rather than failing politely
+        long end = Math.min(length, position + len);
+        if (channel.size() < end) {
+            throw new IOException("File \"" + file + "\" was truncated while being sent");
+        }
+
+        int copied = 0;
+        try {
+            while (copied < len && position < length) {
+                ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+                segment.position((int) (position % SEGMENT_SIZE));
+                int n = Math.min(len - copied, segment.remaining());
+                segment.get(buff, off + copied, n);
+                copied += n;
+                position += n;
+            }
+        } catch (InternalError e) {
+            // Truncated between the check and the copy
+            throw new IOException("File \"" + file + "\" was truncated while being sent", e);
+        }
+        return copied;
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFileBody{" + file + ", " + length + " bytes}";
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        // Nothing is transferred past the end of a truncated file; read() then reports it
+        return channel.transferTo(position, count, target);
+    }
+}
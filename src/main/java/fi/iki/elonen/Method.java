@@ -6,9 +6,12 @@ package fi.iki.elonen;
 public enum Method {
     GET, PUT, POST, DELETE, HEAD;
 
+    private static final Method[] VALUES = values();
+
     static Method lookup(String method) {
-        for (Method m : Method.values()) {
-            if (m.toString().equalsIgnoreCase(method)) {
+        // Over the array rather than values(), which copies it on every call
+        for (Method m : VALUES) {
+            if (m.name().equalsIgnoreCase(method)) {
                 return m;
             }
         }
@@ -4,8 +4,17 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -64,6 +73,10 @@ public abstract class NanoHTTPD {
      * Pseudo-Parameter to use to store the actual query string in the parameters map for later re-processing.
      */
     private static final String QUERY_STRING_PARAMETER = "NanoHttpd.QUERY_STRING";
+    private static final long TIMER_TICK_MILLIS = 5;
+    private static final int TIMER_WHEEL_SIZE = 1024;
+    private static final int DEFERRED_WRITER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 5000;
     private final String hostname;
     private final int myPort;
     private ServerSocket myServerSocket;
@@ -76,6 +89,39 @@ public abstract class NanoHTTPD {
      * Pluggable strategy for creating and cleaning up temporary files.
      */
     private TempFileManagerFactory tempFileManagerFactory;
+    /**
+     * Parks connections with a delayed response; see {@link Response#setDelay(long)}.
+     */
+    private TimerWheel timer;
+    /**
+     * Writes delayed and throttled responses once they are due.
+     */
+    private ExecutorService deferredWriter;
+    /**
+     * Sends throttled responses; see {@link Response#setThrottle(long)}.
+     */
+    private Pacer pacer;
+    /**
+     * Connections never answered on purpose, see {@link Fault#HANG}; closed when the server stops.
+     */
+    private final Set<ClientHandler> hung = Collections.newSetFromMap(new ConcurrentHashMap<ClientHandler, Boolean>());
+    /**
+     * Open connections; also the monitor {@link #stop()} waits on for them to close.
+     */
+    private final Set<ClientHandler> connections = Collections.newSetFromMap(new ConcurrentHashMap<ClientHandler, Boolean>());
+    /**
+     * Set once the server is stopping: connections are closed as soon as they are idle.
+     */
+    private volatile boolean draining;
+    private volatile long drainTimeout = DEFAULT_DRAIN_TIMEOUT_MILLIS;
+    /**
+     * Pluggable observer of connections and requests, null for none.
+     */
+    private Monitor monitor;
+    /**
+     * Pluggable tracer of the phases of connections and requests, null for none.
+     */
+    private Tracer tracer;
 
     /**
      * Constructs an HTTP server on given port.
@@ -85,7 +131,8 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * Constructs an HTTP server on given hostname and port.
+     * Constructs an HTTP server on given hostname and port; port 0 binds an ephemeral port, see
+     * getListeningPort().
      */
     public NanoHTTPD(String hostname, int port) {
         this.hostname = hostname;
@@ -127,7 +174,9 @@ public abstract class NanoHTTPD {
      * @throws IOException if the socket is in use.
      */
     public void start() throws IOException {
-        myServerSocket = new ServerSocket();
+        draining = false;
+        // Opened through a channel so that accepted sockets have one too, see MappedFileBody
+        myServerSocket = ServerSocketChannel.open().socket();
         myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
 
         myThread = new Thread(new Runnable() {
@@ -136,34 +185,20 @@ public abstract class NanoHTTPD {
                 do {
                     try {
                         final Socket finalAccept = myServerSocket.accept();
+                        // Headers and body go out in separate writes; don't let Nagle hold the
+                        // last one back until the client's delayed acknowledgement
+                        finalAccept.setTcpNoDelay(true);
                         final InputStream inputStream = finalAccept.getInputStream();
                         if (inputStream == null) {
                             safeClose(finalAccept);
                         } else {
-                            asyncRunner.exec(new Runnable() {
-                                @Override
-                                public void run() {
-                                    OutputStream outputStream = null;
-                                    try {
-                                        outputStream = finalAccept.getOutputStream();
-                                        TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                        HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream);
-                                        while (!finalAccept.isClosed()) {
-                                            session.execute();
-                                        }
-                                    } catch (Exception e) {
-                                        // When the socket is closed by the client, we throw our own SocketException
-                                        // to break the  "keep alive" loop above.
-                                        if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-                                            e.printStackTrace();
-                                        }
-                                    } finally {
-                                        safeClose(outputStream);
-                                        safeClose(inputStream);
-                                        safeClose(finalAccept);
-                                    }
-                                }
-                            });
+                            ClientHandler client = new ClientHandler(finalAccept, inputStream);
+                            try {
+                                asyncRunner.exec(client);
+                            } catch (RejectedExecutionException e) {
+                                // A bounded runner is full: turn the connection away
+                                client.close();
+                            }
                         }
                     } catch (IOException e) {
                     }
@@ -176,18 +211,168 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * Stop the server.
+     * Stop the server: stop accepting connections and close the idle ones at once, let those in the
+     * middle of a request finish it, for at most the drain timeout, then close whatever is left.
+     * <p/>
+     * <p>Returns as soon as all connections are closed.</p>
      */
     public void stop() {
+        draining = true;
         try {
             safeClose(myServerSocket);
             myThread.join();
         } catch (Exception e) {
             e.printStackTrace();
         }
+
+        for (ClientHandler client : hung) {
+            client.close();
+        }
+        hung.clear();
+        for (ClientHandler client : connections) {
+            if (!client.busy) {
+                client.close();
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeout);
+        synchronized (connections) {
+            for (long left = deadline - System.nanoTime(); !connections.isEmpty() && left > 0; left = deadline - System.nanoTime()) {
+                try {
+                    connections.wait(TimeUnit.NANOSECONDS.toMillis(left) + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (timer != null) {
+                timer.stop();
+                deferredWriter.shutdown();
+                timer = null;
+                deferredWriter = null;
+                pacer = null;
+            }
+        }
+        for (ClientHandler client : connections) {
+            client.close();
+        }
     }
 
+    /**
+     * How long {@link #stop()} waits for requests in progress to be answered, 5 seconds by default.
+     */
+    public void setDrainTimeout(long millis) {
+        this.drainTimeout = millis;
+    }
+
+    /**
+     * Throttled transfers in progress, with their effective rates.
+     */
+    public final List<Pacer.Transfer> getPacedTransfers() {
+        synchronized (this) {
+            return pacer == null ? Collections.<Pacer.Transfer>emptyList() : pacer.getActive();
+        }
+    }
+
+    /**
+     * Send the response once its delay has elapsed, at its throttle rate, then resume reading from
+     * the connection. A response with a fault fails the connection instead, once the delay has elapsed.
+     * <p/>
+     * <p>The timer and the writer threads are created with the first delayed, throttled or faulty response.</p>
+     */
+    private void sendDeferred(final ClientHandler client, final Response response, final String description) {
+        final ExecutorService writer;
+        final Pacer pacer;
+        TimerWheel wheel;
+        synchronized (this) {
+            if (timer == null) {
+                timer = new TimerWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE, "NanoHttpd Timer");
+                deferredWriter = Executors.newFixedThreadPool(DEFERRED_WRITER_THREADS, new ThreadFactory() {
+                    private int count;
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setDaemon(true);
+                        t.setName("NanoHttpd Deferred Writer (#" + ++count + ")");
+                        return t;
+                    }
+                });
+                this.pacer = new Pacer(timer, deferredWriter);
+            }
+            wheel = timer;
+            writer = deferredWriter;
+            pacer = this.pacer;
+        }
+
+        // Hold the connection without a thread; with a delay, until the delay elapses
+        if (response.getFault() == Fault.HANG) {
+            response.release();
+            hung.add(client);
+            if (response.getDelay() > 0) {
+                wheel.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        hung.remove(client);
+                        client.close();
+                    }
+                }, response.getDelay(), TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        final Runnable transmit = new Runnable() {
+            @Override
+            public void run() {
+                if (response.getFault() == Fault.CLOSE || response.getFault() == Fault.RESET) {
+                    response.release();
+                    if (response.getFault() == Fault.RESET) {
+                        client.reset();
+                    } else {
+                        client.close();
+                    }
+                } else if (response.getFault() == Fault.TRUNCATE) {
+                    try {
+                        writer.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                response.sendTruncated(client.outputStream, client.buffer);
+                                client.close();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        client.close();
+                    }
+                } else if (response.getThrottle() > 0) {
+                    pacer.start(response, client, description);
+                } else {
+                    try {
+                        writer.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                response.send(client.outputStream, client.buffer);
+                                client.resume();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        client.close();
+                    }
+                }
+            }
+        };
+
+        if (response.getDelay() > 0) {
+            wheel.schedule(transmit, response.getDelay(), TimeUnit.MILLISECONDS);
+        } else {
+            transmit.run();
+        }
+    }
 
+    /**
+     * The port listened on, known as soon as start() returns, and -1 before.
+     */
     public final int getListeningPort() {
         return myServerSocket == null ? -1 : myServerSocket.getLocalPort();
     }
@@ -329,13 +514,95 @@ public abstract class NanoHTTPD {
     }
 
 
+    // ------------------------------------------------------------------------------- //
+    //
+    // Monitoring.
+    //
+    // ------------------------------------------------------------------------------- //
+
+    /**
+     * Pluggable observer of connections and requests, e.g. to keep metrics; null for none.
+     *
+     * @param monitor new observer, set before the server is started.
+     */
+    public void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Pluggable tracer of the phases of connections and requests, e.g. to emit profiling events;
+     * null for none.
+     *
+     * @param tracer new tracer, set before the server is started.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
     /**
      * Pluggable strategy for asynchronously executing requests.
      */
     public interface AsyncRunner {
+        /**
+         * @throws RejectedExecutionException to have the connection closed instead
+         */
         void exec(Runnable code);
     }
 
+    /**
+     * Observer of connections and requests, called on the threads serving them; it should return
+     * quickly and never block.
+     */
+    public interface Monitor {
+        void connectionOpened();
+
+        void connectionClosed();
+
+        /**
+         * Bytes read from and written to a connection since it was last reported.
+         */
+        void bytesTransferred(long read, long written);
+
+        /**
+         * The request line and headers of a request were read and decoded, in the given time from
+         * the arrival of their first bytes.
+         */
+        void requestParsed(long nanos);
+
+        /**
+         * A response was sent, in the given time; -1 for a response which is delayed, throttled or
+         * faulty, and so is sent at a pace of its own.
+         */
+        void responseSent(Status status, long nanos);
+    }
+
+    /**
+     * Tracer of the phases of connections and requests, called on the threads running them.
+     * <p/>
+     * <p>Each phase is bracketed by two calls: the first returns what the tracer needs to hand to
+     * the second, or null if it does not trace the phase right now, in which case the second call is
+     * skipped. A connection may be opened and closed on different threads.</p>
+     */
+    public interface Tracer {
+        Object connectionOpened(String remoteAddress);
+
+        void connectionClosed(Object span, int requests, long bytesRead, long bytesWritten);
+
+        /**
+         * The first bytes of a request arrived.
+         */
+        Object parseStarted();
+
+        /**
+         * The request line and headers were decoded.
+         */
+        void parseEnded(Object span, Method method, String uri, int bytes);
+
+        Object writeStarted();
+
+        void writeEnded(Object span, Status status, long bytes);
+    }
+
     /**
      * Factory to create temp file managers.
      */
@@ -490,29 +757,325 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Serves the requests of one connection, one after another, until it is closed.
+     * <p/>
+     * <p>When a response is delayed the handler returns without closing the connection; it is run
+     * again through the {@link AsyncRunner} once the response was written.</p>
+     */
+    protected class ClientHandler implements Runnable {
+        private final Socket socket;
+        private final CountingInputStream inputStream;
+        private CountingOutputStream outputStream;
+        private HTTPSession session;
+        /**
+         * Reused for every response body sent on this connection.
+         */
+        private final byte[] buffer = new byte[Response.BUFFER_SIZE];
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private long reportedRead;
+        private long reportedWritten;
+        private int requests;
+        private final Object span;
+        /**
+         * Whether a request is in progress, from its first byte until its response is written.
+         */
+        private volatile boolean busy;
+
+        public ClientHandler(Socket socket, InputStream inputStream) {
+            this.socket = socket;
+            this.inputStream = new CountingInputStream(inputStream);
+            if (monitor != null) {
+                monitor.connectionOpened();
+            }
+            span = tracer == null ? null : tracer.connectionOpened(String.valueOf(socket.getRemoteSocketAddress()));
+            connections.add(this);
+        }
+
+        @Override
+        public void run() {
+            boolean suspended = false;
+            try {
+                if (session == null) {
+                    outputStream = new CountingOutputStream(socket.getOutputStream());
+                    session = new HTTPSession(tempFileManagerFactory, inputStream, outputStream);
+                }
+                while (!suspended && !socket.isClosed() && !draining) {
+                    suspended = !session.execute(this);
+                }
+            } catch (Exception e) {
+                // When the socket is closed by the client, we throw our own SocketException
+                // to break the  "keep alive" loop above; when the server closed it, reads fail.
+                if (!(e instanceof SocketException && ("NanoHttpd Shutdown".equals(e.getMessage()) || socket.isClosed()))) {
+                    e.printStackTrace();
+                }
+            } finally {
+                if (!suspended) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Continue serving the connection after a delayed response.
+         */
+        void resume() {
+            report();
+            busy = false;
+            if (socket.isClosed() || draining) {
+                close();
+            } else {
+                try {
+                    asyncRunner.exec(this);
+                } catch (RejectedExecutionException e) {
+                    close();
+                }
+            }
+        }
+
+        OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        byte[] getBuffer() {
+            return buffer;
+        }
+
+        SocketChannel getChannel() {
+            return socket.getChannel();
+        }
+
+        /**
+         * Abort the connection: with a zero linger time, closing sends a TCP reset.
+         */
+        void reset() {
+            try {
+                socket.setSoLinger(true, 0);
+            } catch (SocketException e) {
+                // Plain close then
+            }
+            close();
+        }
+
+        void close() {
+            safeClose(outputStream);
+            safeClose(inputStream);
+            safeClose(socket);
+            if (closed.compareAndSet(false, true)) {
+                connections.remove(this);
+                synchronized (connections) {
+                    connections.notifyAll();
+                }
+                if (monitor != null) {
+                    report();
+                    monitor.connectionClosed();
+                }
+                if (span != null) {
+                    tracer.connectionClosed(span, requests, inputStream.count, outputStream == null ? 0 : outputStream.count);
+                }
+            }
+        }
+
+        /**
+         * Tell the monitor about the bytes transferred since the last time.
+         */
+        void report() {
+            if (monitor != null) {
+                long read = inputStream.count;
+                long written = outputStream == null ? 0 : outputStream.count;
+                if (read != reportedRead || written != reportedWritten) {
+                    monitor.bytesTransferred(read - reportedRead, written - reportedWritten);
+                    reportedRead = read;
+                    reportedWritten = written;
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read from a connection.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Serves the bytes read past the end of a request before reading on, so that those of the
+     * next, pipelined request aren't lost.
+     * <p/>
+     * <p>A read returns what was given back, if anything, without waiting for more from the
+     * connection. The bytes given back so far are kept in one buffer, however many requests were
+     * read on the connection.</p>
+     */
+    private static final class LeftoverInputStream extends FilterInputStream {
+        private byte[] leftover = new byte[0];
+        private int pos;
+        private int end;
+
+        private LeftoverInputStream(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * Give back bytes read too far; they are read again before any not yet given back.
+         */
+        void unread(byte[] b, int off, int len) {
+            int left = end - pos;
+            byte[] next = leftover.length >= len + left ? leftover : new byte[len + left];
+            System.arraycopy(leftover, pos, next, len, left);
+            System.arraycopy(b, off, next, 0, len);
+            leftover = next;
+            pos = 0;
+            end = len + left;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return pos < end ? leftover[pos++] & 0xff : in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos < end) {
+                int n = Math.min(len, end - pos);
+                System.arraycopy(leftover, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (pos < end) {
+                int skipped = (int) Math.min(n, end - pos);
+                pos += skipped;
+                return skipped;
+            }
+            return in.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return pos < end ? end - pos : in.available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Counts the bytes written to a connection, including those sent straight to its channel, see
+     * {@link Response#sendFromSource}.
+     */
+    static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        void add(long n) {
+            count += n;
+        }
+    }
+
     /**
      * Handles one session, i.e. parses the HTTP request and returns the response.
      */
     protected class HTTPSession {
         public static final int BUFSIZE = 8192;
-        private final TempFileManager tempFileManager;
+        private final TempFileManagerFactory tempFileManagerFactory;
+        /**
+         * Created with the first temporary file: most requests have no body to park in one.
+         */
+        private TempFileManager tempFileManager;
         private final OutputStream outputStream;
-        private InputStream inputStream;
+        private final LeftoverInputStream inputStream;
         private int splitbyte;
         private int rlen;
         private String uri;
         private Method method;
         private Map<String, String> parms;
         private Map<String, String> headers;
+        /**
+         * Parsed from the headers when first asked for, or when a cookie is set.
+         */
         private CookieHandler cookies;
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
+            this((TempFileManagerFactory) null, inputStream, outputStream);
             this.tempFileManager = tempFileManager;
-            this.inputStream = inputStream;
+        }
+
+        HTTPSession(TempFileManagerFactory tempFileManagerFactory, InputStream inputStream, OutputStream outputStream) {
+            this.tempFileManagerFactory = tempFileManagerFactory;
+            this.inputStream = new LeftoverInputStream(inputStream);
             this.outputStream = outputStream;
         }
 
-        public void execute() throws IOException {
+        private TempFileManager getTempFileManager() {
+            if (tempFileManager == null) {
+                tempFileManager = tempFileManagerFactory.create();
+            }
+            return tempFileManager;
+        }
+
+        /**
+         * Parse one request and send its response.
+         *
+         * @return <code>false</code> if the response was handed to the timer, in which case the
+         * connection belongs to it until the response is written
+         */
+        public boolean execute(ClientHandler client) throws IOException {
+            Response deferred = null;
+            Monitor monitor = NanoHTTPD.this.monitor;
+            Tracer tracer = NanoHTTPD.this.tracer;
+            Object parsing = null;
+            long start = 0;
             try {
                 // Read the first 8192 bytes.
                 // The full header should fit in here.
@@ -527,6 +1090,12 @@ public abstract class NanoHTTPD {
                         // socket was been closed
                         throw new SocketException("NanoHttpd Shutdown");
                     }
+                    start = System.nanoTime();
+                    client.busy = true;
+                    client.requests++;
+                    if (tracer != null) {
+                        parsing = tracer.parseStarted();
+                    }
                     while (read > 0) {
                         rlen += read;
                         splitbyte = findHeaderEnd(buf, rlen);
@@ -537,9 +1106,7 @@ public abstract class NanoHTTPD {
                 }
 
                 if (splitbyte < rlen) {
-                    ByteArrayInputStream splitInputStream = new ByteArrayInputStream(buf, splitbyte, rlen - splitbyte);
-                    SequenceInputStream sequenceInputStream = new SequenceInputStream(splitInputStream, inputStream);
-                    inputStream = sequenceInputStream;
+                    inputStream.unread(buf, splitbyte, rlen - splitbyte);
                 }
 
                 parms = new HashMap<String, String>();
@@ -559,31 +1126,76 @@ public abstract class NanoHTTPD {
 
                 uri = pre.get("uri");
 
-                cookies = new CookieHandler(headers);
+                cookies = null;
+                if (monitor != null) {
+                    monitor.requestParsed(System.nanoTime() - start);
+                }
+                if (parsing != null) {
+                    tracer.parseEnded(parsing, method, uri, splitbyte);
+                }
 
                 // Ok, now do the serve()
                 Response r = serve(this);
                 if (r == null) {
                     throw new ResponseException(Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
                 } else {
-                    cookies.unloadQueue(r);
+                    if (cookies != null) {
+                        cookies.unloadQueue(r);
+                    }
                     r.setRequestMethod(method);
-                    r.send(outputStream);
+                    r.negotiateEncoding(headers.get(HeaderNames.ACCEPT_ENCODING));
+                    r.setChannel(client.getChannel());
+                    if (r.getDelay() > 0 || r.getThrottle() > 0 || r.getFault() != null) {
+                        deferred = r;
+                        if (monitor != null) {
+                            monitor.responseSent(r.getStatus(), -1);
+                        }
+                    } else {
+                        long sending = System.nanoTime();
+                        long sent = client.outputStream.count;
+                        Object writing = tracer == null ? null : tracer.writeStarted();
+                        r.send(outputStream, client.getBuffer());
+                        if (monitor != null) {
+                            monitor.responseSent(r.getStatus(), System.nanoTime() - sending);
+                        }
+                        if (writing != null) {
+                            tracer.writeEnded(writing, r.getStatus(), client.outputStream.count - sent);
+                        }
+                    }
                 }
             } catch (SocketException e) {
                 // throw it out to close socket object (finalAccept)
                 throw e;
             } catch (IOException ioe) {
                 Response r = new Response(Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+                long sending = System.nanoTime();
                 r.send(outputStream);
                 safeClose(outputStream);
+                if (monitor != null) {
+                    monitor.responseSent(r.getStatus(), System.nanoTime() - sending);
+                }
             } catch (ResponseException re) {
                 Response r = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+                long sending = System.nanoTime();
                 r.send(outputStream);
                 safeClose(outputStream);
+                if (monitor != null) {
+                    monitor.responseSent(r.getStatus(), System.nanoTime() - sending);
+                }
             } finally {
-                tempFileManager.clear();
+                if (tempFileManager != null) {
+                    tempFileManager.clear();
+                }
             }
+
+            // Only hand the connection over once this thread is done with the session
+            client.report();
+            if (deferred != null) {
+                sendDeferred(client, deferred, method + " " + uri);
+                return false;
+            }
+            client.busy = false;
+            return true;
         }
 
         protected void parseBody(Map<String, String> files) throws IOException, ResponseException {
@@ -706,13 +1318,14 @@ public abstract class NanoHTTPD {
                 // If there's another token, it's protocol version,
                 // followed by HTTP headers. Ignore version but parse headers.
                 // NOTE: this now forces header names lowercase since they are
-                // case insensitive and vary by client.
+                // case insensitive and vary by client. Known names resolve to
+                // their canonical instance, see HeaderNames.
                 if (st.hasMoreTokens()) {
                     String line = in.readLine();
                     while (line != null && line.trim().length() > 0) {
                         int p = line.indexOf(':');
                         if (p >= 0)
-                            headers.put(line.substring(0, p).trim().toLowerCase(), line.substring(p + 1).trim());
+                            headers.put(HeaderNames.lookup(line, 0, p), line.substring(p + 1).trim());
                         line = in.readLine();
                     }
                 }
@@ -849,7 +1462,7 @@ public abstract class NanoHTTPD {
             if (len > 0) {
                 FileOutputStream fileOutputStream = null;
                 try {
-                    TempFile tempFile = tempFileManager.createTempFile();
+                    TempFile tempFile = getTempFileManager().createTempFile();
                     ByteBuffer src = b.duplicate();
                     fileOutputStream = new FileOutputStream(tempFile.getName());
                     FileChannel dest = fileOutputStream.getChannel();
@@ -867,7 +1480,7 @@ public abstract class NanoHTTPD {
 
         private RandomAccessFile getTmpBucket() {
             try {
-                TempFile tempFile = tempFileManager.createTempFile();
+                TempFile tempFile = getTempFileManager().createTempFile();
                 return new RandomAccessFile(tempFile.getName(), "rw");
             } catch (Exception e) {
                 System.err.println("Error: " + e.getMessage());
@@ -924,6 +1537,13 @@ public abstract class NanoHTTPD {
             return uri;
         }
 
+        /**
+         * The query string of the request, as sent: still percent-encoded, without the '?'.
+         */
+        public final String getQueryParameterString() {
+            return parms.get(QUERY_STRING_PARAMETER);
+        }
+
         public final Method getMethod() {
             return method;
         }
@@ -933,6 +1553,9 @@ public abstract class NanoHTTPD {
         }
 
         public CookieHandler getCookies() {
+            if (cookies == null) {
+                cookies = new CookieHandler(headers);
+            }
             return cookies;
         }
     }
@@ -0,0 +1,178 @@
+package fi.iki.elonen;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends throttled response bodies at a fixed rate.
+ * <p/>
+ * <p>Every transfer owns a token bucket filled at its rate. A transfer writes while it has tokens
+ * and, once it runs out, schedules its continuation on the shared {@link TimerWheel} for the moment
+ * the bucket is refilled. No thread sleeps on behalf of a connection; the actual writes run on the
+ * given executor. Works for both chunked and fixed length responses, see
+ * {@link Response#sendBody(OutputStream, byte[], int)}.</p>
+ */
+public class Pacer {
+    /**
+     * Aim at this many writes per second for slow rates; fast rates are capped by the buffer size.
+     */
+    private static final int WRITES_PER_SECOND = 50;
+
+    private final TimerWheel timer;
+    private final Executor writer;
+    private final Set<Transfer> active = Collections.newSetFromMap(new ConcurrentHashMap<Transfer, Boolean>());
+
+    public Pacer(TimerWheel timer, Executor writer) {
+        this.timer = timer;
+        this.writer = writer;
+    }
+
+    /**
+     * Start sending the response at its throttle rate. The client is resumed once the body is out,
+     * or closed if it could not be sent.
+     */
+    void start(Response response, NanoHTTPD.ClientHandler client, String description) {
+        Transfer transfer = new Transfer(response, client, description);
+        active.add(transfer);
+        transfer.submit();
+    }
+
+    /**
+     * Snapshot of the transfers in progress.
+     */
+    public List<Transfer> getActive() {
+        return new ArrayList<Transfer>(active);
+    }
+
+    /**
+     * One throttled response body.
+     */
+    public final class Transfer implements Runnable {
+        private final Response response;
+        private final NanoHTTPD.ClientHandler client;
+        private final OutputStream outputStream;
+        private final String description;
+        private final long rate;
+        private final int chunk;
+        private final byte[] buff;
+        private volatile long bytes;
+        private volatile long startTime;
+        private double tokens;
+        private long lastRefill;
+
+        private Transfer(Response response, NanoHTTPD.ClientHandler client, String description) {
+            this.response = response;
+            this.client = client;
+            this.outputStream = client.getOutputStream();
+            this.description = description;
+            this.rate = response.getThrottle();
+            this.chunk = (int) Math.max(1, Math.min(Response.BUFFER_SIZE, rate / WRITES_PER_SECOND));
+            this.buff = client.getBuffer();
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (startTime == 0) {
+                    response.sendHeader(outputStream);
+                    startTime = lastRefill = System.nanoTime();
+                }
+
+                while (true) {
+                    long wait = refill();
+                    if (wait > 0) {
+                        outputStream.flush();
+                        timer.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                submit();
+                            }
+                        }, wait, TimeUnit.NANOSECONDS);
+                        return;
+                    }
+
+                    int sent = response.sendBody(outputStream, buff, chunk);
+                    if (sent < 0) {
+                        break;
+                    }
+                    tokens -= sent;
+                    bytes += sent;
+                }
+
+                outputStream.flush();
+                finish();
+                client.resume();
+            } catch (IOException e) {
+                finish();
+                client.close();
+            } catch (RuntimeException e) {
+                // The timer was stopped under our feet
+                finish();
+                client.close();
+            }
+        }
+
+        private void submit() {
+            try {
+                writer.execute(this);
+            } catch (RejectedExecutionException e) {
+                finish();
+                client.close();
+            }
+        }
+
+        /**
+         * Add the tokens earned since the last refill, at most one chunk worth of them.
+         *
+         * @return nanoseconds to wait before the next write, 0 if it may go right away
+         */
+        private long refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(chunk, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate) + 1;
+        }
+
+        private void finish() {
+            active.remove(this);
+            response.release();
+        }
+
+        /**
+         * What is being sent to whom.
+         */
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * Configured rate, in bytes per second.
+         */
+        public long getRate() {
+            return rate;
+        }
+
+        /**
+         * Body bytes sent so far.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Rate actually achieved so far, in bytes per second.
+         */
+        public long getEffectiveRate() {
+            long elapsed = System.nanoTime() - startTime;
+            return startTime == 0 || elapsed <= 0 ? 0 : bytes * 1000000000L / elapsed;
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package fi.iki.elonen;
 
 import java.io.*;
-import java.text.SimpleDateFormat;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 
 /**
  * HTTP response. Return one of these from serve().
  */
 public class Response {
+    static final int BUFFER_SIZE = 16 * 1024;
+    private static final byte[] CRLF = "\r\n".getBytes();
+    /**
+     * Value of the Date header, formatted at most once per second.
+     */
+    private static volatile HttpDate httpDate = new HttpDate(-1, null);
+    // The epoch was a Thursday
+    private static final String[] DAYS = {"Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"};
+    private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
     /**
      * HTTP status code after processing, e.g. "200 OK", HTTP_OK
      */
@@ -20,6 +30,16 @@ public class Response {
      * Data of the response, may be null.
      */
     private InputStream data;
+    /**
+     * Alternatively to data, the source of the body and the part of it to send.
+     */
+    private BodySource source;
+    private long sourcePosition;
+    private long sourceCount;
+    /**
+     * Channel behind the output stream, if any; lets a body source bypass the stream.
+     */
+    private WritableByteChannel channel;
     /**
      * Headers for the HTTP response. Use addHeader() to add lines.
      */
@@ -32,6 +52,39 @@ public class Response {
      * Use chunkedTransfer
      */
     private boolean chunkedTransfer;
+    /**
+     * Milliseconds to wait before the response is sent. The connection is parked on the server's
+     * timer meanwhile, without holding a thread.
+     */
+    private long delay;
+    /**
+     * Maximum bytes per second for the body, 0 for no limit.
+     */
+    private long throttle;
+    /**
+     * How to fail instead of answering, null to answer normally.
+     */
+    private Fault fault;
+    /**
+     * Transfer state, set up by sendHeader().
+     */
+    private boolean sendingChunked;
+    private long pending;
+    /**
+     * Whether the body may be gzip-encoded for clients accepting it; see negotiateEncoding().
+     */
+    private boolean compressible;
+    /**
+     * Gzip-encoded body prepared in advance, used instead of compressing on the fly.
+     */
+    private byte[] precompressed;
+    private boolean gzip;
+    private GzipEncoder encoder;
+    /**
+     * Status line and headers rendered in advance, see renderHeader(); sent as they are, followed by
+     * the Date header.
+     */
+    private byte[] renderedHeader;
 
     /**
      * Default constructor: response = HTTP_OK, mime = MIME_HTML and your supplied message
@@ -62,6 +115,15 @@ public class Response {
         }
     }
 
+    /**
+     * Sends <code>count</code> bytes of the given source, starting at <code>position</code>.
+     */
+    public Response(Status status, String mimeType, BodySource source, long position, long count) {
+        this.status = status;
+        this.mimeType = mimeType;
+        setBodySource(source, position, count);
+    }
+
     /**
      * Adds given line to the header.
      */
@@ -73,82 +135,357 @@ public class Response {
      * Sends given response to the socket.
      */
     protected void send(OutputStream outputStream) {
-        String mime = mimeType;
-        SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-        gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        send(outputStream, new byte[BUFFER_SIZE]);
+    }
 
+    /**
+     * Sends given response to the socket, using the given buffer for the body.
+     */
+    protected void send(OutputStream outputStream, byte[] buff) {
         try {
-            if (status == null) {
-                throw new Error("sendResponse(): Status can't be null.");
+            sendHeader(outputStream);
+            while (sendBody(outputStream, buff, buff.length) >= 0) {
+                // Keep going until the whole body is out
             }
-            PrintWriter pw = new PrintWriter(outputStream);
-            pw.print("HTTP/1.1 " + status.getDescription() + " \r\n");
+            outputStream.flush();
+        } catch (IOException ioe) {
+            // Couldn't write? No can do.
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Sends the header and about half of the body, for {@link Fault#TRUNCATE}; the caller then closes
+     * the connection.
+     */
+    void sendTruncated(OutputStream outputStream, byte[] buff) {
+        try {
+            sendHeader(outputStream);
 
-            if (mime != null) {
-                pw.print("Content-Type: " + mime + "\r\n");
+            // Counted in body bytes still to send, before any chunking or compression; an empty body
+            // gets no terminating chunk either
+            long unsent = unsent();
+            long stop = unsent > 0 ? unsent - Math.max(1, unsent / 2) : 0;
+            while (unsent > stop) {
+                if (sendBody(outputStream, buff, (int) Math.min(buff.length, unsent - stop)) < 0) {
+                    break;
+                }
+                unsent = unsent();
             }
+            outputStream.flush();
+        } catch (IOException ioe) {
+            // Closing anyway
+        } finally {
+            release();
+        }
+    }
 
-            if (header == null || header.get("Date") == null) {
-                pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
+    /**
+     * Number of body bytes not sent yet, before any chunking or compression
+     */
+    private long unsent() throws IOException {
+        if (!sendingChunked) {
+            return pending;
+        }
+        return source != null ? sourceCount : data != null ? data.available() : 0;
+    }
+
+    /**
+     * Frees what the body holds: closes the data stream and returns the gzip encoder to its pool.
+     */
+    void release() {
+        safeClose(data);
+        if (encoder != null) {
+            encoder.release();
+            encoder = null;
+        }
+    }
+
+    /**
+     * Sends the status line and the headers, up to and including the empty line.
+     * <p/>
+     * <p>The body is then sent with {@link #sendBody}, possibly in several calls.</p>
+     */
+    protected void sendHeader(OutputStream outputStream) throws IOException {
+        String mime = mimeType;
+
+        if (renderedHeader != null) {
+            outputStream.write(renderedHeader);
+            outputStream.write(("Date: " + currentDate() + "\r\n\r\n").getBytes());
+            sendingChunked = false;
+            pending = 0;
+            return;
+        }
+
+        if (status == null) {
+            throw new Error("sendResponse(): Status can't be null.");
+        }
+        PrintWriter pw = new PrintWriter(outputStream);
+        pw.print("HTTP/1.1 " + status.getDescription() + " \r\n");
+
+        if (mime != null) {
+            pw.print("Content-Type: " + mime + "\r\n");
+        }
+
+        if (header == null || header.get("Date") == null) {
+            pw.print("Date: " + currentDate() + "\r\n");
+        }
+
+        if (header != null) {
+            for (String key : header.keySet()) {
+                String value = header.get(key);
+                pw.print(key + ": " + value + "\r\n");
             }
+        }
 
-            if (header != null) {
-                for (String key : header.keySet()) {
-                    String value = header.get(key);
-                    pw.print(key + ": " + value + "\r\n");
-                }
+        pw.print("Connection: keep-alive\r\n");
+
+        sendingChunked = requestMethod != Method.HEAD && (chunkedTransfer || gzip);
+        if (gzip) {
+            encoder = GzipEncoder.acquire();
+        }
+        if (sendingChunked) {
+            pw.print("Transfer-Encoding: chunked\r\n");
+        } else if (source != null) {
+            pending = sourceCount;
+            pw.print("Content-Length: "+pending+"\r\n");
+            if (requestMethod == Method.HEAD) {
+                pending = 0;
             }
+        } else {
+            pending = data != null ? data.available() : 0; // This is to support partial sends, see serveFile()
+            pw.print("Content-Length: "+pending+"\r\n");
+            if (requestMethod == Method.HEAD) {
+                pending = 0;
+            }
+        }
+        pw.print("\r\n");
+        pw.flush();
+    }
 
-            pw.print("Connection: keep-alive\r\n");
+    /**
+     * Sends the next part of the body, at most <code>max</code> bytes of it.
+     *
+     * @return the number of body bytes sent, or -1 once the body is complete
+     */
+    protected int sendBody(OutputStream outputStream, byte[] buff, int max) throws IOException {
+        return sendingChunked ? sendAsChunked(outputStream, buff, max) : sendAsFixedLength(outputStream, buff, max);
+    }
 
-            if (requestMethod != Method.HEAD && chunkedTransfer) {
-                sendAsChunked(outputStream, pw);
-            } else {
-                sendAsFixedLength(outputStream, pw);
+    private int sendAsChunked(OutputStream outputStream, byte[] buff, int max) throws IOException {
+        if (encoder != null) {
+            return sendAsGzip(outputStream, buff, max);
+        }
+        if (source != null) {
+            int count = (int) Math.min(max, sourceCount);
+            if (count > 0) {
+                outputStream.write(String.format("%x\r\n", count).getBytes());
+                sendFromSource(outputStream, buff, count);
+                outputStream.write(CRLF);
+                return count;
+            }
+        } else {
+            int read = data != null ? data.read(buff, 0, max) : -1;
+            if (read > 0) {
+                outputStream.write(String.format("%x\r\n", read).getBytes());
+                outputStream.write(buff, 0, read);
+                outputStream.write(CRLF);
+                return read;
             }
-            outputStream.flush();
-            safeClose(data);
-        } catch (IOException ioe) {
-            // Couldn't write? No can do.
         }
+        outputStream.write(String.format("0\r\n\r\n").getBytes());
+        return -1;
     }
 
-    private void sendAsChunked(OutputStream outputStream, PrintWriter pw) throws IOException {
-        pw.print("Transfer-Encoding: chunked\r\n");
-        pw.print("\r\n");
-        pw.flush();
-        int BUFFER_SIZE = 16 * 1024;
-        byte[] CRLF = "\r\n".getBytes();
-        byte[] buff = new byte[BUFFER_SIZE];
+    private int sendAsFixedLength(OutputStream outputStream, byte[] buff, int max) throws IOException {
+        if (pending <= 0 || (data == null && source == null)) {
+            return -1;
+        }
+        if (source != null) {
+            int count = (int) Math.min(max, pending);
+            sendFromSource(outputStream, buff, count);
+            pending -= count;
+            return count;
+        }
+        int read = data.read(buff, 0, (int) ((pending > max) ? max : pending));
+        if (read <= 0) {
+            pending = 0;
+            return -1;
+        }
+
+        outputStream.write (buff, 0, read);
+        pending -= read;
+        return read;
+    }
+
+    /**
+     * Compresses the next part of the body into chunks; the count returned is the encoded size.
+     */
+    private int sendAsGzip(OutputStream outputStream, byte[] buff, int max) throws IOException {
         int read;
-        while ((read = data.read(buff)) > 0) {
-            outputStream.write(String.format("%x\r\n", read).getBytes());
-            outputStream.write(buff, 0, read);
-            outputStream.write(CRLF);
+        if (source != null) {
+            read = sourceCount > 0 ? source.read(sourcePosition, buff, 0, (int) Math.min(max, sourceCount)) : -1;
+            if (read > 0) {
+                sourcePosition += read;
+                sourceCount -= read;
+            }
+        } else {
+            read = data != null ? data.read(buff, 0, max) : -1;
         }
-        outputStream.write(String.format("0\r\n\r\n").getBytes());
+
+        if (read > 0) {
+            return encoder.write(outputStream, buff, 0, read);
+        }
+        GzipEncoder finishing = encoder;
+        encoder = null;
+        finishing.finish(outputStream);
+        return -1;
     }
 
-    private void sendAsFixedLength(OutputStream outputStream, PrintWriter pw) throws IOException {
-        int pending = data != null ? data.available() : 0; // This is to support partial sends, see serveFile()
-        pw.print("Content-Length: "+pending+"\r\n");
+    /**
+     * Chooses the content coding for the client's Accept-Encoding header. Must be called before
+     * the header is sent; nothing happens unless the body was marked compressible and is at least
+     * {@link GzipEncoder#MIN_LENGTH} long.
+     */
+    void negotiateEncoding(String acceptEncoding) throws IOException {
+        if (!compressible || status == Status.PARTIAL_CONTENT || hasHeader("Content-Encoding")) {
+            return;
+        }
+        long length = source != null ? sourceCount : data != null ? data.available() : 0;
+        if (length < GzipEncoder.MIN_LENGTH) {
+            return;
+        }
 
-        pw.print("\r\n");
-        pw.flush();
+        addHeader("Vary", "Accept-Encoding");
+        if (requestMethod == Method.HEAD || !GzipEncoder.isAccepted(acceptEncoding)) {
+            return;
+        }
+
+        addHeader("Content-Encoding", "gzip");
+        String etag = header.get("ETag");
+        if (etag != null) {
+            addHeader("ETag", EntityTag.gzipVariant(etag));
+        }
+        if (precompressed != null) {
+            safeClose(data);
+            data = new ByteArrayInputStream(precompressed);
+            source = null;
+        } else {
+            gzip = true;
+        }
+    }
+
+    /**
+     * Renders the status line and the given headers, for a response without a body which is sent
+     * over and over, e.g. 304 Not Modified. The Date header is left out; it is added on sending.
+     */
+    public static byte[] renderHeader(Status status, Map<String, String> headers) {
+        StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(status.getDescription()).append(" \r\n");
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            }
+        }
+        sb.append("Connection: keep-alive\r\n");
+        try {
+            return sb.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String currentDate() {
+        long second = System.currentTimeMillis() / 1000;
+        HttpDate date = httpDate;
+        if (date.second != second) {
+            date = new HttpDate(second, formatDate(second));
+            httpDate = date;
+        }
+        return date.text;
+    }
+
+    /**
+     * Formats a time after 1970, in seconds, as an HTTP date, e.g. "Sun, 06 Nov 1994 08:49:37 GMT".
+     * <p/>
+     * <p>Computed by hand: SimpleDateFormat would load the locale data of the JDK, which takes
+     * longer than starting the whole server.</p>
+     */
+    static String formatDate(long second) {
+        long days = second / 86400;
+        int time = (int) (second % 86400);
 
-        if (requestMethod != Method.HEAD && data != null) {
-            int BUFFER_SIZE = 16 * 1024;
-            byte[] buff = new byte[BUFFER_SIZE];
-            while (pending > 0) {
-                int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
-                if (read <= 0) {
+        // Civil date from days since the epoch, counting years from March so leap days come last
+        long z = days + 719468;
+        long era = z / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        StringBuilder sb = new StringBuilder(29);
+        sb.append(DAYS[(int) (days % 7)]).append(", ");
+        twoDigits(sb, day).append(' ').append(MONTHS[month - 1]).append(' ').append(year).append(' ');
+        twoDigits(sb, time / 3600).append(':');
+        twoDigits(sb, time / 60 % 60).append(':');
+        return twoDigits(sb, time % 60).append(" GMT").toString();
+    }
+
+    private static StringBuilder twoDigits(StringBuilder sb, int value) {
+        return sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private static final class HttpDate {
+        private final long second;
+        private final String text;
+
+        private HttpDate(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private boolean hasHeader(String name) {
+        for (String key : header.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends exactly <code>count</code> bytes of the source, straight to the channel when possible.
+     */
+    private void sendFromSource(OutputStream outputStream, byte[] buff, int count) throws IOException {
+        int sent = 0;
+        if (channel != null) {
+            outputStream.flush();
+            while (sent < count) {
+                long n = source.transferTo(sourcePosition, count - sent, channel);
+                if (n <= 0) {
                     break;
                 }
-
-                outputStream.write (buff, 0, read);
-                pending -= read;
+                sent += n;
+                sourcePosition += n;
             }
+            if (outputStream instanceof NanoHTTPD.CountingOutputStream) {
+                ((NanoHTTPD.CountingOutputStream) outputStream).add(sent);
+            }
+        }
+        while (sent < count) {
+            int n = source.read(sourcePosition, buff, 0, Math.min(buff.length, count - sent));
+            if (n <= 0) {
+                throw new EOFException("Body source ended " + (count - sent) + " bytes early");
+            }
+            outputStream.write(buff, 0, n);
+            sent += n;
+            sourcePosition += n;
         }
+        sourceCount -= count;
     }
 
     public Status getStatus() {
@@ -175,6 +512,52 @@ public class Response {
         this.data = data;
     }
 
+    public BodySource getBodySource() {
+        return source;
+    }
+
+    public void setBodySource(BodySource source, long position, long count) {
+        this.data = null;
+        this.source = source;
+        this.sourcePosition = position;
+        this.sourceCount = count;
+    }
+
+    public boolean isCompressible() {
+        return compressible;
+    }
+
+    /**
+     * Allow the body to be gzip-encoded, on the fly, for clients which accept it.
+     */
+    public void setCompressible(boolean compressible) {
+        this.compressible = compressible;
+    }
+
+    /**
+     * Allow the body to be gzip-encoded, using the given bytes which were compressed in advance.
+     */
+    public void setPrecompressed(byte[] precompressed) {
+        this.compressible = precompressed != null;
+        this.precompressed = precompressed;
+    }
+
+    /**
+     * Send the given header, made with {@link #renderHeader}, and no body.
+     */
+    public void setRenderedHeader(byte[] renderedHeader) {
+        this.renderedHeader = renderedHeader;
+        this.data = null;
+        this.source = null;
+    }
+
+    /**
+     * Set by the server to the channel the response is written to, if the connection has one.
+     */
+    void setChannel(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
     public Method getRequestMethod() {
         return requestMethod;
     }
@@ -187,7 +570,34 @@ public class Response {
         this.chunkedTransfer = chunkedTransfer;
     }
 
-    private static final void safeClose(Closeable closeable) {
+    public long getDelay() {
+        return delay;
+    }
+
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public long getThrottle() {
+        return throttle;
+    }
+
+    public void setThrottle(long throttle) {
+        this.throttle = throttle;
+    }
+
+    public Fault getFault() {
+        return fault;
+    }
+
+    /**
+     * Fail the request in the given way rather than sending this response. The delay still applies.
+     */
+    public void setFault(Fault fault) {
+        this.fault = fault;
+    }
+
+    static final void safeClose(Closeable closeable) {
         if (closeable != null) {
             try {
                 closeable.close();
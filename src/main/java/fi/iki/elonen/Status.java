@@ -5,9 +5,21 @@ package fi.iki.elonen;
  */
 public enum Status {
     OK(200, "OK"), CREATED(201, "Created"), ACCEPTED(202, "Accepted"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"), REDIRECT(301,
-            "Moved Permanently"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401,
-            "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), CONFLICT(409, "Conflict"), RANGE_NOT_SATISFIABLE(416,
-            "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error");
+            "Moved Permanently"), FOUND(302, "Found"), SEE_OTHER(303, "See Other"), NOT_MODIFIED(304, "Not Modified"), TEMPORARY_REDIRECT(307,
+            "Temporary Redirect"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401,
+            "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), NOT_ACCEPTABLE(406,
+            "Not Acceptable"), REQUEST_TIMEOUT(408, "Request Timeout"), CONFLICT(409, "Conflict"), GONE(410, "Gone"), PRECONDITION_FAILED(412,
+            "Precondition Failed"), UNSUPPORTED_MEDIA_TYPE(415, "Unsupported Media Type"), RANGE_NOT_SATISFIABLE(416,
+            "Requested Range Not Satisfiable"), TOO_MANY_REQUESTS(429, "Too Many Requests"), INTERNAL_ERROR(500, "Internal Server Error"), NOT_IMPLEMENTED(501,
+            "Not Implemented"), BAD_GATEWAY(502, "Bad Gateway"), SERVICE_UNAVAILABLE(503, "Service Unavailable"), GATEWAY_TIMEOUT(504, "Gateway Timeout");
+    private static final Status[] BY_CODE = new Status[600];
+
+    static {
+        for (Status status : values()) {
+            BY_CODE[status.requestStatus] = status;
+        }
+    }
+
     private final int requestStatus;
     private final String description;
 
@@ -16,6 +28,13 @@ public enum Status {
         this.description = description;
     }
 
+    /**
+     * The status with the given code, or null if there is none.
+     */
+    public static Status lookup(int requestStatus) {
+        return requestStatus >= 0 && requestStatus < BY_CODE.length ? BY_CODE[requestStatus] : null;
+    }
+
     public int getRequestStatus() {
         return this.requestStatus;
     }
@@ -0,0 +1,192 @@
+package org.idev.tools.hms;
+
+import fi.iki.elonen.Method;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How often each rule, and each request signature, was called, for verifying expectations
+ * <p/>
+ * Counters are bumped as requests are served, so a verification reads a single counter however
+ * many requests came before, and whether or not they are still in the journal. A rule is counted
+ * by id, across updates of it; a signature, the method and path of a request, is counted whether
+ * or not any rule matched it. Each rule also remembers when it was first called, in the order of
+ * all the calls of its namespace, for ordering checks.
+ * <p/>
+ * Counters go with their namespace, and are dropped when it is reset. Until then, at most
+ * {@link #MAX_SIGNATURES} signatures are counted, so that requests to ever new paths can't grow
+ * them without bound on a long-lived server; beyond, verifying a signature not counted fails
+ * rather than report no call.
+ */
+public class CallCounters {
+    public static final int MAX_SIGNATURES = 10000;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicInteger signatureCount = new AtomicInteger();
+    private volatile boolean uncounted;
+    private final ConcurrentMap<Integer, Counter> rules = new ConcurrentHashMap<Integer, Counter>();
+    private final Map<Method, ConcurrentMap<String, Counter>> signatures = new EnumMap<Method, ConcurrentMap<String, Counter>>(Method.class);
+
+    public CallCounters() {
+        for (Method method : Method.values()) {
+            this.signatures.put(method, new ConcurrentHashMap<String, Counter>());
+        }
+    }
+
+    /**
+     * Count a request
+     *
+     * @param ruleId the id of the rule which answered it, {@link JournalEntry#NO_RULE} if none did
+     */
+    public void record(int ruleId, Method method, String uri) {
+        long order = this.calls.getAndIncrement();
+        ConcurrentMap<String, Counter> counters = this.signatures.get(method);
+        Counter counter = counters.get(uri);
+        if (null != counter) {
+            counter.hit(order);
+        } else if (this.signatureCount.incrementAndGet() <= MAX_SIGNATURES) {
+            counter(counters, uri).hit(order);
+        } else {
+            this.signatureCount.decrementAndGet();
+            this.uncounted = true;
+        }
+        if (JournalEntry.NO_RULE != ruleId) {
+            counter(this.rules, ruleId).hit(order);
+        }
+    }
+
+    /**
+     * Number of requests the rule answered
+     */
+    public long getCount(int ruleId) {
+        Counter counter = this.rules.get(ruleId);
+        return null == counter ? 0 : counter.count.get();
+    }
+
+    /**
+     * Number of requests answered by each rule which answered any, by rule id
+     */
+    public SortedMap<Integer, Long> getRuleCounts() {
+        SortedMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, Counter> each : this.rules.entrySet()) {
+            counts.put(each.getKey(), each.getValue().count.get());
+        }
+        return counts;
+    }
+
+    /**
+     * Number of requests to the path, with the given method or, for null, with any method
+     */
+    public long getCount(Method method, String uri) {
+        if (null != method) {
+            Counter counter = this.signatures.get(method).get(uri);
+            return null == counter ? 0 : counter.count.get();
+        }
+        long count = 0;
+        for (ConcurrentMap<String, Counter> counters : this.signatures.values()) {
+            Counter counter = counters.get(uri);
+            count += null == counter ? 0 : counter.count.get();
+        }
+        return count;
+    }
+
+    /**
+     * Check the rule answered between atLeast and atMost requests
+     *
+     * @throws IllegalStateException otherwise
+     */
+    public void verify(int ruleId, long atLeast, long atMost) throws IllegalStateException {
+        check("rule " + ruleId, this.getCount(ruleId), atLeast, atMost);
+    }
+
+    /**
+     * Check there were between atLeast and atMost requests to the path, with the given method or,
+     * for null, with any method
+     *
+     * @throws IllegalStateException otherwise
+     */
+    public void verify(Method method, String uri, long atLeast, long atMost) throws IllegalStateException {
+        if (this.uncounted && !this.isCounted(method, uri)) {
+            throw new IllegalStateException("Requests to " + (null == method ? "" : method.name() + " ") + "\"" + uri
+                + "\" are not counted: requests were made to more than " + MAX_SIGNATURES + " distinct paths");
+        }
+        check((null == method ? "" : method.name() + " ") + "\"" + uri + "\"", this.getCount(method, uri), atLeast, atMost);
+    }
+
+    /**
+     * Check the rules were all called, and first called in the given order
+     *
+     * @throws IllegalStateException otherwise
+     */
+    public void verifyInOrder(int... ruleIds) throws IllegalStateException {
+        long previous = -1;
+        for (int i = 0; i < ruleIds.length; i++) {
+            Counter counter = this.rules.get(ruleIds[i]);
+            if (null == counter) {
+                throw new IllegalStateException("Rule " + ruleIds[i] + " was never called");
+            }
+            long first = counter.first.get();
+            if (first < previous) {
+                throw new IllegalStateException("Rule " + ruleIds[i] + " was first called before rule " + ruleIds[i - 1]);
+            }
+            previous = first;
+        }
+    }
+
+    private boolean isCounted(Method method, String uri) {
+        if (null != method) {
+            return this.signatures.get(method).containsKey(uri);
+        }
+        for (ConcurrentMap<String, Counter> counters : this.signatures.values()) {
+            if (counters.containsKey(uri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void check(String what, long count, long atLeast, long atMost) {
+        if (count < atLeast) {
+            throw new IllegalStateException("Too few requests to " + what + ". Expected "
+                + (atLeast == atMost ? "" : "at least ") + atLeast + " but received " + count);
+        }
+        if (count > atMost) {
+            throw new IllegalStateException("Too many requests to " + what + ". Expected "
+                + (atLeast == atMost ? "" : "at most ") + atMost + " but received " + count);
+        }
+    }
+
+    private static <K> Counter counter(ConcurrentMap<K, Counter> counters, K key) {
+        Counter counter = counters.get(key);
+        if (null == counter) {
+            Counter fresh = new Counter();
+            counter = counters.putIfAbsent(key, fresh);
+            if (null == counter) {
+                counter = fresh;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Calls of a rule or signature, and the order of the first one
+     */
+    private static final class Counter {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong first = new AtomicLong(-1);
+
+        private void hit(long order) {
+            this.count.incrementAndGet();
+            if (-1 == this.first.get()) {
+                this.first.compareAndSet(-1, order);
+            }
+        }
+    }
+}
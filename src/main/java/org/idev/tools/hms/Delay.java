@@ -0,0 +1,160 @@
+package org.idev.tools.hms;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonObject.Member;
+import com.eclipsesource.json.JsonValue;
+
+/**
+ * Response delay, in milliseconds
+ * <p/>
+ * Expected format, one of:
+ * "delay" : 250                                       -- fixed
+ * "delay" : { "min" : 200, "max" : 5000 }             -- uniform
+ * "delay" : {                                         -- percentile distribution
+ *   "percentiles" : { "50" : 200, "95" : 800, "99" : 5000 }
+ * }
+ */
+public class Delay {
+    private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private final long min;
+    private final long max;
+    private final double[] percentiles;
+    private final long[] values;
+
+    private Delay(long min, long max, double[] percentiles, long[] values) {
+        this.min = min;
+        this.max = max;
+        this.percentiles = percentiles;
+        this.values = values;
+    }
+
+    /**
+     * Always wait the same time
+     */
+    public static Delay fixed(long millis) {
+        return uniform(millis, millis);
+    }
+
+    /**
+     * Wait between min and max, both inclusive
+     */
+    public static Delay uniform(long min, long max) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Invalid delay range [" + min + ", " + max + "]");
+        }
+        return new Delay(min, max, null, null);
+    }
+
+    /**
+     * Wait according to the given percentiles; values in between are interpolated linearly
+     *
+     * @param percentiles delay in milliseconds by percentile, e.g. 99 -> 5000
+     */
+    public static Delay percentiles(Map<Double, Long> percentiles) {
+        if (percentiles.isEmpty()) {
+            throw new IllegalArgumentException("At least one delay percentile is required");
+        }
+
+        TreeMap<Double, Long> sorted = new TreeMap<Double, Long>(percentiles);
+        double[] ps = new double[sorted.size()];
+        long[] vs = new long[sorted.size()];
+        int i = 0;
+        for (Map.Entry<Double, Long> entry : sorted.entrySet()) {
+            if (entry.getKey() <= 0 || entry.getKey() > 100) {
+                throw new IllegalArgumentException("Invalid delay percentile \"" + entry.getKey() + "\"");
+            }
+            if (entry.getValue() < 0 || (i > 0 && entry.getValue() < vs[i - 1])) {
+                throw new IllegalArgumentException("Delay percentiles must not decrease");
+            }
+            ps[i] = entry.getKey();
+            vs[i] = entry.getValue();
+            i++;
+        }
+        return new Delay(vs[0], vs[vs.length - 1], ps, vs);
+    }
+
+    /**
+     * Reads from JsonValue
+     *
+     */
+    public static Delay readFrom(JsonValue json) throws IllegalArgumentException {
+        if (json.isNumber()) {
+            return fixed(json.asLong());
+        }
+
+        if (!json.isObject()) {
+            throw new IllegalArgumentException("json.response.delay must be a number or an object");
+        }
+
+        JsonObject object = json.asObject();
+        JsonValue percentiles = object.get("percentiles");
+        if (null != percentiles) {
+            Map<Double, Long> map = new TreeMap<Double, Long>();
+            for (Member member : percentiles.asObject()) {
+                String name = member.getName().startsWith("p") ? member.getName().substring(1) : member.getName();
+                try {
+                    map.put(Double.valueOf(name), member.getValue().asLong());
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid delay percentile \"" + member.getName() + "\"");
+                }
+            }
+            return percentiles(map);
+        }
+
+        JsonValue min = object.get("min");
+        JsonValue max = object.get("max");
+        if (null == min || null == max) {
+            throw new IllegalArgumentException("json.response.delay requires \"min\" and \"max\" or \"percentiles\"");
+        }
+        return uniform(min.asLong(), max.asLong());
+    }
+
+    /**
+     * Draw the delay for the next response
+     */
+    public long next() {
+        if (this.min == this.max) {
+            return this.min;
+        }
+
+        Random rnd = random.get();
+        if (null == this.percentiles) {
+            return this.min + (long) (rnd.nextDouble() * (this.max - this.min + 1));
+        }
+
+        // Interpolate between the two percentiles around the drawn one; below the first we use its value
+        double p = rnd.nextDouble() * 100;
+        double lowP = 0;
+        long lowV = this.values[0];
+        for (int i = 0; i < this.percentiles.length; i++) {
+            if (p <= this.percentiles[i]) {
+                return lowV + (long) ((p - lowP) / (this.percentiles[i] - lowP) * (this.values[i] - lowV));
+            }
+            lowP = this.percentiles[i];
+            lowV = this.values[i];
+        }
+        return this.max;
+    }
+
+    @Override
+    public String toString() {
+        if (null != this.percentiles) {
+            StringBuilder sb = new StringBuilder("Delay{");
+            for (int i = 0; i < this.percentiles.length; i++) {
+                sb.append(i > 0 ? ", p" : "p").append(this.percentiles[i]).append('=').append(this.values[i]);
+            }
+            return sb.append('}').toString();
+        }
+        return this.min == this.max ? "Delay{" + this.min + "}" : "Delay{" + this.min + ".." + this.max + "}";
+    }
+}
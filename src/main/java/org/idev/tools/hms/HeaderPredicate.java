@@ -0,0 +1,76 @@
+package org.idev.tools.hms;
+
+import java.util.regex.Pattern;
+
+/**
+ * Expected value of a request header
+ * <p/>
+ * The value is written the same way as in the rule definition:
+ * - "text/plain"               exact match
+ * - "ignorecase:text/plain"    case-insensitive match
+ * - "regexp:text/.*"           regular expression match
+ */
+public class HeaderPredicate {
+    public static final String REGEXP = "regexp:";
+    public static final String IGNORE_CASE = "ignorecase:";
+
+    private final String definition;
+    private final String value;
+    private final Pattern pattern;
+    private final boolean ignoreCase;
+
+    private HeaderPredicate(String definition, String value, Pattern pattern, boolean ignoreCase) {
+        this.definition = definition;
+        this.value = value;
+        this.pattern = pattern;
+        this.ignoreCase = ignoreCase;
+    }
+
+    /**
+     * Parse the expected value of a header
+     *
+     * @throws IllegalArgumentException when the regular expression is invalid
+     */
+    public static HeaderPredicate parse(String definition) throws IllegalArgumentException {
+        if (definition.startsWith(REGEXP)) {
+            try {
+                return new HeaderPredicate(definition, null, Pattern.compile(definition.substring(REGEXP.length())), false);
+            } catch (RuntimeException ex) {
+                throw new IllegalArgumentException("Invalid header expression \"" + definition + "\": " + ex.getMessage());
+            }
+        }
+
+        if (definition.startsWith(IGNORE_CASE)) {
+            return new HeaderPredicate(definition, definition.substring(IGNORE_CASE.length()), null, true);
+        }
+
+        return new HeaderPredicate(definition, definition, null, false);
+    }
+
+    /**
+     * Check the actual header value satisfies this predicate
+     */
+    public boolean test(String actual) {
+        if (null != this.pattern) {
+            return this.pattern.matcher(actual).matches();
+        }
+
+        if (this.ignoreCase) {
+            return this.value.equalsIgnoreCase(actual);
+        }
+
+        return this.value.equals(actual);
+    }
+
+    /**
+     * The value as it was written in the rule definition
+     */
+    public String getDefinition() {
+        return this.definition;
+    }
+
+    @Override
+    public String toString() {
+        return this.definition;
+    }
+}
@@ -2,65 +2,342 @@ package org.idev.tools.hms;
 
 
 import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.eclipsesource.json.JsonValueHandler;
+import com.eclipsesource.json.ParseException;
 import fi.iki.elonen.Method;
 import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.Pacer;
 import fi.iki.elonen.Response;
 import fi.iki.elonen.Status;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class HttpServer extends NanoHTTPD implements  Runnable{
-    protected List<MockRule> rules;
-    protected List<String> failures;
-    private boolean receivedShutdownRequest = false;
+    private static final String RULES_PREFIX = "/__rules/";
+    private static final String FLIGHT_RECORDER_TRACER = "org.idev.tools.hms.jfr.FlightRecorderTracer";
+    private static final int ADMIN_CORE_THREADS = 2;
+    private static final int ADMIN_MAX_THREADS = 8;
+
+    protected final Namespace defaultNamespace = new Namespace(null);
+    protected final ConcurrentMap<String, Namespace> namespaces = new ConcurrentHashMap<String, Namespace>();
+    protected final RuleFiles ruleFiles = new RuleFiles();
+    private final CountDownLatch shutdownRequest = new CountDownLatch(1);
+    private volatile Proxy proxy;
+    private volatile File bodyFileDirectory;
+    private volatile RequestJournal journal = new RingJournal(RingJournal.DEFAULT_CAPACITY);
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final RequestTracer tracer = loadTracer();
+    private RuleWatcher watcher;
+    private final AdminListener admin;
 
 
     public HttpServer(String hostname, int port) {
+        this(hostname, port, -1);
+    }
+
+    /**
+     * A server answering the admin endpoints, /__expect, /__check and the like, on a port of their
+     * own, with threads of their own, so that they stay responsive however busy mocked traffic
+     * keeps the other port; on that one, their paths are then matched against the rules like any
+     * other. With a negative adminPort, both are served on port.
+     */
+    public HttpServer(String hostname, int port, int adminPort) {
         super(hostname, port);
+        this.setMonitor(this.metrics);
+        this.setTracer(this.tracer);
+        this.admin = adminPort < 0 ? null : new AdminListener(hostname, adminPort);
     }
+
     /**
-     * Reset rules and failures
+     * The tracer emitting Flight Recorder events, null if the JVM has no Flight Recorder API or
+     * the server was built without it
+     */
+    private static RequestTracer loadTracer() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (RequestTracer) Class.forName(FLIGHT_RECORDER_TRACER).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        } catch (LinkageError ex) {
+            return null;
+        }
+    }
+    /**
+     * Reset rules and failures of all namespaces
      */
     protected void reset() {
-        this.rules = new ArrayList<MockRule>();
-        this.failures = new ArrayList<String>();
+        this.namespaces.clear();
+        this.reset(this.defaultNamespace);
+    }
+
+    /**
+     * Reset rules and failures of a namespace; the rules loaded from files are registered afresh
+     * in the default one, any other is dropped
+     */
+    protected void reset(Namespace namespace) {
+        if (null != namespace.getName()) {
+            this.namespaces.remove(namespace.getName(), namespace);
+            return;
+        }
+        synchronized (this.ruleFiles) {
+            RuleRegistry rules = new RuleRegistry();
+            this.ruleFiles.register(rules);
+            namespace.reset(rules);
+        }
+    }
+
+    /**
+     * The namespace of the given name, created on first use; the default one for null
+     * <p/>
+     * Only registering rules creates a namespace: requests are served in {@link #findNamespace}.
+     */
+    public Namespace getNamespace(String name) {
+        if (null == name) {
+            return this.defaultNamespace;
+        }
+        Namespace namespace = this.namespaces.get(name);
+        if (null == namespace) {
+            Namespace fresh = new Namespace(name);
+            namespace = this.namespaces.putIfAbsent(name, fresh);
+            if (null == namespace) {
+                namespace = fresh;
+            }
+        }
+        return namespace;
+    }
+
+    /**
+     * The namespace of the given name, the default one for null, and null if none was created
+     */
+    public Namespace findNamespace(String name) {
+        return null == name ? this.defaultNamespace : this.namespaces.get(name);
+    }
+
+    /**
+     * Register the rules of a file, or of the *.json, *.ndjson and *.snapshot files of a
+     * directory; they are kept across resets
+     * <p/>
+     * Files are told apart by path: loading a file again replaces the rules it registered before,
+     * while another file adds its own, even if it holds the same definitions, as a snapshot of
+     * them does.
+     *
+     * @return the number of rules registered
+     * @throws IllegalArgumentException if any rule is invalid, in which case none is registered
+     */
+    public int loadRules(File file) throws IOException, IllegalArgumentException {
+        synchronized (this.ruleFiles) {
+            return this.ruleFiles.load(file, this.defaultNamespace.getRules());
+        }
+    }
+
+    /**
+     * Register the rules of a directory, like {@link #loadRules}, and reload its files whenever
+     * they change
+     *
+     * @see RuleWatcher
+     */
+    public int watchRules(File directory) throws IOException, IllegalArgumentException {
+        synchronized (this.ruleFiles) {
+            if (null == this.watcher) {
+                this.watcher = new RuleWatcher(this.ruleFiles, new RuleWatcher.Listener() {
+                    @Override
+                    public void rulesChanged(Set<File> files) {
+                        reloadRules(files);
+                    }
+                });
+            }
+
+            // Watch first, so that no change made while loading is missed
+            this.watcher.watch(directory);
+            return this.loadRules(directory);
+        }
+    }
+
+    /**
+     * Swap in the rules of changed files; invalid files, e.g. still being written, keep their
+     * previous rules until they change again
+     */
+    private void reloadRules(Set<File> files) {
+        try {
+            synchronized (this.ruleFiles) {
+                int count = this.ruleFiles.reload(files, this.defaultNamespace.getRules());
+                System.out.println("Reloaded " + count + " rules from " + files);
+            }
+        } catch (IOException ex) {
+            System.out.println("Couldn't reload rules:\n" + ex);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Couldn't reload rules:\n" + ex.getMessage());
+        }
+    }
+
+    /**
+     * Save the rules loaded from files as a snapshot, which loads faster than JSON
+     *
+     * @see RuleSnapshot
+     */
+    public void saveSnapshot(File file) throws IOException {
+        RuleSnapshot.write(file, this.ruleFiles.getDefinitions());
+    }
+
+    /**
+     * Start listening on both ports
+     */
+    @Override
+    public void start() throws IOException {
+        if (null != this.admin) {
+            this.admin.start();
+        }
+        try {
+            super.start();
+        } catch (IOException ex) {
+            if (null != this.admin) {
+                this.admin.stop();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * The port of the admin endpoints, the same as {@link #getListeningPort} unless they have one
+     * of their own; -1 until started
+     */
+    public int getAdminPort() {
+        return null == this.admin ? this.getListeningPort() : this.admin.getListeningPort();
     }
 
     @Override
     public Response serve(HTTPSession session) {
+        return this.serve(session, null == this.admin, true);
+    }
+
+    /**
+     * Answer a request of either port
+     *
+     * @param admin whether the admin endpoints are answered
+     * @param mock whether the rules are
+     */
+    private Response serve(HTTPSession session, boolean admin, boolean mock) {
+
+        // Find the namespace, named by a path prefix or a header
+        String uri = session.getUri();
+        String name = session.getHeaders().get(Namespace.HEADER);
+        if (uri.startsWith(Namespace.PATH_PREFIX)) {
+            int end = uri.indexOf('/', Namespace.PATH_PREFIX.length());
+            name = uri.substring(Namespace.PATH_PREFIX.length(), -1 == end ? uri.length() : end);
+            uri = -1 == end ? "/" : uri.substring(end);
+        }
+
+        // Only registering rules creates a namespace, so that any name clients send doesn't keep
+        // one for the life of the server; others are served by an empty one which isn't kept
+        boolean registering = admin && (uri.equals("/__expect") || uri.equals("/__expect/bulk"));
+        Namespace namespace = registering ? this.getNamespace(name) : this.findNamespace(name);
+        if (null == namespace) {
+            namespace = new Namespace(name);
+        }
+
+        if (admin) {
+            Response response = this.serveAdmin(session, uri, namespace);
+            if (null != response) {
+                return response;
+            }
+        }
+        if (!mock) {
+            return new Response(Status.NOT_FOUND, MIME_PLAINTEXT, "Error: No admin endpoint at " + session.getUri());
+        }
+
+        // Try to match a registered mock rule
+        return this.serveMockRule(session, uri, namespace);
+    }
+
+    /**
+     * Answer the admin endpoints
+     *
+     * @return null if the path is none of them
+     */
+    private Response serveAdmin(HTTPSession session, String uri, Namespace namespace) {
 
         // Stop server
-        if (session.getUri().equals("/__shutdown")) {
-            return this.serveShutdown(session);
+        if (uri.equals("/__shutdown")) {
+            return this.serveShutdown(session, namespace);
         }
 
         // Check all expectations are met
-        if (session.getUri().equals("/__check")) {
-            return this.serveCheck(session);
+        if (uri.equals("/__check")) {
+            return this.serveCheck(namespace);
+        }
+
+        // Verify how often, and in which order, requests were made
+        if (uri.equals("/__verify")) {
+            return this.serveVerify(session, namespace);
+        }
+
+        // Register many expectations at once
+        if (uri.equals("/__expect/bulk")) {
+            return this.serveExpectBulk(session, namespace);
         }
 
         // Register a new expectation
-        if (session.getUri().equals("/__expect")) {
-            return this.serveExpect(session);
+        if (uri.equals("/__expect")) {
+            return this.serveExpect(session, namespace);
         }
 
-        // Try to match a registered mock rule
-        return this.serveMockRule(session);
+        // List throttled responses in progress
+        if (uri.equals("/__throttle")) {
+            return this.serveThrottle(session);
+        }
+
+        // Update or remove a registered expectation
+        if (uri.startsWith(RULES_PREFIX)) {
+            return this.serveRule(session, uri, namespace);
+        }
+
+        // Query the recorded requests
+        if (uri.equals("/__requests")) {
+            return this.serveRequests(session, namespace);
+        }
+
+        // Configure forwarding of unmatched requests
+        if (uri.equals("/__proxy")) {
+            return this.serveProxy(session);
+        }
+
+        // Expose counters and latencies
+        if (uri.equals("/__metrics")) {
+            return this.serveMetrics();
+        }
+        return null;
     }
 
     /**
-     * Shutdown the server
+     * Shutdown the server, once the requests in progress, this one included, are answered; see
+     * {@link NanoHTTPD#stop()}
      * <p/>
      * Returns:
      * - 201 Accepted
+     * - 400 Bad Request if a namespace is named, since the server is shared by all of them
      */
-    private Response serveShutdown(HTTPSession session) {
-        this.receivedShutdownRequest = true;
+    private Response serveShutdown(HTTPSession session, Namespace namespace) {
+        if (null != namespace.getName()) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Error: Cannot shut down the server from " + namespace);
+        }
+        this.shutdownRequest.countDown();
         return new Response(Status.ACCEPTED, MIME_PLAINTEXT, "Shutting down...");
     }
 
@@ -71,54 +348,174 @@ public class HttpServer extends NanoHTTPD implements  Runnable{
      * - 200 OK if all expectations were met
      * - 409 Conflict otherwise
      */
-    private Response serveCheck(HTTPSession session) {
+    private Response serveCheck(Namespace namespace) {
+        List<String> failures = namespace.getFailures();
 
         // Check limit
-        for (MockRule rule : this.rules) {
+        for (MockRule rule : namespace.getRules().getRules()) {
             try {
                 rule.checkLimit();
 
                 // Limit exhausted or not met for this mock rule
             } catch (IllegalStateException ex) {
-                this.failures.add(ex.getMessage());
+                failures.add(ex.getMessage());
             }
         }
 
         // Success
-        if (0 == this.failures.size()) {
-            this.reset();
+        if (0 == failures.size()) {
+            this.reset(namespace);
             return new Response("All expectations met");
         }
 
         // There are failures; return them all as a JSON array
         JsonArray lines = new JsonArray();
-        for (String failure : this.failures) {
-            lines.add(failure);
+        synchronized (failures) {
+            for (String failure : failures) {
+                lines.add(failure);
+            }
         }
 
-        this.reset();
+        this.reset(namespace);
         return new Response(Status.CONFLICT, "application/json", lines.toString());
     }
 
+    /**
+     * Verify the calls made so far, from the counters of the namespace; unlike /__check, nothing
+     * is reset
+     * <p/>
+     * Parameters, either:
+     * - rule: the id of a rule, or uri and optionally method: a request signature, with count, the
+     *   exact number of calls expected, or atLeast and atMost; without any, at least one call
+     * - order: ids of rules, comma separated, which must all have been called, first in that order
+     * <p/>
+     * Returns:
+     * - 200 OK with {"count": n}, or {} for an order, if the calls are as expected
+     * - 409 Conflict with {"count": n, "error": "..."} otherwise
+     * - 400 Bad Request if the parameters are invalid
+     */
+    private Response serveVerify(HTTPSession session, Namespace namespace) {
+        Map<String, String> parms = session.getParms();
+        CallCounters calls = namespace.getCalls();
+        JsonObject result = new JsonObject();
+        try {
+            if (null != parms.get("order")) {
+                String[] items = parms.get("order").split(",");
+                int[] ids = new int[items.length];
+                for (int i = 0; i < items.length; i++) {
+                    ids[i] = Integer.parseInt(items[i].trim());
+                }
+                calls.verifyInOrder(ids);
+                return new Response(Status.OK, "application/json", result.toString());
+            }
+
+            long atLeast = 1;
+            long atMost = Long.MAX_VALUE;
+            if (null != parms.get("count")) {
+                atLeast = atMost = Long.parseLong(parms.get("count"));
+            } else if (null != parms.get("atLeast") || null != parms.get("atMost")) {
+                atLeast = null == parms.get("atLeast") ? 0 : Long.parseLong(parms.get("atLeast"));
+                atMost = null == parms.get("atMost") ? Long.MAX_VALUE : Long.parseLong(parms.get("atMost"));
+            }
+
+            if (null != parms.get("rule")) {
+                int id = Integer.parseInt(parms.get("rule"));
+                result.add("count", calls.getCount(id));
+                calls.verify(id, atLeast, atMost);
+            } else if (null != parms.get("uri")) {
+                Method method = null == parms.get("method") ? null : Method.valueOf(parms.get("method").toUpperCase());
+                result.add("count", calls.getCount(method, parms.get("uri")));
+                calls.verify(method, parms.get("uri"), atLeast, atMost);
+            } else {
+                return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Error: Verify a rule, a uri or an order");
+            }
+
+            // Not as expected
+        } catch (IllegalStateException ex) {
+            return new Response(Status.CONFLICT, "application/json", result.add("error", ex.getMessage()).toString());
+
+            // Not a number, or an unknown method
+        } catch (IllegalArgumentException ex) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Error: Invalid verification: " + ex.getMessage());
+        }
+
+        // Success
+        return new Response(Status.OK, "application/json", result.toString());
+    }
+
     /**
      * Register a new expectation
      * <p/>
      * Returns:
-     * - 200 OK if expectations was registered
+     * - 200 OK if expectations was registered, with the id of the rule in the Location header,
+     *   e.g. "/__rules/42"
      * - 400 Bad Request otherwise
      */
-    private Response serveExpect(HTTPSession session) {
+    private Response serveExpect(HTTPSession session, Namespace namespace) {
 
         if (!Method.POST.equals(session.getMethod())) {
             return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Error: Define a new mock rule using a POST request");
         }
 
+        int id;
+        try {
+            id = namespace.getRules().add(MockRule.readFrom(this.readBody(session), this.bodyFileDirectory));
+
+            // Cannot read/parse body
+        } catch (IOException ex) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Failed to read from body: " + ex.toString());
+
+            // Missing required members
+        } catch (IllegalArgumentException ex) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid mock rule configuration: " + ex.getMessage());
+        }
+
+        // Success
+        Response response = new Response("Rule added");
+        response.addHeader("Location", RULES_PREFIX + id);
+        return response;
+    }
+
+    /**
+     * Update or remove the rule with the id given in the URI
+     * <p/>
+     * Returns:
+     * - 200 OK if the rule was replaced by the one in the body of a PUT request, or removed by a
+     *   DELETE request
+     * - 404 Not Found if there is no such rule
+     * - 400 Bad Request otherwise
+     */
+    private Response serveRule(HTTPSession session, String uri, Namespace namespace) {
+        RuleRegistry rules = namespace.getRules();
+        int id;
+        try {
+            id = Integer.parseInt(uri.substring(RULES_PREFIX.length()));
+        } catch (NumberFormatException ex) {
+            return new Response(Status.NOT_FOUND, MIME_PLAINTEXT, "Error: No rule " + uri);
+        }
+
+        if (Method.DELETE.equals(session.getMethod())) {
+            if (!rules.remove(id)) {
+                return new Response(Status.NOT_FOUND, MIME_PLAINTEXT, "Error: No rule " + id);
+            }
+            return new Response("Rule removed");
+        }
+
+        if (!Method.PUT.equals(session.getMethod())) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Error: Update a mock rule using a PUT request, remove it using a DELETE request");
+        }
+
         try {
-            this.rules.add(MockRule.readFrom(this.readBody(session)));
+            String body = this.readBody(session);
+            if (null == rules.get(id) || !rules.update(id, MockRule.readFrom(body, this.bodyFileDirectory))) {
+                return new Response(Status.NOT_FOUND, MIME_PLAINTEXT, "Error: No rule " + id);
+            }
 
             // Cannot read/parse body
         } catch (IOException ex) {
             return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Failed to read from body: " + ex.toString());
+        } catch (ParseException ex) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Failed to read from body: " + ex.getMessage());
 
             // Missing required members
         } catch (IllegalArgumentException ex) {
@@ -126,7 +523,274 @@ public class HttpServer extends NanoHTTPD implements  Runnable{
         }
 
         // Success
-        return new Response("Rule added");
+        return new Response("Rule updated");
+    }
+
+    /**
+     * Register many expectations at once, from a JSON array of rules or from rules separated by
+     * newlines
+     * <p/>
+     * Rules are parsed one at a time as the body comes in, and published together once all of them
+     * are valid; if any is not, none is registered.
+     * <p/>
+     * Returns:
+     * - 200 OK with {"added": n, "ids": [...]} if all expectations were registered
+     * - 400 Bad Request with {"added": 0, "errors": [{"index", "error"}]} otherwise, or if the
+     *   Content-Length is missing or invalid
+     */
+    private Response serveExpectBulk(HTTPSession session, Namespace namespace) {
+
+        if (!Method.POST.equals(session.getMethod())) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Error: Define new mock rules using a POST request");
+        }
+
+        String length = session.getHeaders().get("content-length");
+        if (null == length) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Error: The \"Content-Length\" header is missing");
+        }
+        long size;
+        try {
+            size = Long.parseLong(length.trim());
+        } catch (NumberFormatException ex) {
+            size = -1;
+        }
+        if (size < 0) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Error: Invalid \"Content-Length\" header " + length);
+        }
+
+        final List<MockRule> added = new ArrayList<MockRule>();
+        final JsonArray errors = new JsonArray();
+        final int[] count = new int[1];
+        BodyInputStream body = new BodyInputStream(session.getInputStream(), size);
+        try {
+            JsonValue.readSequence(new InputStreamReader(body, "UTF-8"), new JsonValueHandler() {
+                @Override
+                public void handle(int index, JsonValue value) {
+                    count[0] = index + 1;
+                    try {
+                        if (!value.isObject()) {
+                            throw new IllegalArgumentException("json must be an object");
+                        }
+                        added.add(MockRule.readFrom(value.asObject(), bodyFileDirectory));
+                    } catch (IllegalArgumentException ex) {
+                        errors.add(new JsonObject().add("index", index).add("error", ex.getMessage()));
+
+                        // A member of the wrong type, e.g. a string where a number is expected
+                    } catch (UnsupportedOperationException ex) {
+                        errors.add(new JsonObject().add("index", index).add("error", ex.getMessage()));
+                    }
+                }
+            });
+
+            // Cannot read body
+        } catch (IOException ex) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Failed to read from body: " + ex.toString());
+
+            // Malformed JSON; the rule being read when it was found is the culprit
+        } catch (ParseException ex) {
+            errors.add(new JsonObject().add("index", count[0]).add("error", "Invalid JSON: " + ex.getMessage()));
+        } finally {
+            body.skipRemaining();
+        }
+
+        if (!errors.isEmpty()) {
+            JsonObject result = new JsonObject().add("added", 0).add("errors", errors);
+            return new Response(Status.BAD_REQUEST, "application/json", result.toString());
+        }
+
+        // Success
+        int first = namespace.getRules().addAll(added);
+        JsonArray ids = new JsonArray();
+        for (int i = 0; i < added.size(); i++) {
+            ids.add(first + i);
+        }
+        JsonObject result = new JsonObject().add("added", added.size()).add("ids", ids);
+        return new Response(Status.OK, "application/json", result.toString());
+    }
+
+    /**
+     * List the throttled responses being sent, with their effective rate
+     * <p/>
+     * Returns:
+     * - 200 OK with a JSON array of {"request", "rate", "effectiveRate", "bytes"}
+     */
+    private Response serveThrottle(HTTPSession session) {
+        JsonArray transfers = new JsonArray();
+        for (Pacer.Transfer transfer : this.getPacedTransfers()) {
+            transfers.add(new JsonObject()
+                .add("request", transfer.getDescription())
+                .add("rate", transfer.getRate())
+                .add("effectiveRate", transfer.getEffectiveRate())
+                .add("bytes", transfer.getBytes()));
+        }
+        return new Response(Status.OK, "application/json", transfers.toString());
+    }
+
+    /**
+     * Configure the upstream for unmatched requests
+     * <p/>
+     * POST {"upstream": "http://localhost:8080", "maxConnections": 16, "record": true} to forward,
+     * with maxConnections (default 16) and record (default false) optional; DELETE to stop.
+     * <p/>
+     * Returns:
+     * - 200 OK with the current configuration as JSON, {} when not forwarding
+     * - 400 Bad Request if the configuration is invalid
+     */
+    private Response serveProxy(HTTPSession session) {
+        if (Method.DELETE.equals(session.getMethod())) {
+            this.setProxy(null);
+        } else if (Method.POST.equals(session.getMethod())) {
+            try {
+                JsonObject json = JsonObject.readFrom(this.readBody(session));
+                JsonValue upstream = json.get("upstream");
+                if (null == upstream) {
+                    throw new IllegalArgumentException("json.upstream is required");
+                }
+                JsonValue maxConnections = json.get("maxConnections");
+                JsonValue record = json.get("record");
+                this.setProxy(new Proxy(new Upstream(upstream.asString().trim(), null == maxConnections ? 16 : maxConnections.asInt()),
+                    null != record && record.asBoolean()));
+
+                // Cannot read/parse body
+            } catch (IOException ex) {
+                return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Failed to read from body: " + ex.toString());
+
+                // Invalid configuration
+            } catch (RuntimeException ex) {
+                return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid proxy configuration: " + ex.getMessage());
+            }
+        }
+
+        JsonObject json = new JsonObject();
+        Proxy current = this.proxy;
+        if (null != current) {
+            json.add("upstream", current.getUpstream().toString())
+                .add("maxConnections", current.getUpstream().getMaxConnections())
+                .add("record", current.isRecording())
+                .add("activeConnections", current.getUpstream().getActiveCount())
+                .add("idleConnections", current.getUpstream().getIdleCount());
+        }
+        return new Response(Status.OK, "application/json", json.toString());
+    }
+
+    /**
+     * Forward the requests no rule matches to the given proxy, null to answer them with 404
+     */
+    public void setProxy(Proxy proxy) {
+        Proxy previous = this.proxy;
+        this.proxy = proxy;
+        if (null != previous && previous != proxy) {
+            previous.close();
+        }
+    }
+
+    public Proxy getProxy() {
+        return this.proxy;
+    }
+
+    /**
+     * Let the rules posted over HTTP answer with the files of the given directory, as "bodyFile"
+     * paths relative to it; null, the default, not to let them answer with any file. Rules from the
+     * Java API and from rule files may name any file the server can read.
+     */
+    public void setBodyFileDirectory(File directory) {
+        this.bodyFileDirectory = directory;
+    }
+
+    public File getBodyFileDirectory() {
+        return this.bodyFileDirectory;
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (null != this.admin && this.admin.wasStarted()) {
+            this.admin.stop();
+        }
+        this.setProxy(null);
+        RequestJournal journal = this.journal;
+        if (null != journal) {
+            journal.close();
+        }
+        synchronized (this.ruleFiles) {
+            if (null != this.watcher) {
+                this.watcher.close();
+                this.watcher = null;
+            }
+        }
+    }
+
+    /**
+     * List the requests of the namespace recorded in the journal, oldest first, or forget them
+     * <p/>
+     * Returns:
+     * - 200 OK with a JSON array of requests matching the query parameters, see {@link JournalQuery},
+     *   for a GET request
+     * - 200 OK once the requests of the namespace were forgotten, those of others being kept, for a
+     *   DELETE request
+     * - 400 Bad Request otherwise, or if there is no journal
+     */
+    private Response serveRequests(HTTPSession session, Namespace namespace) {
+        RequestJournal journal = this.journal;
+        if (null == journal) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Error: Requests are not recorded");
+        }
+
+        if (Method.DELETE.equals(session.getMethod())) {
+            journal.clear(namespace.getName());
+            return new Response("Requests cleared");
+        }
+
+        JournalQuery query;
+        try {
+            query = JournalQuery.fromParameters(namespace.getName(), session.getParms());
+        } catch (IllegalArgumentException ex) {
+            return new Response(Status.BAD_REQUEST, MIME_PLAINTEXT, "Error: " + ex.getMessage());
+        }
+        JsonArray requests = new JsonArray();
+        for (JournalEntry entry : journal.query(query)) {
+            requests.add(entry.toJson());
+        }
+        return new Response(Status.OK, "application/json", requests.toString());
+    }
+
+    /**
+     * Metrics of the server and of the rules of all namespaces, see {@link ServerMetrics}
+     * <p/>
+     * Returns:
+     * - 200 OK with the metrics in the Prometheus text format
+     */
+    private Response serveMetrics() {
+        StringBuilder out = new StringBuilder(32768);
+        this.metrics.writeTo(out);
+        List<Namespace> namespaces = new ArrayList<Namespace>();
+        namespaces.add(this.defaultNamespace);
+        namespaces.addAll(this.namespaces.values());
+        ServerMetrics.writeRuleHits(out, namespaces);
+        return new Response(Status.OK, ServerMetrics.CONTENT_TYPE, out.toString());
+    }
+
+    public ServerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Journal recording the requests matched against the rules, null if they are not recorded
+     */
+    public RequestJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Record the requests in the given journal, null not to record them; the server closes it when
+     * it is replaced, or when the server stops
+     */
+    public void setJournal(RequestJournal journal) {
+        RequestJournal previous = this.journal;
+        this.journal = journal;
+        if (null != previous && previous != journal) {
+            previous.close();
+        }
     }
 
     /**
@@ -136,17 +800,22 @@ public class HttpServer extends NanoHTTPD implements  Runnable{
      * - Status defined by the matching mock rule (if any)
      * - 400 Bad Request otherwise
      */
-    private Response serveMockRule(HTTPSession session) {
-
+    private Response serveMockRule(HTTPSession session, String uri, Namespace namespace) {
+        long timestamp = System.currentTimeMillis();
+        long start = System.nanoTime();
 
         String body = null;
 
         // Read request body
         if (Method.PUT.equals(session.getMethod()) || Method.POST.equals(session.getMethod())) {
+            Object reading = null == this.tracer ? null : this.tracer.bodyReadStarted();
             try {
                 body = this.readBody(session);
             } catch (IOException ex) {
             }
+            if (null != reading) {
+                this.tracer.bodyReadEnded(reading, null == body ? 0 : body.length());
+            }
         }
 //        System.out.println("Look after: ");
 //        System.out.println("Method = " + session.getMethod());
@@ -156,26 +825,42 @@ public class HttpServer extends NanoHTTPD implements  Runnable{
 //        System.out.println("Body = " + body);
 //        System.out.println("Look in rules = " + rules);
 
-        // Try to find a matching mock rule
-        for (MockRule rule : this.rules) {
-            if (rule.matches(session.getMethod(), session.getUri(), session.getHeaders(), body)) {
+        // Try to find a matching mock rule; rules past their limit or sequence no longer match
+        RuleRegistry rules = namespace.getRules();
+        Object tracing = null == this.tracer ? null : this.tracer.matchStarted();
+        long matching = System.nanoTime();
+        RuleRegistry.Match match = rules.match(session.getMethod(), uri, session.getHeaders(), body);
+        this.metrics.requestMatched(null != match, System.nanoTime() - matching);
+        if (null != tracing) {
+            this.tracer.matchEnded(tracing, namespace.getName(), session.getMethod(), uri,
+                null == match ? JournalEntry.NO_RULE : match.getId(), null == match ? rules.getActiveCount() : match.getScanned());
+        }
+        Response response;
+        if (null != match) {
+            response = match.respond(session.getHeaders());
 
-                // Build response
-                try {
-                    return rule.getResponse();
+            // Forward to the upstream, if any
+        } else if (null != this.proxy) {
+            response = this.proxy.forward(session.getMethod(), uri, session.getQueryParameterString(), session.getHeaders(),
+                body, session.getInputStream(), rules);
 
-                    // Limit exceeded for this mock rule
-                } catch (IllegalStateException ex) {
-                    return new Response(Status.NOT_FOUND, MIME_PLAINTEXT, ex.getMessage());
-                }
-            }
+            // No mock rule match found
+        } else {
+            String err = session.getMethod().name() + " request to \"" + uri + "\" did not match any rule";
+            namespace.getFailures().add(err);
+            response = new Response(Status.NOT_FOUND, MIME_PLAINTEXT, err);
         }
 
-        // No mock rule match found
-        String err = session.getMethod().name() + " request to \"" + session.getUri() + "\" did not match any rule";
-
-        this.failures.add(err);
-        return new Response(Status.NOT_FOUND, MIME_PLAINTEXT, err);
+        // Keep track of the request
+        namespace.getCalls().record(null == match ? JournalEntry.NO_RULE : match.getId(), session.getMethod(), uri);
+        RequestJournal journal = this.journal;
+        if (null != journal) {
+            long sequence = journal.claim();
+            journal.publish(new JournalEntry(sequence, timestamp, System.nanoTime() - start, namespace.getName(), session.getMethod(),
+                uri, session.getQueryParameterString(), session.getHeaders(), body,
+                null == match ? JournalEntry.NO_RULE : match.getId(), response.getStatus().getRequestStatus()));
+        }
+        return response;
     }
 
     /**
@@ -227,22 +912,117 @@ public class HttpServer extends NanoHTTPD implements  Runnable{
         }
         System.out.println("Done");
 
-        // Sleep forever
-        while (true) {
-            try {
+        // Serve until asked to shut down; stopping lets the shutdown request itself be answered
+        try {
+            this.shutdownRequest.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.stop();
+    }
 
-                // Check shutdown request
-                if (this.receivedShutdownRequest) {
-                    Thread.sleep(1000);
-                    this.stop();
-                    break;
+    /**
+     * Listener of the admin endpoints on their own port
+     * <p/>
+     * Its connections are served by a few threads of their own, at the highest priority, however
+     * many the mocked traffic takes; the admin clients are test harnesses, so a handful of threads
+     * is plenty, and connections beyond are turned away rather than queued behind kept-alive ones.
+     * It has no monitor nor tracer: the metrics and events are about the mocked traffic.
+     */
+    private final class AdminListener extends NanoHTTPD {
+        private ThreadPoolExecutor executor;
+
+        private AdminListener(String hostname, int port) {
+            super(hostname, port);
+        }
+
+        @Override
+        public void start() throws IOException {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(ADMIN_CORE_THREADS, ADMIN_MAX_THREADS,
+                60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private int count;
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MAX_PRIORITY);
+                        t.setName("Admin Request Processor (#" + ++count + ")");
+                        return t;
+                    }
+                });
+            this.executor = executor;
+            this.setAsyncRunner(new AsyncRunner() {
+                @Override
+                public void exec(Runnable code) {
+                    executor.execute(code);
                 }
+            });
+            super.start();
+        }
 
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
-                this.stop();
-            }
+        @Override
+        public void stop() {
+            super.stop();
+            this.executor.shutdown();
+        }
+
+        @Override
+        public Response serve(HTTPSession session) {
+            return HttpServer.this.serve(session, true, false);
         }
     }
 
+    /**
+     * The body of a request, as many bytes as its Content-Length; reading further would wait for
+     * the next request on the connection
+     */
+    private static final class BodyInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        private BodyInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int b = this.in.read();
+            this.remaining = -1 == b ? 0 : this.remaining - 1;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int read = this.in.read(buffer, offset, (int) Math.min(length, this.remaining));
+            this.remaining = -1 == read ? 0 : this.remaining - read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(this.in.available(), this.remaining);
+        }
+
+        /**
+         * Consume what was left unread, so the connection is ready for the next request
+         */
+        private void skipRemaining() {
+            byte[] buffer = new byte[1024];
+            try {
+                while (-1 != this.read(buffer, 0, buffer.length)) {
+                    // Discard
+                }
+            } catch (IOException ex) {
+                // The connection is lost anyway
+            }
+        }
+    }
 }
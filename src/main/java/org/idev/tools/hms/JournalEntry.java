@@ -0,0 +1,141 @@
+package org.idev.tools.hms;
+
+import com.eclipsesource.json.JsonObject;
+import fi.iki.elonen.Method;
+
+import java.util.Map;
+
+/**
+ * A request recorded by the journal, with the rule which answered it
+ */
+public class JournalEntry {
+    /**
+     * Rule id of requests no rule matched
+     */
+    public static final int NO_RULE = -1;
+
+    private final long sequence;
+    private final long timestamp;
+    private final long durationNanos;
+    private final String namespace;
+    private final Method method;
+    private final String uri;
+    private final String query;
+    private final Map<String, String> headers;
+    private final String body;
+    private final int ruleId;
+    private final int status;
+
+    public JournalEntry(long sequence, long timestamp, long durationNanos, String namespace, Method method, String uri, String query,
+                        Map<String, String> headers, String body, int ruleId, int status) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.durationNanos = durationNanos;
+        this.namespace = namespace;
+        this.method = method;
+        this.uri = uri;
+        this.query = query;
+        this.headers = headers;
+        this.body = body;
+        this.ruleId = ruleId;
+        this.status = status;
+    }
+
+    /**
+     * Position of the request among all those recorded, starting at 0
+     */
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * When the request was received, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * Time taken to find the response, not counting any delay or throttling of it
+     */
+    public long getDurationNanos() {
+        return this.durationNanos;
+    }
+
+    /**
+     * Namespace of the request, null for the default one
+     */
+    public String getNamespace() {
+        return this.namespace;
+    }
+
+    public Method getMethod() {
+        return this.method;
+    }
+
+    public String getUri() {
+        return this.uri;
+    }
+
+    /**
+     * Query string, null if none
+     */
+    public String getQuery() {
+        return this.query;
+    }
+
+    /**
+     * Headers, with lower case names
+     */
+    public Map<String, String> getHeaders() {
+        return this.headers;
+    }
+
+    /**
+     * Body as matched against the rules, null if none was read
+     */
+    public String getBody() {
+        return this.body;
+    }
+
+    /**
+     * Id of the rule which answered, {@link #NO_RULE} if none did
+     */
+    public int getRuleId() {
+        return this.ruleId;
+    }
+
+    /**
+     * Status code of the response
+     */
+    public int getStatus() {
+        return this.status;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject()
+            .add("sequence", this.sequence)
+            .add("timestamp", this.timestamp)
+            .add("durationMicros", this.durationNanos / 1000)
+            .add("method", this.method.name())
+            .add("uri", this.uri);
+        if (null != this.namespace) {
+            json.add("namespace", this.namespace);
+        }
+        if (null != this.query) {
+            json.add("query", this.query);
+        }
+        JsonObject headers = new JsonObject();
+        for (Map.Entry<String, String> header : this.headers.entrySet()) {
+            headers.add(header.getKey(), header.getValue());
+        }
+        json.add("headers", headers);
+        if (null != this.body) {
+            json.add("body", this.body);
+        }
+        if (NO_RULE != this.ruleId) {
+            json.add("rule", this.ruleId);
+        }
+        return json.add("status", this.status);
+    }
+}
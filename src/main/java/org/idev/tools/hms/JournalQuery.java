@@ -0,0 +1,184 @@
+package org.idev.tools.hms;
+
+import fi.iki.elonen.Method;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Which recorded requests to return
+ * <p/>
+ * Query parameters of /__requests:
+ * - method : e.g. "POST"
+ * - uri    : exact, or "regexp:" followed by an expression
+ * - rule   : id of the rule which answered, or "none" for requests no rule matched
+ * - since  : received at or after this time, in milliseconds since the epoch
+ * - until  : received before this time, in milliseconds since the epoch
+ * - limit  : only the most recent ones, at most this many
+ */
+public class JournalQuery {
+    private final String namespace;
+    private Method method;
+    private String uri;
+    private Pattern uriPattern;
+    private Integer ruleId;
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+    private int limit = Integer.MAX_VALUE;
+
+    /**
+     * Query for the requests of a namespace, null for the default one
+     */
+    public JournalQuery(String namespace) {
+        this.namespace = namespace;
+    }
+
+    /**
+     * Query built from the parameters of a /__requests request
+     *
+     * @throws IllegalArgumentException if a parameter is invalid
+     */
+    public static JournalQuery fromParameters(String namespace, Map<String, String> parameters) throws IllegalArgumentException {
+        JournalQuery query = new JournalQuery(namespace);
+        String value = parameters.get("method");
+        if (null != value) {
+            try {
+                query.withMethod(Method.valueOf(value.toUpperCase()));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Unknown method \"" + value + "\"");
+            }
+        }
+        value = parameters.get("uri");
+        if (null != value) {
+            query.withUri(value);
+        }
+        value = parameters.get("rule");
+        if (null != value) {
+            query.withRule("none".equals(value) ? JournalEntry.NO_RULE : parseInt("rule", value));
+        }
+        value = parameters.get("since");
+        if (null != value) {
+            query.withSince(parseLong("since", value));
+        }
+        value = parameters.get("until");
+        if (null != value) {
+            query.withUntil(parseLong("until", value));
+        }
+        value = parameters.get("limit");
+        if (null != value) {
+            query.withLimit(parseInt("limit", value));
+        }
+        return query;
+    }
+
+    public JournalQuery withMethod(Method method) {
+        this.method = method;
+        return this;
+    }
+
+    /**
+     * Only requests to the given URI, or matching "regexp:" followed by an expression
+     */
+    public JournalQuery withUri(String uri) throws IllegalArgumentException {
+        if (uri.startsWith(HeaderPredicate.REGEXP)) {
+            try {
+                this.uriPattern = Pattern.compile(uri.substring(HeaderPredicate.REGEXP.length()));
+            } catch (PatternSyntaxException ex) {
+                throw new IllegalArgumentException("Invalid uri expression \"" + uri + "\": " + ex.getMessage());
+            }
+            this.uri = null;
+        } else {
+            this.uri = uri;
+            this.uriPattern = null;
+        }
+        return this;
+    }
+
+    /**
+     * Only requests answered by the given rule, or matching none for {@link JournalEntry#NO_RULE}
+     */
+    public JournalQuery withRule(int ruleId) {
+        this.ruleId = ruleId;
+        return this;
+    }
+
+    /**
+     * Only requests received at or after the given time, in milliseconds since the epoch
+     */
+    public JournalQuery withSince(long since) {
+        this.since = since;
+        return this;
+    }
+
+    /**
+     * Only requests received before the given time, in milliseconds since the epoch
+     */
+    public JournalQuery withUntil(long until) {
+        this.until = until;
+        return this;
+    }
+
+    /**
+     * Only the most recent requests, at most this many
+     */
+    public JournalQuery withLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public String getNamespace() {
+        return this.namespace;
+    }
+
+    public Integer getRuleId() {
+        return this.ruleId;
+    }
+
+    public long getSince() {
+        return this.since;
+    }
+
+    public long getUntil() {
+        return this.until;
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public boolean matches(JournalEntry entry) {
+        if (null == this.namespace ? null != entry.getNamespace() : !this.namespace.equals(entry.getNamespace())) {
+            return false;
+        }
+        if (null != this.method && this.method != entry.getMethod()) {
+            return false;
+        }
+        if (entry.getTimestamp() < this.since || entry.getTimestamp() >= this.until) {
+            return false;
+        }
+        if (null != this.ruleId && this.ruleId != entry.getRuleId()) {
+            return false;
+        }
+        if (null != this.uri && !this.uri.equals(entry.getUri())) {
+            return false;
+        }
+        return null == this.uriPattern || this.uriPattern.matcher(entry.getUri()).matches();
+    }
+
+    private static long parseLong(String name, String value) throws IllegalArgumentException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid " + name + " \"" + value + "\"");
+        }
+    }
+
+    private static int parseInt(String name, String value) throws IllegalArgumentException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid " + name + " \"" + value + "\"");
+        }
+    }
+}
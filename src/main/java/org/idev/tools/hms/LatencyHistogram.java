@@ -0,0 +1,78 @@
+package org.idev.tools.hms;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Durations counted in fixed, log-linear buckets, recorded without locks
+ * <p/>
+ * Every power of two from about 1 microsecond to about 17 seconds is split into 4 buckets of equal
+ * width, so that a bucket is never more than 25% wider than the durations it starts at; shorter
+ * durations share the first bucket, longer ones the last. The bucket of a duration takes a few
+ * shifts to find. Like {@link StripedCounter}, every thread records into a stripe of its own.
+ */
+public class LatencyHistogram {
+    private static final int MIN_BITS = 10;
+    private static final int MAX_BITS = 34;
+    private static final int SUB_BITS = 2;
+
+    /**
+     * Number of buckets with an upper bound; one more holds the longer durations
+     */
+    public static final int BUCKETS = 1 + ((MAX_BITS - MIN_BITS) << SUB_BITS);
+
+    // The buckets of a stripe, then its sum, rounded up to whole cache lines
+    private static final int ROW = (BUCKETS + 2 + StripedCounter.PADDING - 1) / StripedCounter.PADDING * StripedCounter.PADDING;
+    private static final int SUM = BUCKETS + 1;
+
+    private final AtomicLongArray cells = new AtomicLongArray(StripedCounter.STRIPES * ROW);
+
+    /**
+     * Count a duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        int row = StripedCounter.stripe() * ROW;
+        this.cells.getAndIncrement(row + bucket(nanos));
+        this.cells.getAndAdd(row + SUM, nanos);
+    }
+
+    /**
+     * Upper bound of a bucket, in nanoseconds, inclusive
+     */
+    public static long getUpperBound(int bucket) {
+        if (0 == bucket) {
+            return 1L << MIN_BITS;
+        }
+        int bits = MIN_BITS + ((bucket - 1) >> SUB_BITS);
+        int sub = (bucket - 1) & ((1 << SUB_BITS) - 1);
+        return (1L << bits) + ((long) (sub + 1) << (bits - SUB_BITS));
+    }
+
+    /**
+     * Bucket of a duration, in nanoseconds
+     */
+    static int bucket(long nanos) {
+        if (nanos <= 1L << MIN_BITS) {
+            return 0;
+        }
+        int bits = 63 - Long.numberOfLeadingZeros(nanos - 1);
+        if (bits >= MAX_BITS) {
+            return BUCKETS;
+        }
+        int sub = (int) ((nanos - 1) >>> (bits - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return 1 + ((bits - MIN_BITS) << SUB_BITS) + sub;
+    }
+
+    /**
+     * The counts of all buckets, the last one for durations beyond all bounds, followed by the sum
+     * of all durations in nanoseconds; durations recorded meanwhile may be partly included
+     */
+    public long[] snapshot() {
+        long[] counts = new long[BUCKETS + 2];
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += this.cells.get(stripe * ROW + i);
+            }
+        }
+        return counts;
+    }
+}
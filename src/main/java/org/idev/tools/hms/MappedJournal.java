@@ -0,0 +1,567 @@
+package org.idev.tools.hms;
+
+import fi.iki.elonen.Method;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Journal keeping every request, in files rather than on the heap
+ * <p/>
+ * Entries are appended as compact binary records to segment files of a fixed size, mapped into
+ * memory; once a segment is full the next one is started. All the heap holds is a sparse index of
+ * each segment: its time range, the rules its requests matched, and where every
+ * {@link #INDEX_INTERVAL}th record starts along with the latest time of the records before it.
+ * Queries read the records back from the segments, skipping the segments, and the beginning of
+ * segments, which can't hold any match.
+ * <p/>
+ * Record layout, all integers big-endian:
+ * - length of the rest of the record (int)
+ * - sequence, timestamp and duration in nanoseconds (long)
+ * - rule id (int), status (short), method (byte)
+ * - namespace, URI, query and body as strings: UTF-8 length (int), -1 for null, and bytes; bodies
+ *   are cut at {@link #MAX_BODY_BYTES}
+ * - number of headers (short), then each name and value as strings
+ * <p/>
+ * Clearing a namespace notes the sequence its entries start from again, and queries skip the
+ * entries before; segments left with cleared entries only are dropped. A dropped segment is
+ * unmapped, once no query reads it any more, and its file deleted; closing the journal drops them
+ * all. Segments left in the directory by a previous run are deleted when the journal is opened.
+ */
+public class MappedJournal implements RequestJournal {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    public static final int MIN_SEGMENT_SIZE = 1 << 20;
+    public static final int INDEX_INTERVAL = 256;
+    public static final int MAX_BODY_BYTES = 64 << 10;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final Method[] METHODS = Method.values();
+    private static final Unmapper UNMAPPER = Unmapper.find();
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final AtomicLong next = new AtomicLong();
+    private final Object lock = new Object();
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final Map<String, Long> cleared = new HashMap<String, Long>();
+    private final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+    private Segment current;
+    private long segmentNumber;
+    private boolean closed;
+
+    /**
+     * Journal with segments of the default size, none of them ever dropped
+     */
+    public MappedJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * @param directory   where to keep the segment files
+     * @param segmentSize size of each segment file, in bytes
+     * @param maxSegments number of segments kept, the oldest being deleted; 0 to keep them all
+     */
+    public MappedJournal(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid journal segment size " + segmentSize + ", at least " + MIN_SEGMENT_SIZE + " expected");
+        }
+        if (maxSegments < 0) {
+            throw new IllegalArgumentException("Invalid number of journal segments " + maxSegments);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        File[] stale = directory.listFiles();
+        for (File file : null == stale ? new File[0] : stale) {
+            if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+                file.delete();
+            }
+        }
+        synchronized (this.lock) {
+            this.roll();
+        }
+    }
+
+    @Override
+    public long claim() {
+        return this.next.getAndIncrement();
+    }
+
+    @Override
+    public void publish(JournalEntry entry) {
+
+        // Encode outside of the lock; under it, only copy
+        Encoder encoder = this.encoders.get();
+        ByteBuffer record = encoder.encode(entry);
+        synchronized (this.lock) {
+            if (this.closed) {
+                return;
+            }
+            if (null == this.current || this.current.buffer.remaining() < record.remaining()) {
+                try {
+                    this.roll();
+                } catch (IOException ex) {
+                    // Can't go on recording; the request itself is fine
+                    return;
+                }
+            }
+            this.current.append(record, entry);
+        }
+    }
+
+    @Override
+    public List<JournalEntry> query(JournalQuery query) {
+        List<Segment.View> views = new ArrayList<Segment.View>();
+        Map<String, Long> cleared;
+        synchronized (this.lock) {
+            for (Segment segment : this.segments) {
+                views.add(segment.view());
+            }
+            cleared = this.cleared.isEmpty() ? Collections.<String, Long>emptyMap() : new HashMap<String, Long>(this.cleared);
+        }
+
+        // Oldest first, keeping the most recent matches only
+        ArrayDeque<JournalEntry> found = new ArrayDeque<JournalEntry>();
+        try {
+            for (Segment.View view : views) {
+                if (view.maxTime < query.getSince() || view.minTime >= query.getUntil()) {
+                    continue;
+                }
+                if (null != query.getRuleId() && !view.rules.get(query.getRuleId() + 1)) {
+                    continue;
+                }
+                view.scan(query, cleared, found);
+            }
+        } finally {
+            synchronized (this.lock) {
+                for (Segment.View view : views) {
+                    view.segment.unpin();
+                }
+            }
+        }
+        return new ArrayList<JournalEntry>(found);
+    }
+
+    @Override
+    public void clear(String namespace) {
+        synchronized (this.lock) {
+            this.cleared.put(namespace, this.next.get());
+
+            // Drop the segments all the entries of which are cleared now
+            for (Iterator<Segment> i = this.segments.iterator(); i.hasNext(); ) {
+                Segment segment = i.next();
+                if (segment != this.current && segment.isCleared(this.cleared)) {
+                    i.remove();
+                    segment.retire();
+                }
+            }
+            this.forgetCleared();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.lock) {
+            this.closed = true;
+            for (Segment segment : this.segments) {
+                segment.retire();
+            }
+            this.segments.clear();
+            this.current = null;
+            this.cleared.clear();
+        }
+    }
+
+    @Override
+    public long getRecordedCount() {
+        return this.next.get();
+    }
+
+    /**
+     * Number of segment files
+     */
+    public int getSegmentCount() {
+        synchronized (this.lock) {
+            return this.segments.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedJournal " + this.directory;
+    }
+
+    /**
+     * Forget the namespaces cleared before the oldest entry kept; called with the lock held
+     */
+    private void forgetCleared() {
+        long oldest = this.segments.isEmpty() ? this.next.get() : this.segments.get(0).minSequence;
+        for (Iterator<Long> i = this.cleared.values().iterator(); i.hasNext(); ) {
+            if (i.next() <= oldest) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Start a new segment, dropping the oldest ones if there are too many; called with the lock held
+     */
+    private void roll() throws IOException {
+        File file = new File(this.directory, String.format("%s%019d%s", SEGMENT_PREFIX, this.segmentNumber++, SEGMENT_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(this.segmentSize);
+            this.current = new Segment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize));
+        } finally {
+            raf.close();
+        }
+        this.segments.add(this.current);
+        while (this.maxSegments > 0 && this.segments.size() > this.maxSegments) {
+            this.segments.remove(0).retire();
+        }
+        this.forgetCleared();
+    }
+
+    /**
+     * One segment file, and its sparse index
+     */
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final ByteBuffer records;
+        private final BitSet rules = new BitSet();
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+        private long minSequence = Long.MAX_VALUE;
+        private long maxSequence = Long.MIN_VALUE;
+        private final Set<String> namespaces = new HashSet<String>();
+        private int count;
+        private int readers;
+        private boolean retired;
+        private int[] indexPositions = new int[16];
+        private long[] indexMaxTimes = new long[16];
+        private int indexCount;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.records = buffer.asReadOnlyBuffer();
+        }
+
+        /**
+         * Copy a record at the end; called with the lock held
+         */
+        private void append(ByteBuffer record, JournalEntry entry) {
+            if (0 == this.count % INDEX_INTERVAL) {
+                if (this.indexCount == this.indexPositions.length) {
+                    this.indexPositions = Arrays.copyOf(this.indexPositions, 2 * this.indexCount);
+                    this.indexMaxTimes = Arrays.copyOf(this.indexMaxTimes, 2 * this.indexCount);
+                }
+                this.indexPositions[this.indexCount] = this.buffer.position();
+                this.indexMaxTimes[this.indexCount] = this.maxTime;
+                this.indexCount++;
+            }
+            this.buffer.put(record);
+            this.count++;
+            this.minTime = Math.min(this.minTime, entry.getTimestamp());
+            this.maxTime = Math.max(this.maxTime, entry.getTimestamp());
+            this.minSequence = Math.min(this.minSequence, entry.getSequence());
+            this.maxSequence = Math.max(this.maxSequence, entry.getSequence());
+            this.namespaces.add(entry.getNamespace());
+            this.rules.set(entry.getRuleId() + 1);
+        }
+
+        /**
+         * Whether every entry was recorded before its namespace was cleared; called with the lock
+         * held
+         */
+        private boolean isCleared(Map<String, Long> cleared) {
+            for (String namespace : this.namespaces) {
+                Long from = cleared.get(namespace);
+                if (null == from || this.maxSequence >= from) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Drop the segment, right away unless queries are reading it, in which case the last one
+         * does; called with the lock held
+         */
+        private void retire() {
+            this.retired = true;
+            if (0 == this.readers) {
+                this.release();
+            }
+        }
+
+        /**
+         * Done reading the segment for a query; called with the lock held
+         */
+        private void unpin() {
+            if (0 == --this.readers && this.retired) {
+                this.release();
+            }
+        }
+
+        /**
+         * Unmap the segment before deleting its file, which some systems refuse while it is mapped
+         */
+        private void release() {
+            if (null != UNMAPPER) {
+                UNMAPPER.unmap(this.buffer);
+            }
+            this.file.delete();
+        }
+
+        /**
+         * What queries need of the segment, as it is now, which stays mapped until they are done;
+         * called with the lock held
+         */
+        private View view() {
+            this.readers++;
+            return new View(this, this.records.duplicate(), this.buffer.position(), (BitSet) this.rules.clone(), this.minTime, this.maxTime,
+                Arrays.copyOf(this.indexPositions, this.indexCount), Arrays.copyOf(this.indexMaxTimes, this.indexCount));
+        }
+
+        private static final class View {
+            private final Segment segment;
+            private final ByteBuffer records;
+            private final int end;
+            private final BitSet rules;
+            private final long minTime;
+            private final long maxTime;
+            private final int[] indexPositions;
+            private final long[] indexMaxTimes;
+
+            private View(Segment segment, ByteBuffer records, int end, BitSet rules, long minTime, long maxTime, int[] indexPositions,
+                         long[] indexMaxTimes) {
+                this.segment = segment;
+                this.records = records;
+                this.end = end;
+                this.rules = rules;
+                this.minTime = minTime;
+                this.maxTime = maxTime;
+                this.indexPositions = indexPositions;
+                this.indexMaxTimes = indexMaxTimes;
+            }
+
+            private void scan(JournalQuery query, Map<String, Long> cleared, ArrayDeque<JournalEntry> found) {
+
+                // Skip the records all received before the start of the query
+                int position = 0;
+                for (int i = 0; i < this.indexPositions.length && this.indexMaxTimes[i] < query.getSince(); i++) {
+                    position = this.indexPositions[i];
+                }
+
+                ByteBuffer records = this.records;
+                while (position < this.end) {
+                    records.position(position);
+                    int length = records.getInt();
+                    position += 4 + length;
+
+                    // Check the fixed part before decoding the rest
+                    long sequence = records.getLong();
+                    long timestamp = records.getLong();
+                    long duration = records.getLong();
+                    int ruleId = records.getInt();
+                    if (timestamp < query.getSince() || timestamp >= query.getUntil()
+                        || (null != query.getRuleId() && query.getRuleId() != ruleId)) {
+                        continue;
+                    }
+                    int status = records.getShort();
+                    Method method = METHODS[records.get()];
+                    String namespace = getString(records);
+                    Long from = cleared.get(namespace);
+                    if (null != from && sequence < from) {
+                        continue;
+                    }
+                    String uri = getString(records);
+                    String queryString = getString(records);
+                    String body = getString(records);
+                    int headerCount = records.getShort();
+                    Map<String, String> headers = new LinkedHashMap<String, String>(2 * headerCount);
+                    for (int i = 0; i < headerCount; i++) {
+                        headers.put(getString(records), getString(records));
+                    }
+
+                    JournalEntry entry = new JournalEntry(sequence, timestamp, duration, namespace, method, uri, queryString, headers, body,
+                        ruleId, status);
+                    if (query.matches(entry)) {
+                        found.addLast(entry);
+                        if (found.size() > query.getLimit()) {
+                            found.removeFirst();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (-1 == length) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Unmaps a buffer right away, rather than once it is garbage collected, through the cleaner
+     * of the JDK, which only its internal API reaches
+     */
+    private static final class Unmapper {
+        private final java.lang.reflect.Method clean;
+        private final Object unsafe;
+        private final java.lang.reflect.Method cleaner;
+
+        private Unmapper(java.lang.reflect.Method clean, Object unsafe, java.lang.reflect.Method cleaner) {
+            this.clean = clean;
+            this.unsafe = unsafe;
+            this.cleaner = cleaner;
+        }
+
+        /**
+         * The unmapper of this JVM, null if there is none
+         */
+        private static Unmapper find() {
+
+            // Java 9 and later: Unsafe.invokeCleaner(buffer)
+            try {
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                java.lang.reflect.Method clean = type.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = type.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return new Unmapper(clean, field.get(null), null);
+            } catch (ReflectiveOperationException ex) {
+                // Older
+            } catch (RuntimeException ex) {
+                // Not accessible
+            }
+
+            // Java 8 and before: ((DirectBuffer) buffer).cleaner().clean()
+            try {
+                java.lang.reflect.Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                return new Unmapper(Class.forName("sun.misc.Cleaner").getMethod("clean"), null, cleaner);
+            } catch (ReflectiveOperationException ex) {
+                return null;
+            } catch (RuntimeException ex) {
+                return null;
+            }
+        }
+
+        /**
+         * Unmap the buffer; it must not be used afterwards. If it can't be, it stays mapped until
+         * garbage collected.
+         */
+        private void unmap(MappedByteBuffer buffer) {
+            try {
+                if (null == this.cleaner) {
+                    this.clean.invoke(this.unsafe, buffer);
+                } else {
+                    this.clean.invoke(this.cleaner.invoke(buffer));
+                }
+            } catch (ReflectiveOperationException ex) {
+                // Left to the garbage collector
+            } catch (RuntimeException ex) {
+                // Left to the garbage collector
+            }
+        }
+    }
+
+    /**
+     * Encodes records into a buffer of its own, reused by one thread
+     */
+    private static final class Encoder {
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        private ByteBuffer encode(JournalEntry entry) {
+            while (true) {
+                try {
+                    this.buffer.clear();
+                    this.buffer.putInt(0);
+                    this.buffer.putLong(entry.getSequence());
+                    this.buffer.putLong(entry.getTimestamp());
+                    this.buffer.putLong(entry.getDurationNanos());
+                    this.buffer.putInt(entry.getRuleId());
+                    this.buffer.putShort((short) entry.getStatus());
+                    this.buffer.put((byte) entry.getMethod().ordinal());
+                    this.putString(entry.getNamespace(), Integer.MAX_VALUE);
+                    this.putString(entry.getUri(), Integer.MAX_VALUE);
+                    this.putString(entry.getQuery(), Integer.MAX_VALUE);
+                    this.putString(entry.getBody(), MAX_BODY_BYTES);
+                    Map<String, String> headers = entry.getHeaders();
+                    this.buffer.putShort((short) headers.size());
+                    for (Map.Entry<String, String> header : headers.entrySet()) {
+                        this.putString(header.getKey(), Integer.MAX_VALUE);
+                        this.putString(header.getValue(), Integer.MAX_VALUE);
+                    }
+                    this.buffer.putInt(0, this.buffer.position() - 4);
+                    this.buffer.flip();
+                    return this.buffer;
+                } catch (BufferOverflowException ex) {
+                    this.buffer = ByteBuffer.allocate(2 * this.buffer.capacity());
+                }
+            }
+        }
+
+        private void putString(String value, int maxBytes) {
+            if (null == value) {
+                this.buffer.putInt(-1);
+                return;
+            }
+
+            // Most values are ASCII, which needs no encoding
+            int start = this.buffer.position();
+            int length = Math.min(value.length(), maxBytes);
+            this.buffer.putInt(length);
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    this.buffer.position(start);
+                    byte[] bytes = value.getBytes(UTF_8);
+                    length = Math.min(bytes.length, maxBytes);
+                    this.buffer.putInt(length);
+                    this.buffer.put(bytes, 0, length);
+                    return;
+                }
+                this.buffer.put((byte) c);
+            }
+        }
+    }
+}
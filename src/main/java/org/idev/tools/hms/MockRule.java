@@ -1,14 +1,29 @@
 package org.idev.tools.hms;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonObject.Member;
 import com.eclipsesource.json.JsonValue;
 
+import fi.iki.elonen.BodySource;
+import fi.iki.elonen.EntityTag;
+import fi.iki.elonen.Fault;
+import fi.iki.elonen.GeneratedBody;
+import fi.iki.elonen.GzipEncoder;
+import fi.iki.elonen.HeaderNames;
+import fi.iki.elonen.MappedFileBody;
 import fi.iki.elonen.Method;
 import fi.iki.elonen.Response;
 import fi.iki.elonen.Status;
@@ -21,22 +36,56 @@ public class MockRule {
   private Integer requestLimit;
   private Method requestMethod;
   private String requestUri;
-  private Map<String, String> requestHeaders;
+  private Pattern requestUriPattern;
+  private String[] requestHeaderNames;
+  private HeaderPredicate[] requestHeaderValues;
   private String requestBody;
+  private Pattern requestBodyPattern;
+
+  private String scenarioName;
+  private String scenarioRequiredState;
+  private String scenarioNewState;
 
   private Status responseStatus;
   private String responseMimeType;
   private Map<String, String> responseHeaders;
   private String responseBody;
-
-  private int called;
+  private byte[] responseBodyBytes;
+  private byte[] responseBodyGzip;
+  private volatile BodySource responseBodySource;
+  private Delay responseDelay;
+  private long responseThrottle;
+  private boolean responseChunked;
+
+  // Hashed, rendered or refreshed while serving, hence volatile, like responseBodySource, so that
+  // the threads serving the rule never see them half set
+  private volatile String responseETag;
+  private volatile byte[][] responseNotModified;
+
+  // Response sequence: each step is a rule holding only response settings, answering until
+  // the hit count reaches its end
+  private MockRule[] responseSteps;
+  private int[] responseStepEnds;
+  private int responseTimes;
+
+  // Weighted random choice: each choice is a rule holding only response settings, picked with a
+  // probability proportional to its weight
+  private MockRule[] responseChoices;
+  private double[] responseChoiceBounds;
+  private double responseWeight= 1;
+  private Long responseSeed;
+  private Fault responseFault;
+
+  private final AtomicInteger called;
+  private final AtomicInteger refused;
 
   /**
    * Constructor
    *
    */
   public MockRule() {
-    this.called= 0;
+    this.called= new AtomicInteger();
+    this.refused= new AtomicInteger();
   }
   /**
   /**
@@ -44,12 +93,19 @@ public class MockRule {
    *
    * Expected format:
    *  {
+   *    "scenario": {                               -- optional
+   *      "name" : "checkout",                      -- required
+   *      "requiredState" : "Started",              -- optional, match only in this state
+   *      "newState" : "paid"                       -- optional, move to this state on match
+   *    },
    *    "request": {                                -- required
    *      "limit" : 2,                              -- optional, default infinite
    *      "method" : "GET",                         -- optional
    *      "uri" : "/server/1",                      -- required
    *      "headers" : {                             -- optional
-   *        "Accept" : "text/plain"
+   *        "Accept" : "text/plain",                -- exact match
+   *        "Accept-Language" : "ignorecase:EN",    -- case-insensitive match
+   *        "User-Agent" : "regexp:curl/.*"         -- regular expression match
    *      },
    *      "body" : "text to match"                  -- optional
    *    },
@@ -59,19 +115,75 @@ public class MockRule {
    *      "headers" : {                             -- optional
    *        "Content-Length" : "100"
    *      },
-   *      "body" : "Here goes the response body"    -- optional
+   *      "body" : "Here goes the response body",   -- optional
+   *      "bodyFile" : "/path/to/file",             -- optional, instead of body; supports Range requests;
+   *                                                   over HTTP, see readFrom(JsonObject, File)
+   *      "bodyGenerator" : {                       -- optional, instead of body; supports Range requests
+   *        "size" : "10G",                         -- required, bytes or with a K, M or G suffix
+   *        "type" : "pattern",                     -- optional, "pattern" (default), "random" or "counter"
+   *        "pattern" : "abc",                      -- optional, for "pattern", default "x"
+   *        "seed" : 42                             -- optional, for "random", default 0
+   *      },
+   *      "delay" : 250,                            -- optional, see {@link Delay}
+   *      "throttle" : 1024                         -- optional, bytes per second, or
+   *      "throttle" : {
+   *        "bytesPerSecond" : 1024,
+   *        "chunked" : true                        -- optional, default false
+   *      }
    *    }
    *  }
+   *
+   * Instead of a single response, "response" may be a sequence answering the hits in turn:
+   *    "response": [
+   *      { "status" : 202, "times" : 3 },          -- "times" optional, default 1
+   *      { "status" : 200, "body" : "done" }       -- the last step answers for good, unless it has "times"
+   *    ]
+   *
+   * A response, or a step, may also pick one of several responses at random, e.g. for 95% success,
+   * 4% server errors and 1% connection resets:
+   *    "response": {
+   *      "choices": [
+   *        { "weight" : 95, "status" : 200, "body" : "ok" },
+   *        { "weight" : 4, "status" : 500 },       -- "weight" optional, default 1
+   *        { "weight" : 1, "fault" : "reset" }     -- "close", "truncate", "reset" or "hang", see {@link Fault}
+   *      ],
+   *      "seed" : 42                               -- optional, to make the same choices on every run
+   *    }
    */
   public static MockRule readFrom(String txt) throws IOException, IllegalArgumentException {
     return MockRule.readFrom(JsonObject.readFrom(txt));
   }
 
+  /**
+   * Reads from a String the rule of a client that is not trusted with the files of the server,
+   * see readFrom(JsonObject, File)
+   *
+   */
+  public static MockRule readFrom(String txt, File bodyFileDirectory) throws IOException, IllegalArgumentException {
+    return MockRule.readFrom(JsonObject.readFrom(txt), bodyFileDirectory);
+  }
+
   /**
    * Reads from JsonObject
    *
+   * "bodyFile" may name any file the server can read, so this is for the Java API and rule files
+   * only; rules posted over HTTP are read with readFrom(JsonObject, File).
    */
   public static MockRule readFrom(JsonObject json) throws IllegalArgumentException {
+    return MockRule.readFrom(json, false, null);
+  }
+
+  /**
+   * Reads from JsonObject the rule of a client that is not trusted with the files of the server
+   *
+   * "bodyFile" is then a path relative to bodyFileDirectory, and is rejected if it leads outside of
+   * it, or altogether if bodyFileDirectory is null.
+   */
+  public static MockRule readFrom(JsonObject json, File bodyFileDirectory) throws IllegalArgumentException {
+    return MockRule.readFrom(json, true, bodyFileDirectory);
+  }
+
+  private static MockRule readFrom(JsonObject json, boolean restricted, File bodyFileDirectory) throws IllegalArgumentException {
     MockRule rule= new MockRule();
 
     // Check required properties
@@ -85,6 +197,21 @@ public class MockRule {
       throw new IllegalArgumentException("json.response is required");
     }
 
+    // Read scenario
+    JsonValue scenario= json.get("scenario");
+    if (null != scenario) {
+      JsonObject scenarioJson= scenario.asObject();
+      JsonValue scenarioName= scenarioJson.get("name");
+      if (null == scenarioName) {
+        throw new IllegalArgumentException("json.scenario.name is required");
+      }
+      JsonValue requiredState= scenarioJson.get("requiredState");
+      JsonValue newState= scenarioJson.get("newState");
+      rule.setScenario(scenarioName.asString().trim(),
+          null == requiredState ? null : requiredState.asString().trim(),
+          null == newState ? null : newState.asString().trim());
+    }
+
     // Read request
     JsonObject requestJson= request.asObject();
     for (Member member : requestJson) {
@@ -118,9 +245,44 @@ public class MockRule {
       }
     }
 
-    // Read response
-    JsonObject responseJson= response.asObject();
-    for (Member member : responseJson) {
+    // Read response, or response sequence
+    if (response.isArray()) {
+      List<MockRule> steps= new ArrayList<MockRule>();
+      for (JsonValue value : response.asArray()) {
+        MockRule step= new MockRule();
+        readResponse(step, value.asObject(), restricted, bodyFileDirectory);
+        if (null == step.getResponseStatus() && null == step.responseChoices) {
+          throw new IllegalArgumentException("json.response[" + steps.size() + "].status is required");
+        }
+        steps.add(step);
+      }
+      if (steps.isEmpty()) {
+        throw new IllegalArgumentException("json.response must not be empty");
+      }
+      rule.setResponseSteps(steps);
+    } else {
+      readResponse(rule, response.asObject(), restricted, bodyFileDirectory);
+    }
+
+    // Check required members are set
+    if (null == rule.getRequestUri() || 0 == rule.getRequestUri().length()) {
+      throw new IllegalArgumentException("json.request.uri is required");
+    }
+
+    if (null == rule.getResponseStatus() && null == rule.responseSteps && null == rule.responseChoices) {
+      throw new IllegalArgumentException("json.response.status is required");
+    }
+
+    return rule;
+  }
+
+  /**
+   * Reads json.response, or one step of it
+   *
+   */
+  private static void readResponse(MockRule rule, JsonObject json, boolean restricted, File bodyFileDirectory)
+      throws IllegalArgumentException {
+    for (Member member : json) {
       String name= member.getName();
 
       if (name.equals("status")) {
@@ -144,18 +306,163 @@ public class MockRule {
         rule.setResponseBody(member.getValue().asString().trim());
         continue;
       }
+
+      if (name.equals("bodyFile")) {
+        String path= member.getValue().asString().trim();
+        rule.setResponseBodyFile(restricted ? resolveBodyFile(path, bodyFileDirectory) : path);
+        continue;
+      }
+
+      if (name.equals("bodyGenerator")) {
+        rule.setResponseBodySource(readGenerator(member.getValue().asObject()));
+        continue;
+      }
+
+      if (name.equals("delay")) {
+        rule.setResponseDelay(Delay.readFrom(member.getValue()));
+        continue;
+      }
+
+      if (name.equals("throttle")) {
+        JsonValue throttle= member.getValue();
+        if (throttle.isObject()) {
+          JsonValue chunked= throttle.asObject().get("chunked");
+          rule.setResponseChunked(null != chunked && chunked.asBoolean());
+          throttle= throttle.asObject().get("bytesPerSecond");
+          if (null == throttle) {
+            throw new IllegalArgumentException("json.response.throttle.bytesPerSecond is required");
+          }
+        }
+        rule.setResponseThrottle(throttle.asLong());
+        continue;
+      }
+
+      if (name.equals("times")) {
+        rule.setResponseTimes(member.getValue().asInt());
+        continue;
+      }
+
+      if (name.equals("fault")) {
+        rule.setResponseFault(parseFault(member.getValue().asString().trim()));
+        continue;
+      }
+
+      if (name.equals("weight")) {
+        rule.setResponseWeight(member.getValue().asDouble());
+        continue;
+      }
+
+      if (name.equals("seed")) {
+        rule.setResponseSeed(member.getValue().asLong());
+        continue;
+      }
+
+      if (name.equals("choices")) {
+        List<MockRule> choices= new ArrayList<MockRule>();
+        for (JsonValue value : member.getValue().asArray()) {
+          MockRule choice= new MockRule();
+          readResponse(choice, value.asObject(), restricted, bodyFileDirectory);
+          if (null == choice.getResponseStatus()) {
+            throw new IllegalArgumentException("json.response.choices[" + choices.size() + "].status is required");
+          }
+          choices.add(choice);
+        }
+        if (choices.isEmpty()) {
+          throw new IllegalArgumentException("json.response.choices must not be empty");
+        }
+        rule.setResponseChoices(choices);
+        continue;
+      }
     }
 
-    // Check required members are set
-    if (null == rule.getRequestUri() || 0 == rule.getRequestUri().length()) {
-      throw new IllegalArgumentException("json.request.uri is required");
+    // A fault needs no status
+    if (null != rule.responseFault && null == rule.getResponseStatus()) {
+      rule.setResponseStatus(Status.OK);
     }
+  }
 
-    if (null == rule.getResponseStatus()) {
-      throw new IllegalArgumentException("json.response.status is required");
+  /**
+   * Resolve the path of a body file against the directory it must be in
+   *
+   */
+  private static String resolveBodyFile(String path, File directory) throws IllegalArgumentException {
+    if (null == directory) {
+      throw new IllegalArgumentException("json.response.bodyFile is only allowed in rule files and from the Java API");
+    }
+    try {
+      String root= directory.getCanonicalPath();
+      File file= new File(root, path).getCanonicalFile();
+      if (!file.getPath().startsWith(root + File.separator)) {
+        throw new IllegalArgumentException("json.response.bodyFile must be within the body file directory");
+      }
+      return file.getPath();
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("json.response.bodyFile: " + ex.getMessage());
     }
+  }
 
-    return rule;
+  /**
+   * Parse a fault name such as "reset"
+   *
+   */
+  private static Fault parseFault(String name) throws IllegalArgumentException {
+    for (Fault fault: Fault.values()) {
+      if (fault.name().equalsIgnoreCase(name)) return fault;
+    }
+    throw new IllegalArgumentException("json.response.fault has an invalid value \"" + name + "\"");
+  }
+
+  /**
+   * Reads json.response.bodyGenerator
+   *
+   */
+  private static GeneratedBody readGenerator(JsonObject json) throws IllegalArgumentException {
+    JsonValue size= json.get("size");
+    if (null == size) {
+      throw new IllegalArgumentException("json.response.bodyGenerator.size is required");
+    }
+    long length= size.isNumber() ? size.asLong() : parseSize(size.asString().trim());
+
+    JsonValue type= json.get("type");
+    String kind= null == type ? "pattern" : type.asString().trim();
+
+    if (kind.equals("pattern")) {
+      JsonValue pattern= json.get("pattern");
+      try {
+        return GeneratedBody.pattern(length, (null == pattern ? "x" : pattern.asString()).getBytes("UTF-8"));
+      } catch (UnsupportedEncodingException ex) {
+        throw new IllegalStateException(ex);
+      }
+    }
+
+    if (kind.equals("random")) {
+      JsonValue seed= json.get("seed");
+      return GeneratedBody.random(length, null == seed ? 0 : seed.asLong());
+    }
+
+    if (kind.equals("counter")) {
+      return GeneratedBody.counter(length);
+    }
+
+    throw new IllegalArgumentException("json.response.bodyGenerator.type has an invalid value \"" + kind + "\"");
+  }
+
+  /**
+   * Parse a size such as "512", "64K", "100M" or "10G"
+   *
+   */
+  private static long parseSize(String size) throws IllegalArgumentException {
+    long unit= 1;
+    char suffix= 0 == size.length() ? ' ' : Character.toUpperCase(size.charAt(size.length() - 1));
+    if ('K' == suffix) unit= 1L << 10;
+    if ('M' == suffix) unit= 1L << 20;
+    if ('G' == suffix) unit= 1L << 30;
+
+    try {
+      return Long.parseLong(1 == unit ? size : size.substring(0, size.length() - 1).trim()) * unit;
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("json.response.bodyGenerator.size has an invalid value \"" + size + "\"");
+    }
   }
 
   /**
@@ -173,40 +480,38 @@ public class MockRule {
     if (null != uri && null != this.requestUri) {
 
       // Regular expression match
-      if (
-          7 > this.requestUri.length() &&
-          this.requestUri.substring(0, 7).equals("regexp:") &&
-          !uri.matches(this.requestUri.substring(7))
-      ) {
-        return false;
-      }
+      if (null != this.requestUriPattern) {
+        if (!this.requestUriPattern.matcher(uri).matches()) {
+          return false;
+        }
 
       // Exact match
-      if (!uri.equals(this.requestUri)) {
+      } else if (!uri.equals(this.requestUri)) {
         return false;
       }
     }
 
-    // Compare headers
-    if (null != headers && null != requestHeaders && !this.mapContainsMap( headers,requestHeaders)) {
-
-      return false;
+    // Compare headers; expected names are canonical so each lookup hits on identity
+    if (null != headers && null != this.requestHeaderNames) {
+      for (int i= 0; i < this.requestHeaderNames.length; i++) {
+        String actual= headers.get(this.requestHeaderNames[i]);
+        if (null == actual || !this.requestHeaderValues[i].test(actual)) {
+          return false;
+        }
+      }
     }
 
     // Compare bodies
     if (null != body && null != this.requestBody) {
 
       // Regular expression match
-      if (
-          7 > this.requestBody.length() &&
-          this.requestBody.substring(0, 7).equals("regexp:") &&
-          !body.matches(this.requestBody.substring(7))
-      ) {
-        return false;
-      }
+      if (null != this.requestBodyPattern) {
+        if (!this.requestBodyPattern.matcher(body).matches()) {
+          return false;
+        }
 
       // Exact match
-      if (!body.equals(this.requestBody)) {
+      } else if (!body.equals(this.requestBody)) {
         return false;
       }
     }
@@ -224,43 +529,160 @@ public class MockRule {
     // No no. No no no no. No no no no. No no there's no limit
     if (null == this.requestLimit) return;
 
+    int called= this.called.get() + this.refused.get();
+
     // Limit set but not consumed; too few requests
-    if (this.called < this.requestLimit) {
+    if (called < this.requestLimit) {
       throw new IllegalStateException(
         "Too few requests to \"" + this.requestUri + "\". Expected "
-        + this.requestLimit + " but received " + this.called
+        + this.requestLimit + " but received " + called
       );
     }
 
     // Limit set and exceeded; too many requests
-    if (this.called < this.requestLimit) {
+    if (called > this.requestLimit) {
       throw new IllegalStateException(
         "Too many requests to \"" + this.requestUri + "\". Expected "
-        + this.requestLimit + " but received " + this.called
+        + this.requestLimit + " but received " + called
       );
     }
   }
 
+  /**
+   * Take the next hit of this rule
+   *
+   * @return the number of hits taken before this one, or -1 if the rule can't answer any more
+   */
+  public int claim() {
+    int capacity= this.getCapacity();
+    while (true) {
+      int hit= this.called.get();
+      if (hit >= capacity) return -1;
+      if (this.called.compareAndSet(hit, hit + 1)) return hit;
+    }
+  }
+
+  /**
+   * Count a request this rule matched but could not answer any more, and no other rule answered
+   *
+   */
+  public void refuse() {
+    this.refused.incrementAndGet();
+  }
+
+  /**
+   * Check this rule can't answer any more: its limit is reached or its response sequence is over
+   *
+   */
+  public boolean isExhausted() {
+    return this.called.get() >= this.getCapacity();
+  }
+
+  /**
+   * Number of hits this rule can answer, Integer.MAX_VALUE if there is no end
+   *
+   */
+  private int getCapacity() {
+    int capacity= null == this.requestLimit ? Integer.MAX_VALUE : this.requestLimit;
+    if (null != this.responseStepEnds) {
+      capacity= Math.min(capacity, this.responseStepEnds[this.responseStepEnds.length - 1]);
+    }
+    return capacity;
+  }
+
   /**
    * Build the response for this mock rule
    *
    * Note: if count is not null and it is 0, throw IllegalStateException
    */
   public Response getResponse() throws IllegalStateException {
-    Response response;
+    return this.getResponse(null);
+  }
 
-    // Increment called count
-    this.called++;
+  /**
+   * Build the response for this mock rule, honouring the request headers where it applies
+   *
+   * Note: if count is not null and it is 0, throw IllegalStateException
+   */
+  public Response getResponse(Map<String, String> headers) throws IllegalStateException {
 
-    // Check limit
-    if (null != this.requestLimit && this.called > this.requestLimit) {
+    // Take a hit, within the limit
+    int hit= this.claim();
+    if (hit < 0) {
       throw new IllegalStateException(
         "Request limit for \"" + this.requestUri + "\" already exceeded"
       );
     }
 
+    return this.getResponse(hit, headers);
+  }
+
+  /**
+   * Build the response for the given hit of this mock rule, as taken by {@link #claim()}
+   *
+   */
+  public Response getResponse(int hit, Map<String, String> headers) {
+    if (null == this.responseSteps) {
+      return this.buildResponse(hit, headers);
+    }
+
+    // Find the step of the sequence; the last one answers the remaining hits
+    int step= 0;
+    while (step < this.responseSteps.length - 1 && hit >= this.responseStepEnds[step]) {
+      step++;
+    }
+    return this.responseSteps[step].buildResponse(hit, headers);
+  }
+
+  /**
+   * Build the response from the response settings of this rule
+   *
+   */
+  private Response buildResponse(int hit, Map<String, String> headers) {
+    Response response;
+
+    // Pick one of the weighted choices
+    if (null != this.responseChoices) {
+      return this.responseChoices[this.choose(hit)].buildResponse(hit, headers);
+    }
+
+    // Serve the body file as it is now, should it have changed since the rule was made
+    BodySource source= this.responseBodySource;
+    if (source instanceof MappedFileBody) {
+      MappedFileBody current= ((MappedFileBody) source).current();
+      if (current != source) {
+        this.setResponseBodySource(current);
+        source= current;
+      }
+    }
+
+    // Conditional request for a body the client already has
+    String etag= this.getETag();
+    if (null != etag && null != headers && null == this.responseFault) {
+      String ifNoneMatch= headers.get(HeaderNames.IF_NONE_MATCH);
+      boolean gzip= false;
+      if (EntityTag.matches(ifNoneMatch, etag) || (gzip= EntityTag.matches(ifNoneMatch, EntityTag.gzipVariant(etag)))) {
+        response= new Response(Status.NOT_MODIFIED, null, (String) null);
+        response.setRenderedHeader(this.getNotModifiedHeader(etag, gzip));
+        if (null != this.responseDelay) {
+          response.setDelay(this.responseDelay.next());
+        }
+        return response;
+      }
+    }
+
     // Initialize response
-    response= new Response(this.responseStatus, this.responseMimeType, this.responseBody);
+    boolean compressible= GzipEncoder.isCompressible(this.responseMimeType);
+    if (null != source) {
+      response= this.getSourceResponse(source, null == headers ? null : headers.get(HeaderNames.RANGE));
+      response.setCompressible(compressible);
+    } else {
+      response= new Response(this.responseStatus, this.responseMimeType,
+          null == this.responseBodyBytes ? null : new ByteArrayInputStream(this.responseBodyBytes));
+      if (compressible) {
+        response.setPrecompressed(this.responseBodyGzip);
+      }
+    }
 
     // Add response headers
     if (null != this.responseHeaders) {
@@ -268,10 +690,184 @@ public class MockRule {
         response.addHeader(entry.getKey(), entry.getValue());
       }
     }
+    if (null != etag && null == this.findResponseHeader("ETag")
+        && (Status.OK == response.getStatus() || Status.PARTIAL_CONTENT == response.getStatus())) {
+      response.addHeader("ETag", etag);
+    }
+
+    // Simulate a slow server
+    if (null != this.responseDelay) {
+      response.setDelay(this.responseDelay.next());
+    }
+
+    // Simulate a slow network
+    response.setThrottle(this.responseThrottle);
+    response.setChunkedTransfer(this.responseChunked);
+
+    // Simulate a broken server or network
+    response.setFault(this.responseFault);
+
+    return response;
+  }
+
+  /**
+   * The strong ETag of the response body: the one given in the response headers, else the one
+   * computed for the body; null if the response is not a static 200
+   */
+  private String getETag() {
+    if (Status.OK != this.responseStatus) return null;
+    String etag= this.findResponseHeader("ETag");
+    if (null != etag) return etag;
+
+    // Hashed on first use, so that loading many rules doesn't hash bodies never asked for
+    String computed= this.responseETag;
+    if (null == computed && null == this.responseBodySource && null != this.responseBodyBytes) {
+      computed= EntityTag.of(this.responseBodyBytes);
+      this.responseETag= computed;
+    }
+    return computed;
+  }
+
+  /**
+   * The 304 status line and headers, rendered on first use and kept until the response changes
+   *
+   * Holds what a 200 would carry besides the body: the ETag of the representation the client has,
+   * Vary, and the headers of the rule.
+   */
+  private byte[] getNotModifiedHeader(String etag, boolean gzip) {
+    byte[][] rendered= this.responseNotModified;
+    if (null == rendered) {
+      rendered= new byte[2][];
+      for (int i= 0; i < 2; i++) {
+        Map<String, String> headers= new HashMap<String, String>();
+        if (null != this.responseHeaders) {
+          headers.putAll(this.responseHeaders);
+        }
+        headers.put(null == this.findResponseHeader("ETag") ? "ETag" : this.findResponseHeaderName("ETag"),
+            1 == i ? EntityTag.gzipVariant(etag) : etag);
+        if (this.isGzipNegotiable()) {
+          headers.put("Vary", "Accept-Encoding");
+        }
+        rendered[i]= Response.renderHeader(Status.NOT_MODIFIED, headers);
+      }
+      this.responseNotModified= rendered;
+    }
+    return rendered[gzip ? 1 : 0];
+  }
+
+  /**
+   * Check if responses for this rule depend on the Accept-Encoding header
+   *
+   */
+  private boolean isGzipNegotiable() {
+    if (!GzipEncoder.isCompressible(this.responseMimeType)) return false;
+    if (null != this.responseBodySource) return this.responseBodySource.length() >= GzipEncoder.MIN_LENGTH;
+    return null != this.responseBodyGzip;
+  }
+
+  /**
+   * Value of the named response header, whatever its case
+   *
+   */
+  private String findResponseHeader(String name) {
+    String key= this.findResponseHeaderName(name);
+    return null == key ? null : this.responseHeaders.get(key);
+  }
+
+  private String findResponseHeaderName(String name) {
+    if (null == this.responseHeaders) return null;
+    for (String key: this.responseHeaders.keySet()) {
+      if (key.equalsIgnoreCase(name)) return key;
+    }
+    return null;
+  }
+
+  /**
+   * Pick a choice at random, in proportion to the weights
+   *
+   * With a seed the pick only depends on the seed and the hit number, so a run with the same
+   * requests makes the same picks whatever the threads do.
+   */
+  private int choose(int hit) {
+    double total= this.responseChoiceBounds[this.responseChoiceBounds.length - 1];
+    double random= null == this.responseSeed ? ThreadLocalRandom.current().nextDouble() : seededDouble(this.responseSeed, hit);
+    double point= random * total;
+
+    int choice= 0;
+    while (choice < this.responseChoiceBounds.length - 1 && point >= this.responseChoiceBounds[choice]) {
+      choice++;
+    }
+    return choice;
+  }
+
+  /**
+   * A double in [0, 1) mixed from the seed and the hit number (SplitMix64)
+   *
+   */
+  private static double seededDouble(long seed, int hit) {
+    long z= seed + (hit + 1) * 0x9E3779B97F4A7C15L;
+    z= (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z= (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    z= z ^ (z >>> 31);
+    return (z >>> 11) * 0x1.0p-53;
+  }
+
+  /**
+   * Build the response for the body file or generator, or for the requested part of it
+   *
+   * Only single byte ranges are supported; any other Range header gets the whole body.
+   */
+  private Response getSourceResponse(BodySource source, String range) {
+    long length= source.length();
+    Response response;
+
+    long[] bounds= Status.OK == this.responseStatus ? parseRange(range, length) : null;
+    if (null == bounds) {
+      response= new Response(this.responseStatus, this.responseMimeType, source, 0, length);
+    } else if (bounds[0] >= length) {
+      response= new Response(Status.RANGE_NOT_SATISFIABLE, this.responseMimeType, (String) null);
+      response.addHeader("Content-Range", "bytes */" + length);
+    } else {
+      long end= Math.min(bounds[1], length - 1);
+      response= new Response(Status.PARTIAL_CONTENT, this.responseMimeType, source, bounds[0], end - bounds[0] + 1);
+      response.addHeader("Content-Range", "bytes " + bounds[0] + "-" + end + "/" + length);
+    }
 
+    response.addHeader("Accept-Ranges", "bytes");
     return response;
   }
 
+  /**
+   * Parse "bytes=first-last", "bytes=first-" or "bytes=-suffix" into the first and last byte
+   * positions; returns null when there is no usable range, e.g. "bytes=5-3", which is then ignored
+   */
+  private static long[] parseRange(String range, long length) {
+    if (null == range || !range.startsWith("bytes=") || range.indexOf(',') >= 0) return null;
+
+    String spec= range.substring(6).trim();
+    int dash= spec.indexOf('-');
+    if (dash < 0) return null;
+
+    try {
+      String first= spec.substring(0, dash).trim();
+      String last= spec.substring(dash + 1).trim();
+
+      // Suffix range: the last N bytes
+      if (0 == first.length()) {
+        long suffix= Long.parseLong(last);
+        return 0 == suffix ? new long[] {length, length} : new long[] {Math.max(0, length - suffix), length - 1};
+      }
+
+      if (0 == last.length()) {
+        return new long[] {Long.parseLong(first), length - 1};
+      }
+      long[] bounds= {Long.parseLong(first), Long.parseLong(last)};
+      return bounds[1] < bounds[0] ? null : bounds;
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+
   /**
    * Check if all keys and values in map1 are found in map2
    *
@@ -288,20 +884,6 @@ public class MockRule {
     // Perfect match
     return true;
   }
-    private boolean mapContainsMap(Map<String, String> map1, Map<String, String> map2){
-        if(map2.size() == 0){
-            return  true;
-        }
-        Set<String> map2Keys = map2.keySet();
-        for (String key : map2Keys){
-            String map2Value = map2.get(key);
-            if (!(map1.containsKey(key) && map1.get(key).equals(map2Value))){
-                return false;
-            }
-        }
-        return true;
-
-    }
 
   /**
    * Getter for responseStatus
@@ -326,6 +908,196 @@ public class MockRule {
   public void setResponseBody(String body) {
     if (null == body || 0 == body.length()) return;
     this.responseBody= body;
+
+    // Encode once here rather than on every hit; keep a gzipped copy if it is worth it
+    try {
+      this.responseBodyBytes= body.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+    this.responseBodyGzip= null;
+    this.responseETag= null;
+    this.responseNotModified= null;
+    if (this.responseBodyBytes.length >= GzipEncoder.MIN_LENGTH) {
+      byte[] gzip= GzipEncoder.gzip(this.responseBodyBytes);
+      if (gzip.length < this.responseBodyBytes.length) {
+        this.responseBodyGzip= gzip;
+      }
+    }
+  }
+
+  /**
+   * Setter for responseBodyFile
+   *
+   */
+  public void setResponseBodyFile(String path) throws IllegalArgumentException {
+    if (null == path || 0 == path.length()) return;
+    try {
+      MappedFileBody file= MappedFileBody.open(new File(path));
+      this.responseBodySource= file;
+      this.responseETag= EntityTag.of(file);
+      this.responseNotModified= null;
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("json.response.bodyFile: " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Setter for responseBodySource, e.g. a {@link GeneratedBody}
+   *
+   */
+  public void setResponseBodySource(BodySource source) {
+    this.responseBodySource= source;
+    if (null == source) return;
+    this.responseETag= source instanceof MappedFileBody ? EntityTag.of((MappedFileBody) source) : null;
+    this.responseNotModified= null;
+  }
+
+  /**
+   * Setter for responseSteps, answering the hits in turn
+   *
+   */
+  public void setResponseSteps(List<MockRule> steps) {
+    if (null == steps || steps.isEmpty()) {
+      this.responseSteps= null;
+      this.responseStepEnds= null;
+      return;
+    }
+
+    this.responseSteps= steps.toArray(new MockRule[steps.size()]);
+    this.responseStepEnds= new int[this.responseSteps.length];
+    long end= 0;
+    for (int i= 0; i < this.responseSteps.length; i++) {
+      int times= this.responseSteps[i].responseTimes;
+      boolean last= i == this.responseSteps.length - 1;
+      end= 0 == times && last ? Integer.MAX_VALUE : Math.min(Integer.MAX_VALUE, end + Math.max(1, times));
+      this.responseStepEnds[i]= (int) end;
+    }
+  }
+
+  /**
+   * Setter for responseTimes, the number of hits a step of a response sequence answers
+   *
+   */
+  public void setResponseTimes(int times) {
+    if (times < 0) {
+      throw new IllegalArgumentException("json.response.times has an invalid value \"" + times + "\"");
+    }
+    this.responseTimes= times;
+  }
+
+  /**
+   * Setter for responseChoices, one of which is picked at random for every hit
+   *
+   */
+  public void setResponseChoices(List<MockRule> choices) {
+    if (null == choices || choices.isEmpty()) {
+      this.responseChoices= null;
+      this.responseChoiceBounds= null;
+      return;
+    }
+
+    this.responseChoices= choices.toArray(new MockRule[choices.size()]);
+    this.responseChoiceBounds= new double[this.responseChoices.length];
+    double bound= 0;
+    for (int i= 0; i < this.responseChoices.length; i++) {
+      bound+= this.responseChoices[i].responseWeight;
+      this.responseChoiceBounds[i]= bound;
+    }
+  }
+
+  /**
+   * Setter for responseWeight, how likely a choice is compared to the others
+   *
+   */
+  public void setResponseWeight(double weight) {
+    if (!(weight > 0)) {
+      throw new IllegalArgumentException("json.response.weight has an invalid value \"" + weight + "\"");
+    }
+    this.responseWeight= weight;
+  }
+
+  /**
+   * Setter for responseSeed; null to pick choices differently on every run
+   *
+   */
+  public void setResponseSeed(Long seed) {
+    this.responseSeed= seed;
+  }
+
+  /**
+   * Setter for responseFault; null to answer normally
+   *
+   */
+  public void setResponseFault(Fault fault) {
+    this.responseFault= fault;
+  }
+
+  /**
+   * Setter for the scenario: match only in requiredState (if not null) and move to newState (if not null)
+   *
+   */
+  public void setScenario(String name, String requiredState, String newState) {
+    if (null == name || 0 == name.length()) {
+      this.scenarioName= null;
+      this.scenarioRequiredState= null;
+      this.scenarioNewState= null;
+      return;
+    }
+    this.scenarioName= name;
+    this.scenarioRequiredState= requiredState;
+    this.scenarioNewState= newState;
+  }
+
+  /**
+   * Getter for scenarioName
+   *
+   */
+  public String getScenarioName() {
+    return this.scenarioName;
+  }
+
+  /**
+   * Getter for scenarioRequiredState
+   *
+   */
+  public String getScenarioRequiredState() {
+    return this.scenarioRequiredState;
+  }
+
+  /**
+   * Getter for scenarioNewState
+   *
+   */
+  public String getScenarioNewState() {
+    return this.scenarioNewState;
+  }
+
+  /**
+   * Setter for responseDelay
+   *
+   */
+  public void setResponseDelay(Delay delay) {
+    this.responseDelay= delay;
+  }
+
+  /**
+   * Setter for responseThrottle, in bytes per second
+   *
+   */
+  public void setResponseThrottle(long bytesPerSecond) {
+    if (bytesPerSecond < 0) {
+      throw new IllegalArgumentException("json.response.throttle has an invalid value \"" + bytesPerSecond + "\"");
+    }
+    this.responseThrottle= bytesPerSecond;
+  }
+
+  /**
+   * Setter for responseChunked
+   *
+   */
+  public void setResponseChunked(boolean chunked) {
+    this.responseChunked= chunked;
   }
 
   /**
@@ -335,6 +1107,7 @@ public class MockRule {
   public void setResponseMimeType(String mimeType) {
     if (null == mimeType || 0 == mimeType.length()) return;
     this.responseMimeType= mimeType;
+    this.responseNotModified= null;
   }
 
   /**
@@ -348,6 +1121,7 @@ public class MockRule {
       this.responseHeaders= new HashMap<String, String>();
     }
     this.responseHeaders.put(name, value);
+    this.responseNotModified= null;
   }
 
   /**
@@ -376,6 +1150,7 @@ public class MockRule {
   public void setRequestBody(String body) {
     if (null == body || 0 == body.length()) return;
     this.requestBody= body;
+    this.requestBodyPattern= compileRegexp(body, "json.request.body");
   }
 
   /**
@@ -385,10 +1160,24 @@ public class MockRule {
   private void addRequestHeader(String name, String value) {
     if (null == name || 0 == name.length() || null == value || 0 == value.length()) return;
 
-    if (null == this.requestHeaders) {
-      this.requestHeaders= new HashMap<String, String>();
+    String canonical= HeaderNames.canonical(name);
+    HeaderPredicate predicate= HeaderPredicate.parse(value);
+
+    // Replace the expectation for an already known header
+    if (null != this.requestHeaderNames) {
+      for (int i= 0; i < this.requestHeaderNames.length; i++) {
+        if (this.requestHeaderNames[i] == canonical) {
+          this.requestHeaderValues[i]= predicate;
+          return;
+        }
+      }
     }
-    this.requestHeaders.put(name.toLowerCase(), value);
+
+    int size= null == this.requestHeaderNames ? 0 : this.requestHeaderNames.length;
+    this.requestHeaderNames= null == this.requestHeaderNames ? new String[1] : Arrays.copyOf(this.requestHeaderNames, size + 1);
+    this.requestHeaderValues= null == this.requestHeaderValues ? new HeaderPredicate[1] : Arrays.copyOf(this.requestHeaderValues, size + 1);
+    this.requestHeaderNames[size]= canonical;
+    this.requestHeaderValues[size]= predicate;
   }
 
   /**
@@ -398,6 +1187,20 @@ public class MockRule {
   public void setRequestUri(String uri) {
     if (null == uri || 0 == uri.length()) return;
     this.requestUri= uri;
+    this.requestUriPattern= compileRegexp(uri, "json.request.uri");
+  }
+
+  /**
+   * Compile the expression of a "regexp:" value, null for a value to match exactly
+   *
+   */
+  private static Pattern compileRegexp(String value, String member) throws IllegalArgumentException {
+    if (!value.startsWith(HeaderPredicate.REGEXP)) return null;
+    try {
+      return Pattern.compile(value.substring(HeaderPredicate.REGEXP.length()));
+    } catch (RuntimeException ex) {
+      throw new IllegalArgumentException(member + " has an invalid expression \"" + value + "\": " + ex.getMessage());
+    }
   }
 
   /**
@@ -438,11 +1241,32 @@ public class MockRule {
     }
 
     public void setRequestHeaders(Map<String, String> requestHeaders) {
-        this.requestHeaders = requestHeaders;
+        this.requestHeaderNames = null;
+        this.requestHeaderValues = null;
+        if (null == requestHeaders) return;
+
+        for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
+            this.addRequestHeader(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Getter for requestHeaders, keyed by canonical header name
+     *
+     */
+    public Map<String, String> getRequestHeaders() {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (null != this.requestHeaderNames) {
+            for (int i = 0; i < this.requestHeaderNames.length; i++) {
+                headers.put(this.requestHeaderNames[i], this.requestHeaderValues[i].getDefinition());
+            }
+        }
+        return headers;
     }
 
     public void setResponseHeaders(Map<String, String> responseHeaders) {
         this.responseHeaders = responseHeaders;
+        this.responseNotModified = null;
     }
 
     public void setResponseStatus(Status responseStatus) {
@@ -456,11 +1280,18 @@ public class MockRule {
                 ", requestLimit=" + requestLimit +
                 ", requestMethod=" + requestMethod +
                 ", requestUri='" + requestUri + '\'' +
-                ", requestHeaders=" + requestHeaders +
+                ", requestHeaders=" + getRequestHeaders() +
                 ", responseStatus=" + responseStatus +
                 ", responseMimeType='" + responseMimeType + '\'' +
                 ", responseHeaders=" + responseHeaders +
                 ", responseBody='" + responseBody + '\'' +
+                ", responseBodySource=" + responseBodySource +
+                ", responseDelay=" + responseDelay +
+                ", responseThrottle=" + responseThrottle +
+                ", responseSteps=" + (null == responseSteps ? null : Arrays.asList(responseSteps)) +
+                ", responseChoices=" + (null == responseChoices ? null : Arrays.asList(responseChoices)) +
+                ", responseFault=" + responseFault +
+                ", scenario=" + (null == scenarioName ? null : scenarioName + ":" + scenarioRequiredState + "->" + scenarioNewState) +
                 ", called=" + called +
                 '}';
     }
@@ -0,0 +1,80 @@
+package org.idev.tools.hms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An isolated set of rules, with its own failures, call counters and scenario states, so that test
+ * suites running in parallel can share one server
+ * <p/>
+ * A request is served in the namespace named by its X-Mock-Namespace header, or by a path prefix
+ * which is stripped before matching: "/__ns/suite-7/__expect" registers a rule in "suite-7", and
+ * "/__ns/suite-7/users/1" is matched as "/users/1" against its rules. Requests naming no namespace
+ * use the default one, which also holds the rules loaded from files. A namespace is created when
+ * rules are first registered in it, and dropped when checked; until then, its requests match no
+ * rule.
+ */
+public class Namespace {
+    /**
+     * Header naming the namespace of a request, in lower case as headers are looked up
+     */
+    public static final String HEADER = "x-mock-namespace";
+
+    /**
+     * Path prefix naming the namespace of a request, followed by the name and the actual path
+     */
+    public static final String PATH_PREFIX = "/__ns/";
+
+    private final String name;
+    private volatile RuleRegistry rules = new RuleRegistry();
+    private volatile List<String> failures = newFailures();
+    private volatile CallCounters calls = new CallCounters();
+
+    public Namespace(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Name of the namespace, null for the default one
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    public RuleRegistry getRules() {
+        return this.rules;
+    }
+
+    /**
+     * Requests which matched no rule, and unmet expectations found by /__check
+     */
+    public List<String> getFailures() {
+        return this.failures;
+    }
+
+    /**
+     * How often each rule and request signature was called
+     */
+    public CallCounters getCalls() {
+        return this.calls;
+    }
+
+    /**
+     * Start over with the given rules, no failures and no calls
+     */
+    public void reset(RuleRegistry rules) {
+        this.rules = rules;
+        this.failures = newFailures();
+        this.calls = new CallCounters();
+    }
+
+    @Override
+    public String toString() {
+        return null == this.name ? "default namespace" : "namespace \"" + this.name + "\"";
+    }
+
+    private static List<String> newFailures() {
+        return Collections.synchronizedList(new ArrayList<String>());
+    }
+}
@@ -0,0 +1,540 @@
+package org.idev.tools.hms;
+
+import fi.iki.elonen.MappedFileBody;
+import fi.iki.elonen.Method;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.Response;
+import fi.iki.elonen.Status;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwards the requests no rule matches to an upstream server, and optionally records the
+ * exchanges as new rules so that the same requests are answered by the mock from then on
+ * <p/>
+ * Response bodies are streamed: the client receives them as they come from the upstream, and the
+ * upstream connection goes back to the pool once the body is complete. A recorded body is kept in
+ * memory up to 1MB, in a temporary file beyond that or when it is not text.
+ * <p/>
+ * Recorded rules match the method, the path and, for POST and PUT, the body of the request; the
+ * query string is not part of the match.
+ */
+public class Proxy {
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+    private static final int MAX_RECORDED_IN_MEMORY = 1 << 20;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * Request and response headers which are not passed on; the proxy frames both sides itself, and
+     * asks the upstream for identity bodies since compression is negotiated with the client.
+     */
+    private static final Set<String> SKIPPED_HEADERS = new HashSet<String>(Arrays.asList(
+        "connection", "keep-alive", "proxy-connection", "proxy-authenticate", "proxy-authorization", "te", "trailer",
+        "transfer-encoding", "upgrade", "host", "accept-encoding", "content-length", "content-type", "date",
+        Namespace.HEADER));
+
+    private final Upstream upstream;
+    private final boolean record;
+
+    public Proxy(Upstream upstream, boolean record) {
+        this.upstream = upstream;
+        this.record = record;
+    }
+
+    public Upstream getUpstream() {
+        return upstream;
+    }
+
+    public boolean isRecording() {
+        return record;
+    }
+
+    /**
+     * Forward a request to the upstream
+     *
+     * @param body       the request body if it was read already, else null
+     * @param bodyStream where to stream the request body from when it was not read
+     * @param registry   where to add the recorded rule
+     * @return the upstream response, with its body still to be read from the upstream
+     */
+    public Response forward(Method method, String uri, String query, Map<String, String> headers, String body,
+                            InputStream bodyStream, RuleRegistry registry) {
+        Upstream.Connection connection = null;
+        try {
+            connection = upstream.acquire(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (null == connection) {
+                return new Response(Status.SERVICE_UNAVAILABLE, NanoHTTPD.MIME_PLAINTEXT,
+                    "All " + upstream.getMaxConnections() + " connections to " + upstream + " are busy");
+            }
+
+            // Send the request; a pooled connection may have been closed by the upstream meanwhile
+            byte[] requestBody = null == body ? null : body.getBytes(UTF_8);
+            String statusLine;
+            try {
+                sendRequest(connection, method, uri, query, headers, requestBody, bodyStream);
+                statusLine = readLine(connection.getInputStream());
+            } catch (IOException ex) {
+                if (!connection.isReused() || (null == requestBody && 0 < contentLength(headers))) {
+                    throw ex;
+                }
+                statusLine = null;
+            }
+            if (null == statusLine && connection.isReused()) {
+                Upstream.Connection stale = connection;
+                connection = null;
+                connection = upstream.reopen(stale);
+                sendRequest(connection, method, uri, query, headers, requestBody, bodyStream);
+                statusLine = readLine(connection.getInputStream());
+            }
+            if (null == statusLine) {
+                throw new EOFException("Connection closed by the upstream");
+            }
+
+            // Read the response head
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line \"" + statusLine + "\"");
+            }
+            int code = Integer.parseInt(parts[1]);
+            Map<String, String> responseHeaders = new LinkedHashMap<String, String>();
+            String contentType = null;
+            String transferEncoding = null;
+            String connectionHeader = null;
+            long length = -1;
+            String line;
+            while (null != (line = readLine(connection.getInputStream())) && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                String lower = name.toLowerCase();
+                if (lower.equals("content-type")) {
+                    contentType = value;
+                } else if (lower.equals("content-length")) {
+                    length = Long.parseLong(value);
+                } else if (lower.equals("transfer-encoding")) {
+                    transferEncoding = value;
+                } else if (lower.equals("connection")) {
+                    connectionHeader = value;
+                }
+                if (!SKIPPED_HEADERS.contains(lower)) {
+                    String previous = responseHeaders.get(name);
+                    responseHeaders.put(name, null == previous ? value : previous + ", " + value);
+                }
+            }
+            if (null == line) {
+                throw new EOFException("Connection closed by the upstream");
+            }
+
+            // Work out how the body is framed
+            boolean chunked = null != transferEncoding && transferEncoding.toLowerCase().contains("chunked");
+            if (Method.HEAD == method || 204 == code || 304 == code || (code >= 100 && code < 200)) {
+                chunked = false;
+                length = 0;
+            }
+            boolean reusable = (chunked || length >= 0) && !"close".equalsIgnoreCase(connectionHeader);
+
+            Status status = toStatus(code);
+            Recording recording = record ? new Recording(method, uri, body, status, contentType, responseHeaders, registry) : null;
+            UpstreamBody data = new UpstreamBody(connection, chunked, chunked ? -1 : length, reusable, recording);
+            connection = null;
+
+            Response response = new Response(status, contentType, data);
+            for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+                response.addHeader(header.getKey(), header.getValue());
+            }
+            if (!data.isLengthKnown()) {
+                response.setChunkedTransfer(true);
+            }
+            return response;
+
+        } catch (IOException ex) {
+            return new Response(Status.BAD_GATEWAY, NanoHTTPD.MIME_PLAINTEXT, "Failed to forward to " + upstream + ": " + ex);
+        } catch (NumberFormatException ex) {
+            return new Response(Status.BAD_GATEWAY, NanoHTTPD.MIME_PLAINTEXT, "Invalid response from " + upstream + ": " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return new Response(Status.SERVICE_UNAVAILABLE, NanoHTTPD.MIME_PLAINTEXT, "Interrupted");
+        } finally {
+            if (null != connection) {
+                upstream.release(connection, false);
+            }
+        }
+    }
+
+    /**
+     * Close the idle upstream connections
+     */
+    public void close() {
+        upstream.close();
+    }
+
+    private void sendRequest(Upstream.Connection connection, Method method, String uri, String query,
+                             Map<String, String> headers, byte[] body, InputStream bodyStream) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append(method.name()).append(' ').append(encodePath(upstream.getBasePath() + uri));
+        if (null != query && query.length() > 0) {
+            head.append('?').append(query);
+        }
+        head.append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(upstream.getHostHeader()).append("\r\n");
+        if (null != headers) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (!SKIPPED_HEADERS.contains(header.getKey()) || header.getKey().equals("content-type")) {
+                    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+            }
+        }
+        head.append("Connection: keep-alive\r\n");
+
+        long length = null != body ? body.length : contentLength(headers);
+        if (length > 0 || (null != body && Method.GET != method && Method.HEAD != method)) {
+            head.append("Content-Length: ").append(length).append("\r\n");
+        }
+        head.append("\r\n");
+
+        OutputStream out = connection.getOutputStream();
+        out.write(head.toString().getBytes(ISO_8859_1));
+        if (null != body) {
+            out.write(body);
+        } else if (length > 0 && null != bodyStream) {
+            // Stream the body straight from the client
+            byte[] buff = new byte[8192];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = bodyStream.read(buff, 0, (int) Math.min(buff.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Request body ended " + remaining + " bytes early");
+                }
+                out.write(buff, 0, read);
+                remaining -= read;
+            }
+        }
+        out.flush();
+    }
+
+    private static long contentLength(Map<String, String> headers) {
+        String value = null == headers ? null : headers.get("content-length");
+        if (null == value) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * The status for the code; codes without one are mapped to the general status of their class
+     */
+    private static Status toStatus(int code) {
+        Status status = Status.lookup(code);
+        if (null != status) return status;
+        if (code < 300) return Status.OK;
+        if (code < 400) return Status.FOUND;
+        if (code < 500) return Status.BAD_REQUEST;
+        return Status.INTERNAL_ERROR;
+    }
+
+    /**
+     * Percent-encode a decoded path, leaving the characters allowed in a path as they are
+     */
+    private static String encodePath(String path) {
+        StringBuilder sb = new StringBuilder(path.length() + 16);
+        for (byte b : path.getBytes(UTF_8)) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "/-._~!$&'()*+,;=:@".indexOf(c) >= 0) {
+                sb.append((char) c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read a header line, without its line end
+     *
+     * @return the line, or null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int c;
+        while (-1 != (c = in.read())) {
+            if ('\n' == c) {
+                byte[] bytes = line.toByteArray();
+                int end = bytes.length > 0 && '\r' == bytes[bytes.length - 1] ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, end, ISO_8859_1);
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Header line too long");
+            }
+            line.write(c);
+        }
+        return 0 == line.size() ? null : line.toString("ISO-8859-1");
+    }
+
+    /**
+     * Body of an upstream response, read from the upstream connection as the client reads it
+     */
+    private final class UpstreamBody extends InputStream {
+        private final Upstream.Connection connection;
+        private final InputStream in;
+        private final boolean chunked;
+        private final boolean untilClose;
+        private final boolean reusable;
+        private final Recording recording;
+        private long remaining;
+        private boolean done;
+
+        private UpstreamBody(Upstream.Connection connection, boolean chunked, long length, boolean reusable, Recording recording) throws IOException {
+            this.connection = connection;
+            this.in = connection.getInputStream();
+            this.chunked = chunked;
+            this.untilClose = !chunked && length < 0;
+            this.reusable = reusable;
+            this.recording = recording;
+            this.remaining = chunked ? 0 : length;
+            if (0 == length) {
+                finish();
+            }
+        }
+
+        boolean isLengthKnown() {
+            return !chunked && !untilClose;
+        }
+
+        /**
+         * The remaining length, which the response takes as its Content-Length
+         */
+        @Override
+        public int available() {
+            return isLengthKnown() ? (int) Math.min(Integer.MAX_VALUE, remaining) : 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return -1 == read(one, 0, 1) ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+
+            try {
+                if (chunked && 0 == remaining && !nextChunk()) {
+                    return -1;
+                }
+
+                int read = in.read(b, off, untilClose ? len : (int) Math.min(len, remaining));
+                if (read < 0) {
+                    if (untilClose) {
+                        finish();
+                        return -1;
+                    }
+                    throw new EOFException("Upstream body ended " + remaining + " bytes early");
+                }
+                if (null != recording) {
+                    recording.write(b, off, read);
+                }
+
+                if (!untilClose) {
+                    remaining -= read;
+                    if (0 == remaining) {
+                        if (chunked) {
+                            readLine(in);
+                        } else {
+                            finish();
+                        }
+                    }
+                }
+                return read;
+            } catch (IOException ex) {
+                abort();
+                throw ex;
+            }
+        }
+
+        /**
+         * Read the size of the next chunk
+         *
+         * @return false after the last chunk
+         */
+        private boolean nextChunk() throws IOException {
+            String line = readLine(in);
+            if (null == line) {
+                throw new EOFException("Upstream body ended before the last chunk");
+            }
+            int extension = line.indexOf(';');
+            remaining = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+            if (remaining > 0) {
+                return true;
+            }
+
+            // Skip the trailer
+            while (null != (line = readLine(in)) && line.length() > 0) {
+                // Trailer headers are dropped
+            }
+            finish();
+            return false;
+        }
+
+        private void finish() throws IOException {
+            done = true;
+            upstream.release(connection, reusable);
+            if (null != recording) {
+                recording.complete();
+            }
+        }
+
+        private void abort() {
+            if (!done) {
+                done = true;
+                upstream.release(connection, false);
+                if (null != recording) {
+                    recording.discard();
+                }
+            }
+        }
+
+        /**
+         * Closing before the end leaves the connection in the middle of a response; it is dropped
+         */
+        @Override
+        public void close() {
+            abort();
+        }
+    }
+
+    /**
+     * An exchange being recorded as a rule
+     */
+    private static final class Recording {
+        private final Method method;
+        private final String uri;
+        private final String requestBody;
+        private final Status status;
+        private final String contentType;
+        private final Map<String, String> headers;
+        private final RuleRegistry registry;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File file;
+        private OutputStream fileOut;
+        private boolean failed;
+
+        private Recording(Method method, String uri, String requestBody, Status status, String contentType,
+                          Map<String, String> headers, RuleRegistry registry) {
+            this.method = method;
+            this.uri = uri;
+            this.requestBody = requestBody;
+            this.status = status;
+            this.contentType = contentType;
+            this.headers = headers;
+            this.registry = registry;
+        }
+
+        void write(byte[] b, int off, int len) {
+            if (failed) {
+                return;
+            }
+            try {
+                if (null == fileOut && memory.size() + len > MAX_RECORDED_IN_MEMORY) {
+                    spill();
+                }
+                if (null != fileOut) {
+                    fileOut.write(b, off, len);
+                } else {
+                    memory.write(b, off, len);
+                }
+            } catch (IOException ex) {
+                discard();
+            }
+        }
+
+        void complete() throws IOException {
+            if (failed) {
+                return;
+            }
+
+            MockRule rule = new MockRule();
+            rule.setRequestMethod(method);
+            rule.setRequestUri(uri);
+            rule.setRequestBody(requestBody);
+            rule.setResponseStatus(status);
+            rule.setResponseMimeType(contentType);
+            rule.setResponseHeaders(headers.isEmpty() ? null : headers);
+
+            // Text bodies are kept as such, others are served from a file
+            String text = null == fileOut ? decode(memory.toByteArray()) : null;
+            if (null != text) {
+                rule.setResponseBody(text);
+            } else if (null != fileOut || memory.size() > 0) {
+                if (null == fileOut) {
+                    spill();
+                }
+                fileOut.close();
+                rule.setResponseBodySource(MappedFileBody.open(file));
+            }
+            memory = null;
+            registry.add(rule);
+        }
+
+        void discard() {
+            failed = true;
+            memory = null;
+            if (null != fileOut) {
+                try {
+                    fileOut.close();
+                } catch (IOException ex) {
+                    // Deleted anyway
+                }
+                file.delete();
+            }
+        }
+
+        private void spill() throws IOException {
+            file = File.createTempFile("hms-recorded-", ".body");
+            file.deleteOnExit();
+            fileOut = new BufferedOutputStream(new FileOutputStream(file));
+            memory.writeTo(fileOut);
+            memory = new ByteArrayOutputStream(0);
+        }
+
+        private static String decode(byte[] bytes) {
+            try {
+                return UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes)).toString();
+            } catch (CharacterCodingException ex) {
+                return null;
+            }
+        }
+    }
+}
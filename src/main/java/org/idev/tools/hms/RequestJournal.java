@@ -0,0 +1,44 @@
+package org.idev.tools.hms;
+
+import java.util.List;
+
+/**
+ * Record of the requests matched against the rules
+ *
+ * @see RingJournal
+ * @see MappedJournal
+ */
+public interface RequestJournal {
+
+    /**
+     * Claim the sequence number of the next entry
+     */
+    long claim();
+
+    /**
+     * Store an entry built with a claimed sequence number
+     */
+    void publish(JournalEntry entry);
+
+    /**
+     * The entries the query asks for, oldest first
+     */
+    List<JournalEntry> query(JournalQuery query);
+
+    /**
+     * Forget the entries recorded so far in the given namespace, null for the default one; those
+     * of the other namespaces are kept
+     */
+    void clear(String namespace);
+
+    /**
+     * Release the files, or anything else beyond the heap, the journal holds; it records nothing
+     * afterwards
+     */
+    void close();
+
+    /**
+     * Number of requests recorded since the journal was created, including those no longer kept
+     */
+    long getRecordedCount();
+}
@@ -0,0 +1,29 @@
+package org.idev.tools.hms;
+
+import fi.iki.elonen.Method;
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Tracer of the phases of a request, adding those of the mock server to those of NanoHTTPD
+ * <p/>
+ * As with {@link NanoHTTPD.Tracer}, each phase starts with a call returning what to hand to the
+ * call ending it, null if the phase is not traced right now.
+ *
+ * @see org.idev.tools.hms.jfr.FlightRecorderTracer
+ */
+public interface RequestTracer extends NanoHTTPD.Tracer {
+    Object bodyReadStarted();
+
+    /**
+     * @param length the number of characters of the body
+     */
+    void bodyReadEnded(Object span, int length);
+
+    Object matchStarted();
+
+    /**
+     * @param ruleId the id of the matching rule, {@link JournalEntry#NO_RULE} if none matched
+     * @param rulesScanned the number of rules tried
+     */
+    void matchEnded(Object span, String namespace, Method method, String uri, int ruleId, int rulesScanned);
+}
@@ -0,0 +1,109 @@
+package org.idev.tools.hms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recent requests, in a ring buffer of fixed capacity
+ * <p/>
+ * Recording takes no lock: each request claims the next sequence number, and stores its entry in
+ * the slot for it, overwriting the entry a full turn older. Readers scan the slots while requests
+ * keep being recorded, and skip a slot which doesn't hold the entry of the sequence they expect,
+ * not written yet or already overwritten; entries are immutable, so never seen half written.
+ * <p/>
+ * Clearing a namespace only notes the sequence its entries start from again; the entries before
+ * are skipped until overwritten.
+ */
+public class RingJournal implements RequestJournal {
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private final AtomicReferenceArray<JournalEntry> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private final Map<String, Long> cleared = new HashMap<String, Long>();
+
+    /**
+     * @param capacity number of requests kept, rounded up to a power of 2
+     */
+    public RingJournal(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid journal capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<JournalEntry>(size);
+        this.mask = size - 1;
+    }
+
+    @Override
+    public long claim() {
+        return this.next.getAndIncrement();
+    }
+
+    @Override
+    public void publish(JournalEntry entry) {
+        this.slots.lazySet((int) (entry.getSequence() & this.mask), entry);
+    }
+
+    @Override
+    public List<JournalEntry> query(JournalQuery query) {
+        long end = this.next.get();
+        long start = end - this.slots.length();
+        Map<String, Long> cleared;
+        synchronized (this.cleared) {
+            cleared = this.cleared.isEmpty() ? Collections.<String, Long>emptyMap() : new HashMap<String, Long>(this.cleared);
+        }
+        List<JournalEntry> found = new ArrayList<JournalEntry>();
+
+        // Newest first, to stop once the limit is reached
+        for (long sequence = end - 1; sequence >= start && found.size() < query.getLimit(); sequence--) {
+            JournalEntry entry = this.slots.get((int) (sequence & this.mask));
+            if (null == entry || sequence != entry.getSequence()) {
+                continue;
+            }
+            Long from = cleared.get(entry.getNamespace());
+            if ((null == from || sequence >= from) && query.matches(entry)) {
+                found.add(entry);
+            }
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    @Override
+    public void clear(String namespace) {
+        long end = this.next.get();
+        synchronized (this.cleared) {
+            this.cleared.put(namespace, end);
+
+            // Forget the namespaces whose cleared entries were all overwritten since
+            for (Iterator<Long> i = this.cleared.values().iterator(); i.hasNext(); ) {
+                if (i.next() <= end - this.slots.length()) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing but the heap
+    }
+
+    @Override
+    public long getRecordedCount() {
+        return this.next.get();
+    }
+
+    public int getCapacity() {
+        return this.slots.length();
+    }
+}
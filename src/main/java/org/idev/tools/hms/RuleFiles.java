@@ -0,0 +1,225 @@
+package org.idev.tools.hms;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.eclipsesource.json.JsonValueHandler;
+import com.eclipsesource.json.ParseException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rule definitions loaded from files
+ * <p/>
+ * A file holds either JSON rules, as a single rule, an array of rules or rules separated by
+ * newlines, or a {@link RuleSnapshot}. The definitions are kept so the rules can be compiled
+ * afresh whenever the registry is reset, and so are the rules registered for each file, so that a
+ * changed file can be swapped in without touching the rules of the others.
+ */
+public class RuleFiles {
+    private final Map<File, Loaded> files = new LinkedHashMap<File, Loaded>();
+
+    /**
+     * Load the rules of a file, or of all files of a directory in name order, into the registry;
+     * loading a file again replaces its rules, while those of other files, the same or not, are
+     * kept
+     *
+     * @return the number of rules loaded
+     * @throws IllegalArgumentException if any rule is invalid, in which case nothing is loaded
+     */
+    public synchronized int load(File file, RuleRegistry registry) throws IOException, IllegalArgumentException {
+        Map<File, Loaded> loaded = new LinkedHashMap<File, Loaded>();
+        for (File each : list(file)) {
+            List<JsonObject> definitions = read(each);
+            loaded.put(each, new Loaded(definitions, compile(definitions, each.getPath())));
+        }
+        return this.publish(loaded, registry);
+    }
+
+    /**
+     * Load the given files again into the registry, dropping the rules of those which no longer
+     * exist; the rules of all other files are left as they are
+     *
+     * @throws IllegalArgumentException if any rule is invalid, in which case nothing is reloaded
+     */
+    public synchronized int reload(Collection<File> changed, RuleRegistry registry) throws IOException, IllegalArgumentException {
+        Map<File, Loaded> loaded = new LinkedHashMap<File, Loaded>();
+        for (File file : changed) {
+            file = file.getAbsoluteFile();
+            if (!file.isFile()) {
+                loaded.put(file, null);
+                continue;
+            }
+            List<JsonObject> definitions = read(file);
+            loaded.put(file, new Loaded(definitions, compile(definitions, file.getPath())));
+        }
+        return this.publish(loaded, registry);
+    }
+
+    /**
+     * Compile all the loaded definitions afresh into the registry, e.g. a new one after a reset
+     */
+    public synchronized void register(RuleRegistry registry) {
+        List<MockRule> rules = new ArrayList<MockRule>();
+        for (Map.Entry<File, Loaded> each : this.files.entrySet()) {
+            List<MockRule> compiled = compile(each.getValue().definitions, each.getKey().getPath());
+            each.setValue(new Loaded(each.getValue().definitions, compiled));
+            rules.addAll(compiled);
+        }
+        registry.addAll(rules);
+    }
+
+    /**
+     * The definitions of all loaded files
+     */
+    public synchronized List<JsonObject> getDefinitions() {
+        List<JsonObject> definitions = new ArrayList<JsonObject>();
+        for (Loaded each : this.files.values()) {
+            definitions.addAll(each.definitions);
+        }
+        return definitions;
+    }
+
+    /**
+     * Whether rules were loaded from the file
+     */
+    public synchronized boolean isLoaded(File file) {
+        return this.files.containsKey(file.getAbsoluteFile());
+    }
+
+    /**
+     * The files of a directory rules were loaded from, whether or not they still exist
+     */
+    public synchronized List<File> getFiles(File directory) {
+        directory = directory.getAbsoluteFile();
+        List<File> files = new ArrayList<File>();
+        for (File file : this.files.keySet()) {
+            if (directory.equals(file.getParentFile())) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Swap the previous rules of the files for the new ones, null for a file gone, in one update
+     */
+    private int publish(Map<File, Loaded> loaded, RuleRegistry registry) {
+        List<MockRule> removed = new ArrayList<MockRule>();
+        List<MockRule> added = new ArrayList<MockRule>();
+        for (Map.Entry<File, Loaded> each : loaded.entrySet()) {
+            Loaded previous = null == each.getValue() ? this.files.remove(each.getKey()) : this.files.put(each.getKey(), each.getValue());
+            if (null != previous) {
+                removed.addAll(previous.rules);
+            }
+            if (null != each.getValue()) {
+                added.addAll(each.getValue().rules);
+            }
+        }
+        registry.replace(removed, added);
+        return added.size();
+    }
+
+    /**
+     * Read the rule definitions of a single file
+     */
+    public static List<JsonObject> read(File file) throws IOException, IllegalArgumentException {
+        if (RuleSnapshot.isSnapshot(file)) {
+            return RuleSnapshot.read(file);
+        }
+
+        final List<JsonObject> definitions = new ArrayList<JsonObject>();
+        final String source = file.getPath();
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            JsonValue.readSequence(reader, new JsonValueHandler() {
+                @Override
+                public void handle(int index, JsonValue value) {
+                    if (!value.isObject()) {
+                        throw new IllegalArgumentException(source + ": rule " + index + ": json must be an object");
+                    }
+                    definitions.add(value.asObject());
+                }
+            });
+        } catch (ParseException ex) {
+            throw new IllegalArgumentException(source + ": invalid JSON: " + ex.getMessage());
+        } finally {
+            reader.close();
+        }
+        return definitions;
+    }
+
+    /**
+     * Compile rule definitions
+     *
+     * @param source where the definitions come from, for error messages
+     * @throws IllegalArgumentException naming the first invalid rule
+     */
+    public static List<MockRule> compile(List<JsonObject> definitions, String source) throws IllegalArgumentException {
+        List<MockRule> rules = new ArrayList<MockRule>(definitions.size());
+        for (int i = 0; i < definitions.size(); i++) {
+            try {
+                rules.add(MockRule.readFrom(definitions.get(i)));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException(source + ": rule " + i + ": " + ex.getMessage());
+
+                // A member of the wrong type
+            } catch (UnsupportedOperationException ex) {
+                throw new IllegalArgumentException(source + ": rule " + i + ": " + ex.getMessage());
+            }
+        }
+        return rules;
+    }
+
+    private static List<File> list(File file) throws IOException {
+        if (!file.isDirectory()) {
+            if (!file.isFile()) {
+                throw new IOException("No such rule file " + file);
+            }
+            return Arrays.asList(file.getAbsoluteFile());
+        }
+
+        File[] children = file.getAbsoluteFile().listFiles();
+        if (null == children) {
+            throw new IOException("Cannot list rule directory " + file);
+        }
+        Arrays.sort(children);
+        List<File> files = new ArrayList<File>();
+        for (File child : children) {
+            if (child.isFile() && isRuleFile(child)) {
+                files.add(child);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Whether a file of a rule directory holds rules, judging by its name
+     */
+    public static boolean isRuleFile(File file) {
+        String name = file.getName();
+        return name.endsWith(".json") || name.endsWith(".ndjson") || name.endsWith(".snapshot");
+    }
+
+    /**
+     * The definitions of a file and the rules compiled from them
+     */
+    private static final class Loaded {
+        private final List<JsonObject> definitions;
+        private final List<MockRule> rules;
+
+        private Loaded(List<JsonObject> definitions, List<MockRule> rules) {
+            this.definitions = definitions;
+            this.rules = rules;
+        }
+    }
+}
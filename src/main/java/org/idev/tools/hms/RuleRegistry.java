@@ -0,0 +1,404 @@
+package org.idev.tools.hms;
+
+import fi.iki.elonen.Method;
+import fi.iki.elonen.Response;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The registered mock rules and the state of their scenarios
+ * <p/>
+ * Requests are matched against an immutable snapshot of the rules, read without locking; the rare
+ * updates copy it. A rule which can't answer any more, its limit reached or its response sequence
+ * played out, is dropped from the rules used for matching but kept for /__check, which is told of
+ * the requests it would have matched that no other rule answered.
+ * <p/>
+ * Every rule has an id, stable until the registry is dropped, and sits in a slot of its own: a rule
+ * is updated or removed by id in constant time, by changing what its slot holds. Slots of removed
+ * rules are skipped, and swept out of the snapshot once they make up half of it.
+ * <p/>
+ * Every scenario is a single atomic reference to its current state. A rule moving a scenario to
+ * another state only answers if it can swap the state it saw for the new one.
+ */
+public class RuleRegistry {
+    /**
+     * State of every scenario before any rule moved it
+     */
+    public static final String STARTED = "Started";
+
+    private final Object lock = new Object();
+    private final ConcurrentMap<String, AtomicReference<String>> scenarios = new ConcurrentHashMap<String, AtomicReference<String>>();
+    private final Map<Integer, Slot> slots = new HashMap<Integer, Slot>();
+    private volatile Snapshot snapshot = new Snapshot(new Slot[0]);
+    private int nextId;
+    private int removed;
+
+    /**
+     * Add a rule after the existing ones
+     *
+     * @return the id of the rule
+     */
+    public int add(MockRule rule) {
+        return addAll(Collections.singletonList(rule));
+    }
+
+    /**
+     * Add rules after the existing ones, all becoming visible to requests at once
+     *
+     * @return the id of the first rule; the others follow in order
+     */
+    public int addAll(List<MockRule> rules) {
+        synchronized (lock) {
+            Slot[] all = Arrays.copyOf(snapshot.all, snapshot.all.length + rules.size());
+            int first = nextId;
+            for (int i = 0; i < rules.size(); i++) {
+                all[snapshot.all.length + i] = newSlot(rules.get(i));
+            }
+            snapshot = new Snapshot(all);
+            return first;
+        }
+    }
+
+    /**
+     * Swap rules for others, all in one update: the new rules take the place of the first old one
+     * still registered, or go after the existing rules
+     */
+    public void replace(List<MockRule> removed, List<MockRule> added) {
+        Set<MockRule> dropped = Collections.newSetFromMap(new IdentityHashMap<MockRule, Boolean>());
+        dropped.addAll(removed);
+        synchronized (lock) {
+            List<Slot> all = new ArrayList<Slot>(snapshot.all.length + added.size());
+            int position = -1;
+            for (Slot slot : snapshot.all) {
+                if (null == slot.rule) {
+                    continue;
+                }
+                if (dropped.contains(slot.rule)) {
+                    slots.remove(slot.id);
+                    if (-1 == position) {
+                        position = all.size();
+                    }
+                } else {
+                    all.add(slot);
+                }
+            }
+            List<Slot> fresh = new ArrayList<Slot>(added.size());
+            for (MockRule rule : added) {
+                fresh.add(newSlot(rule));
+            }
+            all.addAll(-1 == position ? all.size() : position, fresh);
+            this.removed = 0;
+            snapshot = new Snapshot(all.toArray(new Slot[all.size()]));
+        }
+    }
+
+    /**
+     * Put a new version of a rule in its place, keeping its id
+     *
+     * @return false if there is no such rule
+     */
+    public boolean update(int id, MockRule rule) {
+        synchronized (lock) {
+            Slot slot = slots.get(id);
+            if (null == slot) {
+                return false;
+            }
+            slot.rule = rule;
+
+            // A retired rule only comes back to matching with a new snapshot
+            if (slot.retired && !rule.isExhausted()) {
+                slot.retired = false;
+                snapshot = new Snapshot(snapshot.all);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Remove a rule
+     *
+     * @return false if there is no such rule
+     */
+    public boolean remove(int id) {
+        synchronized (lock) {
+            Slot slot = slots.remove(id);
+            if (null == slot) {
+                return false;
+            }
+            slot.rule = null;
+            if (++removed > snapshot.all.length / 2) {
+                sweep();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The rule with the given id, null if there is none
+     */
+    public MockRule get(int id) {
+        synchronized (lock) {
+            Slot slot = slots.get(id);
+            return null == slot ? null : slot.rule;
+        }
+    }
+
+    /**
+     * All the registered rules, including the exhausted ones
+     */
+    public List<MockRule> getRules() {
+        Slot[] all = snapshot.all;
+        List<MockRule> rules = new ArrayList<MockRule>(all.length);
+        for (Slot slot : all) {
+            MockRule rule = slot.rule;
+            if (null != rule) {
+                rules.add(rule);
+            }
+        }
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Number of rules still matching requests
+     */
+    public int getActiveCount() {
+        int count = 0;
+        for (Slot slot : snapshot.active) {
+            if (null != slot.rule) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Current state of the named scenario
+     */
+    public String getScenarioState(String name) {
+        return scenario(name).get();
+    }
+
+    /**
+     * Move the named scenario to the given state
+     */
+    public void setScenarioState(String name, String state) {
+        scenario(name).set(state);
+    }
+
+    /**
+     * Answer the request with the first rule matching it
+     *
+     * @return the response, or null when no rule matches
+     */
+    public Response respond(Method method, String uri, Map<String, String> headers, String body) {
+        Match match = match(method, uri, headers, body);
+        return null == match ? null : match.respond(headers);
+    }
+
+    /**
+     * Find the first rule matching the request, and claim a hit of it
+     *
+     * @return the match, or null when no rule matches
+     */
+    public Match match(Method method, String uri, Map<String, String> headers, String body) {
+        int scanned = 0;
+        for (Slot slot : snapshot.active) {
+            scanned++;
+            MockRule rule = slot.rule;
+            if (null == rule || !rule.matches(method, uri, headers, body)) {
+                continue;
+            }
+
+            // Check, and move, the scenario state in one step
+            AtomicReference<String> state = null;
+            String previous = null;
+            String required = rule.getScenarioRequiredState();
+            String next = rule.getScenarioNewState();
+            if (null != rule.getScenarioName()) {
+                state = scenario(rule.getScenarioName());
+                if (null == next) {
+                    previous = state.get();
+                    if (null != required && !required.equals(previous)) {
+                        continue;
+                    }
+                } else if (null == required) {
+                    previous = state.getAndSet(next);
+                } else {
+                    previous = state.get();
+                    if (!required.equals(previous) || !state.compareAndSet(previous, next)) {
+                        continue;
+                    }
+                }
+            }
+
+            int hit = rule.claim();
+            if (hit < 0 || rule.isExhausted()) {
+                retire(slot, rule);
+            }
+            if (hit < 0) {
+                // Lost the last hit to another request; undo the transition
+                if (null != state && null != next) {
+                    state.compareAndSet(next, previous);
+                }
+                continue;
+            }
+            return new Match(slot.id, rule, hit, scanned);
+        }
+
+        // Nothing answered: a rule that would have, had it not been exhausted, was asked too often
+        for (Slot slot : snapshot.all) {
+            MockRule rule = slot.rule;
+            if (null != rule && rule.isExhausted() && rule.matches(method, uri, headers, body)) {
+                rule.refuse();
+                break;
+            }
+        }
+        return null;
+    }
+
+    private AtomicReference<String> scenario(String name) {
+        AtomicReference<String> state = scenarios.get(name);
+        if (null == state) {
+            AtomicReference<String> fresh = new AtomicReference<String>(STARTED);
+            state = scenarios.putIfAbsent(name, fresh);
+            if (null == state) {
+                state = fresh;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Drop an exhausted rule from the rules used for matching, unless it was updated meanwhile
+     */
+    private void retire(Slot slot, MockRule rule) {
+        synchronized (lock) {
+            if (slot.rule != rule || slot.retired) {
+                return;
+            }
+            slot.retired = true;
+            Slot[] active = snapshot.active;
+            for (int i = 0; i < active.length; i++) {
+                if (active[i] == slot) {
+                    Slot[] remaining = new Slot[active.length - 1];
+                    System.arraycopy(active, 0, remaining, 0, i);
+                    System.arraycopy(active, i + 1, remaining, i, remaining.length - i);
+                    snapshot = new Snapshot(snapshot.all, remaining);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the slots of removed rules from the snapshot; called with the lock held
+     */
+    private void sweep() {
+        List<Slot> all = new ArrayList<Slot>(snapshot.all.length - removed);
+        for (Slot slot : snapshot.all) {
+            if (null != slot.rule) {
+                all.add(slot);
+            }
+        }
+        removed = 0;
+        snapshot = new Snapshot(all.toArray(new Slot[all.size()]));
+    }
+
+    /**
+     * Give a rule an id and a slot; called with the lock held
+     */
+    private Slot newSlot(MockRule rule) {
+        Slot slot = new Slot(nextId++, rule);
+        slots.put(slot.id, slot);
+        return slot;
+    }
+
+    /**
+     * A rule matching a request, and the hit of it the request claimed
+     */
+    public static final class Match {
+        private final int id;
+        private final MockRule rule;
+        private final int hit;
+        private final int scanned;
+
+        private Match(int id, MockRule rule, int hit, int scanned) {
+            this.id = id;
+            this.rule = rule;
+            this.hit = hit;
+            this.scanned = scanned;
+        }
+
+        public int getId() {
+            return this.id;
+        }
+
+        /**
+         * Number of rules tried until this one matched, this one included
+         */
+        public int getScanned() {
+            return this.scanned;
+        }
+
+        public MockRule getRule() {
+            return this.rule;
+        }
+
+        /**
+         * Build the response of the claimed hit
+         */
+        public Response respond(Map<String, String> headers) {
+            return this.rule.getResponse(this.hit, headers);
+        }
+    }
+
+    /**
+     * Place of a rule; what it holds changes when the rule is updated, and is null once removed
+     */
+    private static final class Slot {
+        private final int id;
+        private volatile MockRule rule;
+        private boolean retired;
+
+        private Slot(int id, MockRule rule) {
+            this.id = id;
+            this.rule = rule;
+        }
+    }
+
+    /**
+     * All slots, in order, and those of them which may still answer
+     */
+    private static final class Snapshot {
+        private final Slot[] all;
+        private final Slot[] active;
+
+        private Snapshot(Slot[] all) {
+            this.all = all;
+            List<Slot> active = new ArrayList<Slot>(all.length);
+            for (Slot slot : all) {
+                MockRule rule = slot.rule;
+                slot.retired = null != rule && rule.isExhausted();
+                if (null != rule && !slot.retired) {
+                    active.add(slot);
+                }
+            }
+            this.active = active.toArray(new Slot[active.size()]);
+        }
+
+        private Snapshot(Slot[] all, Slot[] active) {
+            this.all = all;
+            this.active = active;
+        }
+    }
+}
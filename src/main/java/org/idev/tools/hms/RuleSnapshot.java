@@ -0,0 +1,267 @@
+package org.idev.tools.hms;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonObject.Member;
+import com.eclipsesource.json.JsonValue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of rule definitions, loaded without parsing any JSON text
+ * <p/>
+ * Layout, all integers big-endian:
+ * - "HMSR" and the format version
+ * - the string table: count, then for each string its UTF-8 length and bytes; every name, string
+ *   and number of the rules is stored once however often it occurs
+ * - the rules: count, then each rule as a tree of values, see the TAG_ constants, referring to
+ *   strings by their index in the table
+ * <p/>
+ * Snapshots are read through a memory-mapped buffer, and equal strings and numbers come back as
+ * the same instances.
+ */
+public class RuleSnapshot {
+    private static final int MAGIC = 0x484d5352;
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_TRUE = 1;
+    private static final byte TAG_FALSE = 2;
+    private static final byte TAG_NUMBER = 3;
+    private static final byte TAG_STRING = 4;
+    private static final byte TAG_ARRAY = 5;
+    private static final byte TAG_OBJECT = 6;
+
+    private RuleSnapshot() {
+    }
+
+    /**
+     * Whether the file starts like a snapshot, as opposed to JSON rules
+     */
+    public static boolean isSnapshot(File file) throws IOException {
+        if (file.length() < 8) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return MAGIC == raf.readInt();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write the given rule definitions
+     */
+    public static void write(File file, List<JsonObject> rules) throws IOException {
+
+        // Collect the strings, each once, in order of first use
+        Map<String, Integer> strings = new HashMap<String, Integer>();
+        List<String> table = new ArrayList<String>();
+        for (JsonObject rule : rules) {
+            collect(rule, strings, table);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(table.size());
+            for (String string : table) {
+                byte[] bytes = string.getBytes(UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(rules.size());
+            for (JsonObject rule : rules) {
+                writeValue(out, rule, strings);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read the rule definitions of a snapshot
+     *
+     * @throws IOException if the file is not a snapshot, or a truncated one
+     */
+    public static List<JsonObject> read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return read(buffer);
+            } catch (RuntimeException ex) {
+                throw new IOException("Invalid rule snapshot " + file + ": " + ex);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<JsonObject> read(ByteBuffer buffer) throws IOException {
+        if (MAGIC != buffer.getInt()) {
+            throw new IOException("Not a rule snapshot");
+        }
+        int version = buffer.getInt();
+        if (VERSION != version) {
+            throw new IOException("Unsupported rule snapshot version " + version);
+        }
+
+        String[] strings = new String[buffer.getInt()];
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < strings.length; i++) {
+            int length = buffer.getInt();
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, 2 * bytes.length)];
+            }
+            buffer.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, UTF_8);
+        }
+
+        // Values of strings and numbers are immutable, so shared as well
+        Values values = new Values(strings);
+        int count = buffer.getInt();
+        List<JsonObject> rules = new ArrayList<JsonObject>(count);
+        for (int i = 0; i < count; i++) {
+            rules.add(readValue(buffer, values).asObject());
+        }
+        return rules;
+    }
+
+    private static void collect(JsonValue value, Map<String, Integer> strings, List<String> table) {
+        if (value.isObject()) {
+            for (Member member : value.asObject()) {
+                intern(member.getName(), strings, table);
+                collect(member.getValue(), strings, table);
+            }
+        } else if (value.isArray()) {
+            for (JsonValue item : value.asArray()) {
+                collect(item, strings, table);
+            }
+        } else if (value.isString()) {
+            intern(value.asString(), strings, table);
+        } else if (value.isNumber()) {
+            intern(value.toString(), strings, table);
+        }
+    }
+
+    private static void intern(String string, Map<String, Integer> strings, List<String> table) {
+        if (!strings.containsKey(string)) {
+            strings.put(string, table.size());
+            table.add(string);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, JsonValue value, Map<String, Integer> strings) throws IOException {
+        if (value.isObject()) {
+            JsonObject object = value.asObject();
+            out.writeByte(TAG_OBJECT);
+            out.writeInt(object.size());
+            for (Member member : object) {
+                out.writeInt(strings.get(member.getName()));
+                writeValue(out, member.getValue(), strings);
+            }
+        } else if (value.isArray()) {
+            JsonArray array = value.asArray();
+            out.writeByte(TAG_ARRAY);
+            out.writeInt(array.size());
+            for (JsonValue item : array) {
+                writeValue(out, item, strings);
+            }
+        } else if (value.isString()) {
+            out.writeByte(TAG_STRING);
+            out.writeInt(strings.get(value.asString()));
+        } else if (value.isNumber()) {
+            out.writeByte(TAG_NUMBER);
+            out.writeInt(strings.get(value.toString()));
+        } else if (value.isTrue()) {
+            out.writeByte(TAG_TRUE);
+        } else if (value.isFalse()) {
+            out.writeByte(TAG_FALSE);
+        } else {
+            out.writeByte(TAG_NULL);
+        }
+    }
+
+    private static JsonValue readValue(ByteBuffer buffer, Values values) throws IOException {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_NULL:
+                return JsonValue.NULL;
+            case TAG_TRUE:
+                return JsonValue.TRUE;
+            case TAG_FALSE:
+                return JsonValue.FALSE;
+            case TAG_NUMBER:
+                return values.number(buffer.getInt());
+            case TAG_STRING:
+                return values.string(buffer.getInt());
+            case TAG_ARRAY: {
+                int size = buffer.getInt();
+                JsonArray array = new JsonArray();
+                for (int i = 0; i < size; i++) {
+                    array.add(readValue(buffer, values));
+                }
+                return array;
+            }
+            case TAG_OBJECT: {
+                int size = buffer.getInt();
+                JsonObject object = new JsonObject();
+                for (int i = 0; i < size; i++) {
+                    String name = values.strings[buffer.getInt()];
+                    object.add(name, readValue(buffer, values));
+                }
+                return object;
+            }
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * The string table, and the values made of its entries so far
+     */
+    private static final class Values {
+        private final String[] strings;
+        private final JsonValue[] numbers;
+        private final JsonValue[] texts;
+
+        private Values(String[] strings) {
+            this.strings = strings;
+            this.numbers = new JsonValue[strings.length];
+            this.texts = new JsonValue[strings.length];
+        }
+
+        private JsonValue number(int index) {
+            if (null == numbers[index]) {
+                numbers[index] = JsonValue.readFrom(strings[index]);
+            }
+            return numbers[index];
+        }
+
+        private JsonValue string(int index) {
+            if (null == texts[index]) {
+                texts[index] = JsonValue.valueOf(strings[index]);
+            }
+            return texts[index];
+        }
+    }
+}
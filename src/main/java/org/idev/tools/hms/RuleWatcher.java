@@ -0,0 +1,137 @@
+package org.idev.tools.hms;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads rule files when they change
+ * <p/>
+ * Watches rule directories on a thread of its own. Changes are collected until none has come for
+ * a while, since editors and copies often write a file in several steps, and then only the files
+ * which changed are read again and swapped in. Requests keep being served throughout: those in
+ * progress finish with the rules they started with.
+ */
+public class RuleWatcher implements Runnable {
+    /**
+     * How long the directories must be quiet before the changes are reloaded
+     */
+    public static final long DEBOUNCE_MILLIS = 200;
+
+    /**
+     * Receives the changed files once they settle
+     */
+    public interface Listener {
+        void rulesChanged(Set<File> files);
+    }
+
+    private final WatchService service;
+    private final RuleFiles files;
+    private final Listener listener;
+    private final Thread thread;
+
+    /**
+     * @param files the files rules were loaded from, checked again when events were lost
+     */
+    public RuleWatcher(RuleFiles files, Listener listener) throws IOException {
+        this.service = FileSystems.getDefault().newWatchService();
+        this.files = files;
+        this.listener = listener;
+        this.thread = new Thread(this, "RuleWatcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Start watching the files of a directory
+     */
+    public void watch(File directory) throws IOException {
+        directory.getAbsoluteFile().toPath().register(this.service,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    /**
+     * Take every rule file of a directory as changed, as well as every file rules were loaded from
+     * there, so that those deleted are reported too; done when events were lost, and the listener
+     * is told right away
+     */
+    public void rescan(File directory) {
+        Set<File> changed = new LinkedHashSet<File>();
+        this.rescan(directory.getAbsoluteFile(), changed);
+        if (!changed.isEmpty()) {
+            this.listener.rulesChanged(changed);
+        }
+    }
+
+    /**
+     * Stop watching; changes not reloaded yet are dropped
+     */
+    public void close() {
+        try {
+            this.service.close();
+        } catch (IOException ex) {
+            // Nothing more to watch anyway
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Set<File> changed = new LinkedHashSet<File>();
+                this.collect(this.service.take(), changed);
+
+                // Wait for the changes to settle
+                WatchKey key;
+                while (null != (key = this.service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS))) {
+                    this.collect(key, changed);
+                }
+
+                if (!changed.isEmpty()) {
+                    this.listener.rulesChanged(changed);
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // Closed
+        } catch (InterruptedException ex) {
+            // Stopped
+        }
+    }
+
+    private void collect(WatchKey key, Set<File> changed) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // Events were lost; take every rule file of the directory as changed
+            if (StandardWatchEventKinds.OVERFLOW == event.kind()) {
+                this.rescan(directory.toFile(), changed);
+                continue;
+            }
+            File file = directory.resolve((Path) event.context()).toFile();
+            if (RuleFiles.isRuleFile(file)) {
+                changed.add(file);
+            }
+        }
+        key.reset();
+    }
+
+    private void rescan(File directory, Set<File> changed) {
+        File[] files = directory.listFiles();
+        for (File file : null == files ? new File[0] : files) {
+            if (RuleFiles.isRuleFile(file)) {
+                changed.add(file);
+            }
+        }
+
+        // Those loaded but gone, whose deletion may be among the lost events
+        changed.addAll(this.files.getFiles(directory));
+    }
+}
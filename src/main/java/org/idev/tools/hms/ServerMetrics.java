@@ -0,0 +1,166 @@
+package org.idev.tools.hms;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.Status;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Counters and latency histograms of the server, in the Prometheus text format
+ * <p/>
+ * Everything is recorded into {@link StripedCounter}s and {@link LatencyHistogram}s, so recording
+ * takes no lock and threads serving requests don't contend; the stripes are only summed when the
+ * metrics are read. Three phases of a request are timed:
+ * - parse: reading and decoding the request line and headers
+ * - match: finding the rule answering the request
+ * - write: sending the response; delayed, throttled and faulty responses are left out, their
+ *   pace being set on purpose
+ */
+public class ServerMetrics implements NanoHTTPD.Monitor {
+    /**
+     * Content type of the text format
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    private final StripedCounter connectionsOpened = new StripedCounter();
+    private final StripedCounter connectionsClosed = new StripedCounter();
+    private final StripedCounter bytesRead = new StripedCounter();
+    private final StripedCounter bytesWritten = new StripedCounter();
+    private final StripedCounter matches = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter[] statuses = new StripedCounter[Status.values().length];
+    private final LatencyHistogram parse = new LatencyHistogram();
+    private final LatencyHistogram match = new LatencyHistogram();
+    private final LatencyHistogram write = new LatencyHistogram();
+
+    public ServerMetrics() {
+        for (int i = 0; i < this.statuses.length; i++) {
+            this.statuses[i] = new StripedCounter();
+        }
+    }
+
+    @Override
+    public void connectionOpened() {
+        this.connectionsOpened.increment();
+    }
+
+    @Override
+    public void connectionClosed() {
+        this.connectionsClosed.increment();
+    }
+
+    @Override
+    public void bytesTransferred(long read, long written) {
+        if (0 != read) {
+            this.bytesRead.add(read);
+        }
+        if (0 != written) {
+            this.bytesWritten.add(written);
+        }
+    }
+
+    @Override
+    public void requestParsed(long nanos) {
+        this.parse.record(nanos);
+    }
+
+    @Override
+    public void responseSent(Status status, long nanos) {
+        this.statuses[status.ordinal()].increment();
+        if (nanos >= 0) {
+            this.write.record(nanos);
+        }
+    }
+
+    /**
+     * A request was matched against the rules, in the given time
+     */
+    public void requestMatched(boolean matched, long nanos) {
+        (matched ? this.matches : this.misses).increment();
+        this.match.record(nanos);
+    }
+
+    /**
+     * Append the metrics of the server
+     */
+    public void writeTo(StringBuilder out) {
+        long opened = this.connectionsOpened.sum();
+        long closed = this.connectionsClosed.sum();
+        family(out, "hms_connections_active", "gauge", "Connections open");
+        sample(out, "hms_connections_active", null, Math.max(0, opened - closed));
+        family(out, "hms_connections_total", "counter", "Connections accepted");
+        sample(out, "hms_connections_total", null, opened);
+
+        family(out, "hms_responses_total", "counter", "Responses sent, by status");
+        for (Status status : Status.values()) {
+            long count = this.statuses[status.ordinal()].sum();
+            if (0 != count) {
+                sample(out, "hms_responses_total", "status=\"" + status.getRequestStatus() + "\"", count);
+            }
+        }
+
+        family(out, "hms_rule_matches_total", "counter", "Requests a rule answered");
+        sample(out, "hms_rule_matches_total", null, this.matches.sum());
+        family(out, "hms_rule_misses_total", "counter", "Requests no rule answered");
+        sample(out, "hms_rule_misses_total", null, this.misses.sum());
+
+        family(out, "hms_received_bytes_total", "counter", "Bytes read from connections");
+        sample(out, "hms_received_bytes_total", null, this.bytesRead.sum());
+        family(out, "hms_sent_bytes_total", "counter", "Bytes written to connections");
+        sample(out, "hms_sent_bytes_total", null, this.bytesWritten.sum());
+
+        family(out, "hms_phase_duration_seconds", "histogram", "Time spent in each phase of a request");
+        histogram(out, "hms_phase_duration_seconds", "phase=\"parse\"", this.parse);
+        histogram(out, "hms_phase_duration_seconds", "phase=\"match\"", this.match);
+        histogram(out, "hms_phase_duration_seconds", "phase=\"write\"", this.write);
+    }
+
+    /**
+     * Append the hits of every rule of the namespaces, as counted by their {@link CallCounters}
+     */
+    public static void writeRuleHits(StringBuilder out, Collection<Namespace> namespaces) {
+        family(out, "hms_rule_hits_total", "counter", "Requests answered by each rule");
+        for (Namespace namespace : namespaces) {
+            String name = null == namespace.getName() ? "" : namespace.getName();
+            String prefix = "namespace=\"" + escape(name) + "\",rule=\"";
+            for (Map.Entry<Integer, Long> each : namespace.getCalls().getRuleCounts().entrySet()) {
+                sample(out, "hms_rule_hits_total", prefix + each.getKey() + "\"", each.getValue());
+            }
+        }
+    }
+
+    private static void family(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (null != labels) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        long[] counts = histogram.snapshot();
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            cumulative += counts[i];
+            sample(out, name + "_bucket", labels + ",le=\"" + seconds(LatencyHistogram.getUpperBound(i)) + "\"", cumulative);
+        }
+        cumulative += counts[LatencyHistogram.BUCKETS];
+        sample(out, name + "_bucket", labels + ",le=\"+Inf\"", cumulative);
+        out.append(name).append("_sum{").append(labels).append("} ").append(seconds(counts[LatencyHistogram.BUCKETS + 1])).append('\n');
+        sample(out, name + "_count", labels, cumulative);
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
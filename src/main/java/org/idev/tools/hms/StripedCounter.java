@@ -0,0 +1,53 @@
+package org.idev.tools.hms;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter many threads add to without contending
+ * <p/>
+ * The count is spread over stripes, each on a cache line of its own; a thread always adds to the
+ * same stripe, picked from its id, and the stripes are summed when the count is read. Adding is a
+ * single uncontended atomic add in the common case, reading costs one pass over the stripes.
+ */
+public class StripedCounter {
+    /**
+     * Longs per cache line, so that stripes never share one
+     */
+    static final int PADDING = 8;
+
+    /**
+     * Number of stripes, a power of two at least twice the number of processors
+     */
+    static final int STRIPES = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+    private static final int STRIPE_BITS = Integer.numberOfTrailingZeros(STRIPES);
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        this.cells.getAndAdd(stripe() * PADDING, 1);
+    }
+
+    public void add(long n) {
+        this.cells.getAndAdd(stripe() * PADDING, n);
+    }
+
+    /**
+     * The count; adds made meanwhile may or may not be included
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += this.cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * The stripe of the current thread; threads with consecutive ids, e.g. those of a pool, are
+     * spread over different stripes
+     */
+    static int stripe() {
+        return (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> (64 - STRIPE_BITS));
+    }
+}
@@ -0,0 +1,221 @@
+package org.idev.tools.hms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of keep-alive connections to one upstream HTTP server
+ * <p/>
+ * At most maxConnections exchanges are in progress at a time; further ones wait for a connection to
+ * be released. Idle connections are reused most recent first, and dropped once they have been idle
+ * for longer than the upstream is likely to keep them open.
+ */
+public class Upstream {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 60000;
+    private static final long IDLE_TIMEOUT_MILLIS = 30000;
+
+    private final String host;
+    private final int port;
+    private final String basePath;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<Connection>();
+
+    /**
+     * Constructor
+     *
+     * @param url            e.g. "http://localhost:8080" or "http://localhost:8080/api"
+     * @param maxConnections maximum number of concurrent exchanges
+     * @throws IllegalArgumentException if the URL is not a plain http one
+     */
+    public Upstream(String url, int maxConnections) throws IllegalArgumentException {
+        URL parsed;
+        try {
+            parsed = new URL(url);
+        } catch (MalformedURLException ex) {
+            throw new IllegalArgumentException("Invalid upstream URL \"" + url + "\": " + ex.getMessage());
+        }
+        if (!"http".equals(parsed.getProtocol())) {
+            throw new IllegalArgumentException("Only http upstreams are supported, not \"" + url + "\"");
+        }
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Invalid maximum number of upstream connections " + maxConnections);
+        }
+
+        this.host = parsed.getHost();
+        this.port = -1 == parsed.getPort() ? 80 : parsed.getPort();
+        String path = parsed.getPath();
+        this.basePath = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Take a connection, reusing an idle one if possible
+     *
+     * @return the connection, or null if none could be had within the timeout
+     * @throws IOException if a new connection can't be opened
+     */
+    public Connection acquire(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        if (!this.permits.tryAcquire(timeout, unit)) {
+            return null;
+        }
+
+        try {
+            long now = System.currentTimeMillis();
+            Connection connection;
+            while (null != (connection = this.idle.pollFirst())) {
+                if (now - connection.lastUsed < IDLE_TIMEOUT_MILLIS && !connection.socket.isClosed()) {
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close();
+            }
+            return this.open();
+        } catch (IOException ex) {
+            this.permits.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            this.permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Open a new connection in place of one which turned out to be closed by the upstream; the
+     * permit of the old connection goes to the new one
+     */
+    public Connection reopen(Connection stale) throws IOException {
+        stale.close();
+        try {
+            return this.open();
+        } catch (IOException ex) {
+            this.permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Give a connection back after a complete exchange; it is kept for reuse if possible
+     */
+    public void release(Connection connection, boolean reusable) {
+        if (reusable && !connection.socket.isClosed()) {
+            connection.lastUsed = System.currentTimeMillis();
+            this.idle.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+        this.permits.release();
+    }
+
+    /**
+     * Value for the Host header of forwarded requests
+     */
+    public String getHostHeader() {
+        return 80 == this.port ? this.host : this.host + ":" + this.port;
+    }
+
+    /**
+     * Path of the upstream to prefix forwarded URIs with, "" if none
+     */
+    public String getBasePath() {
+        return this.basePath;
+    }
+
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * Number of exchanges in progress
+     */
+    public int getActiveCount() {
+        return this.maxConnections - this.permits.availablePermits();
+    }
+
+    /**
+     * Number of connections kept for reuse
+     */
+    public int getIdleCount() {
+        return this.idle.size();
+    }
+
+    /**
+     * Close the idle connections
+     */
+    public void close() {
+        Connection connection;
+        while (null != (connection = this.idle.pollFirst())) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "http://" + this.getHostHeader() + this.basePath;
+    }
+
+    private Connection open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(this.host, this.port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            return new Connection(socket);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * One connection to the upstream
+     */
+    public static final class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long lastUsed;
+        private boolean reused;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        public InputStream getInputStream() {
+            return this.in;
+        }
+
+        public OutputStream getOutputStream() {
+            return this.out;
+        }
+
+        /**
+         * Whether the connection was used before, and may have been closed by the upstream meanwhile
+         */
+        public boolean isReused() {
+            return this.reused;
+        }
+
+        private void close() {
+            try {
+                this.socket.close();
+            } catch (IOException ex) {
+                // Gone anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.idev.tools.hms.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Reading the body of a request to match it against the rules
+ */
+@Name("org.idev.hms.BodyRead")
+@Label("Body Read")
+@Description("Reading the body of a request to match it against the rules")
+@Category(FlightRecorderTracer.CATEGORY)
+@StackTrace(false)
+class BodyReadEvent extends Event {
+    @Label("Length")
+    @Description("Characters of the body")
+    int length;
+}
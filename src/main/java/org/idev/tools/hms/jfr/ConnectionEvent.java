@@ -0,0 +1,33 @@
+package org.idev.tools.hms.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A connection, from its acceptance until it is closed
+ */
+@Name("org.idev.hms.Connection")
+@Label("Connection")
+@Description("A connection to the mock server, from its acceptance until it is closed")
+@Category(FlightRecorderTracer.CATEGORY)
+@StackTrace(false)
+class ConnectionEvent extends Event {
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("Requests")
+    int requests;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+}
@@ -0,0 +1,149 @@
+package org.idev.tools.hms.jfr;
+
+import fi.iki.elonen.Method;
+import fi.iki.elonen.Status;
+import jdk.jfr.FlightRecorder;
+import org.idev.tools.hms.JournalEntry;
+import org.idev.tools.hms.RequestTracer;
+
+/**
+ * Emits a Java Flight Recorder event for every phase of connections and requests
+ * <p/>
+ * The events are named "org.idev.hms.*", and are enabled, given thresholds and so on in the
+ * recording settings like any other. A phase whose event is disabled costs one check, so nothing
+ * is spent while no recording wants them. Until Flight Recorder is started, by a recording or
+ * -XX:StartFlightRecording, no event is even created: the first one would set up the whole
+ * recorder, which takes longer than starting the server.
+ * <p/>
+ * Needs the jdk.jfr API, so this package is only built on JDK 11 and later; the server loads it
+ * when the JVM running it has the API too.
+ */
+public class FlightRecorderTracer implements RequestTracer {
+    static final String CATEGORY = "HTTP Mock Server";
+
+    @Override
+    public Object connectionOpened(String remoteAddress) {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        ConnectionEvent event = new ConnectionEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.remoteAddress = remoteAddress;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void connectionClosed(Object span, int requests, long bytesRead, long bytesWritten) {
+        ConnectionEvent event = (ConnectionEvent) span;
+        event.end();
+        if (event.shouldCommit()) {
+            event.requests = requests;
+            event.bytesRead = bytesRead;
+            event.bytesWritten = bytesWritten;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object parseStarted() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        HeaderParseEvent event = new HeaderParseEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void parseEnded(Object span, Method method, String uri, int bytes) {
+        HeaderParseEvent event = (HeaderParseEvent) span;
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = method.name();
+            event.uri = uri;
+            event.headerBytes = bytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object bodyReadStarted() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        BodyReadEvent event = new BodyReadEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void bodyReadEnded(Object span, int length) {
+        BodyReadEvent event = (BodyReadEvent) span;
+        event.end();
+        if (event.shouldCommit()) {
+            event.length = length;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object matchStarted() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        RuleMatchEvent event = new RuleMatchEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void matchEnded(Object span, String namespace, Method method, String uri, int ruleId, int rulesScanned) {
+        RuleMatchEvent event = (RuleMatchEvent) span;
+        event.end();
+        if (event.shouldCommit()) {
+            event.namespace = namespace;
+            event.method = method.name();
+            event.uri = uri;
+            event.matched = JournalEntry.NO_RULE != ruleId;
+            event.ruleId = ruleId;
+            event.rulesScanned = rulesScanned;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object writeStarted() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        ResponseWriteEvent event = new ResponseWriteEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void writeEnded(Object span, Status status, long bytes) {
+        ResponseWriteEvent event = (ResponseWriteEvent) span;
+        event.end();
+        if (event.shouldCommit()) {
+            event.status = status.getRequestStatus();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.idev.tools.hms.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Reading and decoding the request line and headers of a request
+ */
+@Name("org.idev.hms.HeaderParse")
+@Label("Header Parse")
+@Description("Reading and decoding the request line and headers, from the arrival of their first bytes")
+@Category(FlightRecorderTracer.CATEGORY)
+@StackTrace(false)
+class HeaderParseEvent extends Event {
+    @Label("Method")
+    String method;
+
+    @Label("URI")
+    String uri;
+
+    @Label("Header Size")
+    @DataAmount
+    int headerBytes;
+}
@@ -0,0 +1,26 @@
+package org.idev.tools.hms.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Sending a response right away, i.e. neither delayed, throttled nor faulty
+ */
+@Name("org.idev.hms.ResponseWrite")
+@Label("Response Write")
+@Description("Sending a response which is neither delayed, throttled nor faulty")
+@Category(FlightRecorderTracer.CATEGORY)
+@StackTrace(false)
+class ResponseWriteEvent extends Event {
+    @Label("Status")
+    int status;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,37 @@
+package org.idev.tools.hms.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Finding the rule answering a request
+ */
+@Name("org.idev.hms.RuleMatch")
+@Label("Rule Match")
+@Description("Finding the rule answering a request")
+@Category(FlightRecorderTracer.CATEGORY)
+@StackTrace(false)
+class RuleMatchEvent extends Event {
+    @Label("Namespace")
+    String namespace;
+
+    @Label("Method")
+    String method;
+
+    @Label("URI")
+    String uri;
+
+    @Label("Matched")
+    boolean matched;
+
+    @Label("Rule Id")
+    @Description("Id of the matching rule, -1 if none matched")
+    int ruleId;
+
+    @Label("Rules Scanned")
+    int rulesScanned;
+}
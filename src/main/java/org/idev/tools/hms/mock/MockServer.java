@@ -3,6 +3,14 @@ package org.idev.tools.hms.mock;
 import fi.iki.elonen.Method;
 import org.idev.tools.hms.HttpServer;
 import org.idev.tools.hms.MockRule;
+import org.idev.tools.hms.Namespace;
+import org.idev.tools.hms.Proxy;
+import org.idev.tools.hms.Upstream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MockServer extends HttpServer implements Runnable {
 
@@ -11,18 +19,289 @@ public class MockServer extends HttpServer implements Runnable {
         this.reset();
     }
 
+    /**
+     * A server with the admin endpoints on a port of their own, see {@link HttpServer#HttpServer(String, int, int)}
+     */
+    public MockServer(String hostname, int port, int adminPort) {
+        super(hostname, port, adminPort);
+        this.reset();
+    }
+
+    /**
+     * Run a server until it is asked to shut down, with /__shutdown
+     * <p/>
+     * Usage: MockServer [--option=value ...], with the options
+     * - host: address to listen on, "localhost" by default
+     * - port: port to listen on, 8080 by default
+     * - admin-port: port of the admin endpoints, see {@link HttpServer#HttpServer(String, int, int)};
+     *   the same as port by default
+     * - rules: rule files, directories or snapshots loaded before the server starts, see
+     *   {@link #loadRules}; comma separated, and the option may be repeated
+     * - watch: rule directories loaded before the server starts and reloaded whenever they change,
+     *   see {@link #watchRules}; likewise
+     * - body-files: directory the rules posted over HTTP may answer with the files of, see
+     *   {@link #setBodyFileDirectory}
+     */
+    public static void main(String[] args) {
+        MockServer server;
+        try {
+            server = create(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.err.println("Usage: MockServer [--host=localhost] [--port=8080] [--admin-port=8081]"
+                + " [--rules=file,...] [--watch=directory,...] [--body-files=directory]");
+            System.exit(2);
+            return;
+        } catch (IOException ex) {
+            System.err.println("Couldn't load rules:\n" + ex);
+            System.exit(-1);
+            return;
+        }
+        server.run();
+    }
+
+    /**
+     * A server set up from the options of {@link #main}, with its rules loaded but not started yet
+     */
+    public static MockServer create(String... args) throws IOException, IllegalArgumentException {
+        String host = "localhost";
+        int port = 8080;
+        int adminPort = -1;
+        List<File> rules = new ArrayList<File>();
+        List<File> watched = new ArrayList<File>();
+        File bodyFiles = null;
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --option=value but got \"" + arg + "\"");
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            if ("host".equals(name)) {
+                host = value;
+            } else if ("port".equals(name)) {
+                port = Integer.parseInt(value);
+            } else if ("admin-port".equals(name)) {
+                adminPort = Integer.parseInt(value);
+            } else if ("rules".equals(name)) {
+                addFiles(rules, value);
+            } else if ("watch".equals(name)) {
+                addFiles(watched, value);
+            } else if ("body-files".equals(name)) {
+                bodyFiles = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option \"" + name + "\"");
+            }
+        }
+
+        MockServer server = new MockServer(host, port, adminPort);
+        server.setBodyFileDirectory(bodyFiles);
+        for (File file : rules) {
+            System.out.println("Loaded " + server.loadRules(file) + " rules from " + file);
+        }
+        for (File directory : watched) {
+            System.out.println("Loaded " + server.watchRules(directory) + " rules from " + directory + ", watching it");
+        }
+        return server;
+    }
+
+    private static void addFiles(List<File> files, String paths) {
+        for (String path : paths.split(",")) {
+            if (0 != path.trim().length()) {
+                files.add(new File(path.trim()));
+            }
+        }
+    }
+
     public OngoingRequest when(String path, Method method) {
         OngoingRequest request = new OngoingRequest(path,method, this);
         return request;
     }
 
-    protected int addRule(MockRule rule){
-        rules.add(rule);
-        return rules.indexOf(rule);
+    /**
+     * Register a rule
+     *
+     * @return the id of the rule, see updateRule and removeRule
+     */
+    public int addRule(MockRule rule){
+        return addRule(null, rule);
+    }
+
+    /**
+     * Register a rule in the given namespace, null for the default one
+     *
+     * @return the id of the rule within the namespace
+     */
+    public int addRule(String namespace, MockRule rule) {
+        return getNamespace(namespace).getRules().add(rule);
+    }
+
+    /**
+     * Put a new version of a rule in place of the one with the given id
+     *
+     * @return false if there is no such rule
+     */
+    public boolean updateRule(int id, MockRule rule) {
+        return updateRule(null, id, rule);
+    }
+
+    /**
+     * Put a new version of a rule of the given namespace, null for the default one, in place of
+     * the one with the given id
+     *
+     * @return false if there is no such rule
+     */
+    public boolean updateRule(String namespace, int id, MockRule rule) {
+        Namespace found = findNamespace(namespace);
+        return null != found && found.getRules().update(id, rule);
+    }
+
+    /**
+     * Remove the rule with the given id
+     *
+     * @return false if there is no such rule
+     */
+    public boolean removeRule(int id) {
+        return removeRule(null, id);
+    }
+
+    /**
+     * Remove the rule of the given namespace, null for the default one, with the given id
+     *
+     * @return false if there is no such rule
+     */
+    public boolean removeRule(String namespace, int id) {
+        Namespace found = findNamespace(namespace);
+        return null != found && found.getRules().remove(id);
+    }
+
+    /**
+     * Check the rule with the given id answered exactly the given number of requests
+     *
+     * @throws IllegalStateException otherwise
+     */
+    public void verify(int ruleId, int times) throws IllegalStateException {
+        verify(null, ruleId, times);
+    }
+
+    /**
+     * Check the rule of the given namespace, null for the default one, with the given id answered
+     * exactly the given number of requests
+     *
+     * @throws IllegalStateException otherwise
+     */
+    public void verify(String namespace, int ruleId, int times) throws IllegalStateException {
+        lookupNamespace(namespace).getCalls().verify(ruleId, times, times);
+    }
+
+    /**
+     * Check there were exactly the given number of requests to the path, whether or not a rule
+     * answered them; null for any method
+     *
+     * @throws IllegalStateException otherwise
+     */
+    public void verify(Method method, String path, int times) throws IllegalStateException {
+        verify(null, method, path, times);
+    }
+
+    /**
+     * Check there were exactly the given number of requests to the path in the given namespace,
+     * null for the default one, whether or not a rule answered them; null for any method
+     *
+     * @throws IllegalStateException otherwise
+     */
+    public void verify(String namespace, Method method, String path, int times) throws IllegalStateException {
+        lookupNamespace(namespace).getCalls().verify(method, path, times, times);
+    }
+
+    /**
+     * Check there was no request to the path; null for any method
+     *
+     * @throws IllegalStateException otherwise
+     */
+    public void verifyNever(Method method, String path) throws IllegalStateException {
+        verify(null, method, path, 0);
+    }
+
+    /**
+     * Check there was no request to the path in the given namespace, null for the default one;
+     * null for any method
+     *
+     * @throws IllegalStateException otherwise
+     */
+    public void verifyNever(String namespace, Method method, String path) throws IllegalStateException {
+        verify(namespace, method, path, 0);
+    }
+
+    /**
+     * Check the rules with the given ids were all called, first in that order
+     *
+     * @throws IllegalStateException otherwise
+     */
+    public void verifyInOrder(int... ruleIds) throws IllegalStateException {
+        verifyInOrder(null, ruleIds);
+    }
+
+    /**
+     * Check the rules of the given namespace, null for the default one, with the given ids were
+     * all called, first in that order
+     *
+     * @throws IllegalStateException otherwise
+     */
+    public void verifyInOrder(String namespace, int... ruleIds) throws IllegalStateException {
+        lookupNamespace(namespace).getCalls().verifyInOrder(ruleIds);
+    }
+
+    /**
+     * Current state of the named scenario
+     */
+    public String getScenarioState(String name) {
+        return getScenarioState(null, name);
+    }
+
+    /**
+     * Current state of the named scenario of the given namespace, null for the default one
+     */
+    public String getScenarioState(String namespace, String name) {
+        return lookupNamespace(namespace).getRules().getScenarioState(name);
+    }
+
+    /**
+     * Move the named scenario to the given state, e.g. back to {@link org.idev.tools.hms.RuleRegistry#STARTED}
+     */
+    public void setScenarioState(String name, String state) {
+        setScenarioState(null, name, state);
+    }
+
+    /**
+     * Move the named scenario of the given namespace, null for the default one, to the given state
+     */
+    public void setScenarioState(String namespace, String name, String state) {
+        getNamespace(namespace).getRules().setScenarioState(name, state);
+    }
+
+    /**
+     * The namespace of the given name, or an empty one, not kept, if it was never created
+     */
+    private Namespace lookupNamespace(String name) {
+        Namespace namespace = findNamespace(name);
+        return null == namespace ? new Namespace(name) : namespace;
+    }
+
+    /**
+     * Forward the requests no rule matches to the given upstream, e.g. "http://localhost:8080";
+     * with record, each exchange is added as a rule and replayed from then on
+     */
+    public void proxyTo(String upstreamUrl, int maxConnections, boolean record) {
+        setProxy(new Proxy(new Upstream(upstreamUrl, maxConnections), record));
     }
 
+    /**
+     * @deprecated rules are known by id rather than index; use {@link #updateRule}
+     */
+    @Deprecated
     public void replaceRuleAtIndex(MockRule newRule, int index){
-        rules.add(index, newRule);
+        updateRule(index, newRule);
     }
 
 }
\ No newline at end of file
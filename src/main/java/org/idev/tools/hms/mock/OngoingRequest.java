@@ -1,8 +1,14 @@
 package org.idev.tools.hms.mock;
 
+import fi.iki.elonen.BodySource;
+import fi.iki.elonen.Fault;
+import fi.iki.elonen.MappedFileBody;
 import fi.iki.elonen.Method;
 import fi.iki.elonen.Status;
+import org.idev.tools.hms.HeaderPredicate;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -14,10 +20,11 @@ import java.util.Map;
  * "method" : "GET",                         -- optional
  * "uri" : "/server/1",                      -- required
  * "headers" : {                             -- optional
- * "Accept" : "text/plain"
+ * "Accept" : "text/plain"                   -- see withHeaderIgnoringCase, withHeaderMatching
  * },
  * "body" : "text to match"                  -- optional
  * },
+ * "scenario": { ... }                       -- optional, see inScenario and OngoingResponse.willSetStateTo
  */
 
 public class OngoingRequest {
@@ -26,6 +33,10 @@ public class OngoingRequest {
     protected String body = null;
     protected Map<String, String> headers = new HashMap<String, String>();
     protected Integer limit = null;
+    protected String scenarioName = null;
+    protected String scenarioRequiredState = null;
+    protected String scenarioNewState = null;
+    protected String namespace = null;
 
     protected MockServer mockServer;
 
@@ -45,16 +56,52 @@ public class OngoingRequest {
     public OngoingResponse thenReturn(String body) {
         return new OngoingResponse(this, Status.OK, body);
     }
+    /**
+     * Respond with the content of the given file, which may be any file the server can read; rules
+     * posted over HTTP are restricted to HttpServer.setBodyFileDirectory instead
+     */
+    public OngoingResponse thenReturn(File bodyFile) {
+        try {
+            return thenReturn(MappedFileBody.open(bodyFile));
+        } catch (IOException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Respond with a body read from the given source, e.g. a {@link fi.iki.elonen.GeneratedBody}
+     */
+    public OngoingResponse thenReturn(BodySource body) {
+        return new OngoingResponse(this, Status.OK, body);
+    }
+
     public OngoingResponse thenReturn(Status status) {
         //status 200 by default
         return new OngoingResponse(this, status);
     }
 
+    /**
+     * Fail the request in the given way, e.g. reset the connection
+     */
+    public OngoingResponse thenFail(Fault fault) {
+        return new OngoingResponse(this, Status.OK).withFault(fault);
+    }
+
     public OngoingRequest withHeader(String headerName, String headerValue) {
         headers.put(headerName, headerValue);
         return this;
     }
 
+    public OngoingRequest withHeaderIgnoringCase(String headerName, String headerValue) {
+        headers.put(headerName, HeaderPredicate.IGNORE_CASE + headerValue);
+        return this;
+    }
+
+    public OngoingRequest withHeaderMatching(String headerName, String regexp) {
+        headers.put(headerName, HeaderPredicate.REGEXP + regexp);
+        return this;
+    }
+
     public OngoingRequest withBody(String body) {
         this.body = body;
         return this;
@@ -65,5 +112,24 @@ public class OngoingRequest {
         return this;
     }
 
+    /**
+     * Match only while the named scenario is in the given state; null for any state.
+     * Every scenario starts in {@link org.idev.tools.hms.RuleRegistry#STARTED}.
+     */
+    public OngoingRequest inScenario(String name, String requiredState) {
+        this.scenarioName = name;
+        this.scenarioRequiredState = requiredState;
+        return this;
+    }
+
+    /**
+     * Register the rule in the given namespace, matching only the requests made in it; see
+     * {@link org.idev.tools.hms.Namespace}
+     */
+    public OngoingRequest inNamespace(String namespace) {
+        this.namespace = namespace;
+        return this;
+    }
+
 
 }
@@ -1,9 +1,14 @@
 package org.idev.tools.hms.mock;
 
+import fi.iki.elonen.BodySource;
+import fi.iki.elonen.Fault;
 import fi.iki.elonen.Status;
+import org.idev.tools.hms.Delay;
 import org.idev.tools.hms.MockRule;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -14,30 +19,175 @@ import java.util.Map;
  * "headers" : {                             -- optional
  * "Content-Length" : "100"
  * },
- * "body" : "Here goes the body body"    -- optional
+ * "body" : "Here goes the body body",   -- optional
+ * "bodyFile" : "/path/to/file",             -- optional, see OngoingRequest.thenReturn(File); any file
+ *                                              here, only those of HttpServer.setBodyFileDirectory over HTTP
+ * "bodyGenerator" : { ... },                -- optional, see OngoingRequest.thenReturn(BodySource)
+ * "delay" : 250,                            -- optional
+ * "throttle" : 1024                         -- optional, bytes per second
+ * "times" : 3                               -- optional, see times and thenReturn
+ * "fault" : "reset"                         -- optional, see withFault
+ * "choices" : [ ... ]                       -- optional, see orReturn, withWeight and withSeed
  * }
  */
 public class OngoingResponse {
     protected OngoingRequest ongoingRequest;
     protected Status status;
     protected String body;
+    protected BodySource bodySource;
     protected Map<String, String> headers = new HashMap<String, String>();
     protected String mimeType = "text/html";
+    protected Delay delay;
+    protected long throttle;
+    protected boolean chunked;
+    protected int times;
+    protected Fault fault;
+    protected double weight = 1;
+    protected Long seed;
+    protected OngoingResponse previous;
+    /**
+     * Whether this response is picked at random instead of the previous one, rather than after it
+     */
+    protected boolean alternative;
 
     private Integer mockRuleId;
 
     public OngoingResponse(OngoingRequest ongoingRequest,Status status) {
-        this(ongoingRequest, status, null);
+        this(ongoingRequest, status, (String) null);
     }
 
     public OngoingResponse(OngoingRequest ongoingRequest, Status status, String body) {
+        this(ongoingRequest, status, body, null);
+    }
+
+    public OngoingResponse(OngoingRequest ongoingRequest, Status status, BodySource bodySource) {
+        this(ongoingRequest, status, null, bodySource);
+    }
+
+    private OngoingResponse(OngoingRequest ongoingRequest, Status status, String body, BodySource bodySource) {
         this.status = status;
         this.ongoingRequest = ongoingRequest;
 
         this.body = body;
+        this.bodySource = bodySource;
+
+        MockRule rule = createMockRule();
+        mockRuleId= ongoingRequest.mockServer.addRule(ongoingRequest.namespace, rule);
+    }
+
+    /**
+     * Next step of a response sequence, answering once the previous step was returned its number of times
+     */
+    private OngoingResponse(OngoingResponse previous, boolean alternative, Status status, String body, BodySource bodySource) {
+        this.status = status;
+        this.ongoingRequest = previous.ongoingRequest;
+        this.previous = previous;
+        this.alternative = alternative;
+
+        this.body = body;
+        this.bodySource = bodySource;
+
+        mockRuleId= previous.mockRuleId;
+        MockRule rule = createMockRule();
+        ongoingRequest.mockServer.updateRule(ongoingRequest.namespace, mockRuleId, rule);
+    }
+
+    /**
+     * Id of the rule this response is part of, see MockServer.updateRule and removeRule
+     */
+    public int getRuleId() {
+        return mockRuleId;
+    }
+
+    /**
+     * Return this response for the given number of hits only; see thenReturn for what comes next
+     */
+    public OngoingResponse times(int times) {
+        this.times = times;
+
+        MockRule rule = createMockRule();
+        ongoingRequest.mockServer.updateRule(ongoingRequest.namespace, mockRuleId, rule);
+        return this;
+    }
+
+    /**
+     * Return the given body once the previous response was returned its number of times
+     */
+    public OngoingResponse thenReturn(String body) {
+        return new OngoingResponse(this, false, Status.OK, body, null);
+    }
+
+    public OngoingResponse thenReturn(Status status) {
+        return new OngoingResponse(this, false, status, null, null);
+    }
+
+    public OngoingResponse thenReturn(BodySource body) {
+        return new OngoingResponse(this, false, Status.OK, null, body);
+    }
+
+    /**
+     * Return the given body instead of the previous response, picked at random; see withWeight
+     */
+    public OngoingResponse orReturn(String body) {
+        return new OngoingResponse(this, true, Status.OK, body, null);
+    }
+
+    public OngoingResponse orReturn(Status status) {
+        return new OngoingResponse(this, true, status, null, null);
+    }
+
+    /**
+     * Fail the request instead of returning the previous response, picked at random; see withWeight
+     */
+    public OngoingResponse orFail(Fault fault) {
+        return new OngoingResponse(this, true, Status.OK, null, null).withFault(fault);
+    }
+
+    /**
+     * How likely this response is to be picked, compared to its alternatives; e.g. a percentage
+     */
+    public OngoingResponse withWeight(double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("Invalid weight " + weight);
+        }
+        this.weight = weight;
+
+        MockRule rule = createMockRule();
+        ongoingRequest.mockServer.updateRule(ongoingRequest.namespace, mockRuleId, rule);
+        return this;
+    }
+
+    /**
+     * Pick among the alternatives the same way on every run
+     */
+    public OngoingResponse withSeed(long seed) {
+        this.seed = seed;
 
         MockRule rule = createMockRule();
-        mockRuleId= ongoingRequest.mockServer.addRule(rule);
+        ongoingRequest.mockServer.updateRule(ongoingRequest.namespace, mockRuleId, rule);
+        return this;
+    }
+
+    /**
+     * Fail the request in the given way instead of sending this response
+     */
+    public OngoingResponse withFault(Fault fault) {
+        this.fault = fault;
+
+        MockRule rule = createMockRule();
+        ongoingRequest.mockServer.updateRule(ongoingRequest.namespace, mockRuleId, rule);
+        return this;
+    }
+
+    /**
+     * Move the scenario of the request to the given state whenever this rule answers
+     */
+    public OngoingResponse willSetStateTo(String state) {
+        ongoingRequest.scenarioNewState = state;
+
+        MockRule rule = createMockRule();
+        ongoingRequest.mockServer.updateRule(ongoingRequest.namespace, mockRuleId, rule);
+        return this;
     }
 
 
@@ -45,7 +195,7 @@ public class OngoingResponse {
         headers.put(headerName, headerValue);
 
         MockRule rule = createMockRule();
-        ongoingRequest.mockServer.replaceRuleAtIndex(rule,mockRuleId);
+        ongoingRequest.mockServer.updateRule(ongoingRequest.namespace, mockRuleId, rule);
         return this;
     }
 
@@ -54,7 +204,36 @@ public class OngoingResponse {
         this.mimeType = mimeType;
 
         MockRule rule = createMockRule();
-        ongoingRequest.mockServer.replaceRuleAtIndex(rule,mockRuleId);
+        ongoingRequest.mockServer.updateRule(ongoingRequest.namespace, mockRuleId, rule);
+        return this;
+    }
+
+    public OngoingResponse withDelay(long millis) {
+        return withDelay(Delay.fixed(millis));
+    }
+
+    public OngoingResponse withDelay(long minMillis, long maxMillis) {
+        return withDelay(Delay.uniform(minMillis, maxMillis));
+    }
+
+    public OngoingResponse withDelay(Delay delay) {
+        this.delay = delay;
+
+        MockRule rule = createMockRule();
+        ongoingRequest.mockServer.updateRule(ongoingRequest.namespace, mockRuleId, rule);
+        return this;
+    }
+
+    public OngoingResponse withThrottle(long bytesPerSecond) {
+        return withThrottle(bytesPerSecond, false);
+    }
+
+    public OngoingResponse withThrottle(long bytesPerSecond, boolean chunked) {
+        this.throttle = bytesPerSecond;
+        this.chunked = chunked;
+
+        MockRule rule = createMockRule();
+        ongoingRequest.mockServer.updateRule(ongoingRequest.namespace, mockRuleId, rule);
         return this;
     }
 
@@ -65,13 +244,71 @@ public class OngoingResponse {
         rule.setRequestBody(ongoingRequest.body);
         rule.setRequestHeaders(ongoingRequest.headers);
         rule.setRequestLimit(ongoingRequest.limit);
+        rule.setScenario(ongoingRequest.scenarioName, ongoingRequest.scenarioRequiredState, ongoingRequest.scenarioNewState);
+
+        // Group the responses into steps, each step being one response or a random choice among several
+        List<List<OngoingResponse>> groups = new ArrayList<List<OngoingResponse>>();
+        for (OngoingResponse response = this; null != response; response = response.previous) {
+            if (groups.isEmpty() || !groups.get(0).get(0).alternative) {
+                groups.add(0, new ArrayList<OngoingResponse>());
+            }
+            groups.get(0).add(0, response);
+        }
 
+        // A single step, or a sequence of them
+        if (1 == groups.size() && 0 == getTimes(groups.get(0))) {
+            applyStep(rule, groups.get(0));
+        } else {
+            List<MockRule> steps = new ArrayList<MockRule>();
+            for (List<OngoingResponse> group : groups) {
+                MockRule stepRule = new MockRule();
+                applyStep(stepRule, group);
+                stepRule.setResponseTimes(getTimes(group));
+                steps.add(stepRule);
+            }
+            rule.setResponseSteps(steps);
+        }
+
+        return rule;
+    }
+
+    private static int getTimes(List<OngoingResponse> group) {
+        int times = 0;
+        for (OngoingResponse response : group) {
+            times = Math.max(times, response.times);
+        }
+        return times;
+    }
+
+    private static void applyStep(MockRule rule, List<OngoingResponse> group) {
+        if (1 == group.size()) {
+            group.get(0).applyResponse(rule);
+            return;
+        }
+
+        List<MockRule> choices = new ArrayList<MockRule>();
+        for (OngoingResponse response : group) {
+            MockRule choice = new MockRule();
+            response.applyResponse(choice);
+            choice.setResponseWeight(response.weight);
+            choices.add(choice);
+            if (null != response.seed) {
+                rule.setResponseSeed(response.seed);
+            }
+        }
+        rule.setResponseChoices(choices);
+    }
+
+    private void applyResponse(MockRule rule) {
         rule.setResponseStatus(status);
         rule.setResponseBody(body);
+        rule.setResponseBodySource(bodySource);
         rule.setResponseMimeType(mimeType);
-        rule.setRequestHeaders(headers);
-
-        return rule;
+        rule.setResponseHeaders(headers);
+        rule.setResponseDelay(delay);
+        rule.setResponseThrottle(throttle);
+        rule.setResponseChunked(chunked);
+        rule.setResponseFault(fault);
     }
 }
 
@@ -1,24 +1,41 @@
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import fi.iki.elonen.Fault;
+import fi.iki.elonen.GeneratedBody;
 import fi.iki.elonen.Method;
 import junit.framework.Assert;
 import fi.iki.elonen.Status;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.idev.tools.hms.MappedJournal;
+import org.idev.tools.hms.RingJournal;
+import org.idev.tools.hms.RuleFiles;
+import org.idev.tools.hms.RuleRegistry;
+import org.idev.tools.hms.RuleSnapshot;
+import org.idev.tools.hms.RuleWatcher;
 import org.idev.tools.hms.mock.MockServer;
+import org.idev.tools.hms.mock.OngoingResponse;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.Socket;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 public class MockServerTest {
     private static String SERVER_ADDRESS = "127.0.0.1";
-    private static int SERVER_PORT = 9191;
+    private static int SERVER_PORT;
     private static MockServer server;
 
     @BeforeClass
     public static void before() throws IOException {
-        server = new MockServer(SERVER_ADDRESS, SERVER_PORT);
+        server = new MockServer(SERVER_ADDRESS, 0);
         server.start();
+        SERVER_PORT = server.getListeningPort();
     }
 
     @AfterClass
@@ -43,13 +60,877 @@ public class MockServerTest {
         Assert.assertEquals(404, con3.getResponseCode());
     }
 
+    @Test
+    public void testHeaderMatching() throws IOException {
+        server.when("/headers/exact", Method.GET).withHeader("X-Client", "tests").thenReturn("exact");
+        server.when("/headers/case", Method.GET).withHeaderIgnoringCase("x-client", "TESTS").thenReturn("case");
+        server.when("/headers/regexp", Method.GET).withHeaderMatching("X-CLIENT", "te.t.").thenReturn("regexp");
+
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        Assert.assertEquals("exact", readResponseBody(makeRestCall(base + "/headers/exact", "X-Client", "tests")));
+        Assert.assertEquals(404, makeRestCall(base + "/headers/exact", "X-Client", "Tests").getResponseCode());
+        Assert.assertEquals(404, makeRestCall(base + "/headers/exact").getResponseCode());
+        Assert.assertEquals("case", readResponseBody(makeRestCall(base + "/headers/case", "x-CLIENT", "Tests")));
+        Assert.assertEquals("regexp", readResponseBody(makeRestCall(base + "/headers/regexp", "X-Client", "tests")));
+        Assert.assertEquals(404, makeRestCall(base + "/headers/regexp", "X-Client", "test").getResponseCode());
+    }
+
+    @Test
+    public void testDelayedResponse() throws IOException {
+        server.when("/delay/slow", Method.GET).thenReturn("slow").withDelay(300);
+        server.when("/delay/fast", Method.GET).thenReturn("fast");
+
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        long start = System.currentTimeMillis();
+        Assert.assertEquals("slow", readResponseBody(makeRestCall(base + "/delay/slow")));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 300);
+
+        // The kept-alive connection is served again once the delayed response was written
+        Assert.assertEquals("fast", readResponseBody(makeRestCall(base + "/delay/fast")));
+    }
+
+    @Test
+    public void testThrottledResponse() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            body.append("0123456789");
+        }
+        server.when("/throttle/fixed", Method.GET).thenReturn(body.toString()).withThrottle(4000);
+        server.when("/throttle/chunked", Method.GET).thenReturn(body.toString()).withThrottle(4000, true);
+
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        for (String uri : new String[]{"/throttle/fixed", "/throttle/chunked"}) {
+            long start = System.currentTimeMillis();
+            Assert.assertEquals(body.toString(), readResponseBody(makeRestCall(base + uri)));
+            Assert.assertTrue(System.currentTimeMillis() - start >= 400);
+        }
+    }
+
+    @Test
+    public void testFileResponse() throws IOException {
+        File file = File.createTempFile("MockServerTest", ".txt");
+        file.deleteOnExit();
+        Writer writer = new FileWriter(file);
+        for (int i = 0; i < 10000; i++) {
+            writer.write("0123456789");
+        }
+        writer.close();
+        server.when("/file/download", Method.GET).thenReturn(file);
+
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        HttpURLConnection con = makeRestCall(base + "/file/download");
+        Assert.assertEquals(200, con.getResponseCode());
+        Assert.assertEquals(100000, readResponseBody(con).length());
+
+        con = makeRestCall(base + "/file/download", "Range", "bytes=15-24");
+        Assert.assertEquals(206, con.getResponseCode());
+        Assert.assertEquals("bytes 15-24/100000", con.getHeaderField("Content-Range"));
+        Assert.assertEquals("5678901234", readResponseBody(con));
+
+        con = makeRestCall(base + "/file/download", "Range", "bytes=-3");
+        Assert.assertEquals(206, con.getResponseCode());
+        Assert.assertEquals("789", readResponseBody(con));
+
+        con = makeRestCall(base + "/file/download", "Range", "bytes=100000-");
+        Assert.assertEquals(416, con.getResponseCode());
+
+        // A reversed range is ignored
+        con = makeRestCall(base + "/file/download", "Range", "bytes=5-3");
+        Assert.assertEquals(200, con.getResponseCode());
+        Assert.assertEquals(100000, readResponseBody(con).length());
+
+        // The file is served as it is now
+        writer = new FileWriter(file);
+        writer.write("truncated");
+        writer.close();
+        Assert.assertEquals("truncated", readResponseBody(makeRestCall(base + "/file/download")));
+
+        // Over HTTP, only the files of the body file directory may be served
+        String rule = "{\"request\":{\"method\":\"GET\",\"uri\":\"/file/posted\"},\"response\":{\"status\":200,\"bodyFile\":\"%s\"}}";
+        Assert.assertEquals(400, postBody(base + "/__expect", String.format(rule, file.getPath())).getResponseCode());
+        server.setBodyFileDirectory(file.getParentFile());
+        try {
+            Assert.assertEquals(400, postBody(base + "/__expect", String.format(rule, "../" + file.getName())).getResponseCode());
+            Assert.assertEquals(200, postBody(base + "/__expect", String.format(rule, file.getName())).getResponseCode());
+            Assert.assertEquals("truncated", readResponseBody(makeRestCall(base + "/file/posted")));
+        } finally {
+            server.setBodyFileDirectory(null);
+        }
+    }
+
+    @Test
+    public void testGeneratedResponse() throws IOException {
+        server.when("/generated/pattern", Method.GET).thenReturn(GeneratedBody.pattern(1000000, "abc".getBytes()));
+        server.when("/generated/random", Method.GET).thenReturn(GeneratedBody.random(100000, 42)).withThrottle(1000000, true);
+
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        HttpURLConnection con = makeRestCall(base + "/generated/pattern");
+        Assert.assertEquals("1000000", con.getHeaderField("Content-Length"));
+        String body = readResponseBody(con);
+        Assert.assertEquals(1000000, body.length());
+        Assert.assertEquals("abcabc", body.substring(300000, 300006));
+
+        // Same content whatever the pieces it is sent in
+        byte[] expected = new byte[100000];
+        GeneratedBody.random(100000, 42).read(0, expected, 0, expected.length);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        InputStream in = makeRestCall(base + "/generated/random").getInputStream();
+        byte[] buff = new byte[4096];
+        int read;
+        while ((read = in.read(buff)) > 0) {
+            actual.write(buff, 0, read);
+        }
+        Assert.assertTrue(Arrays.equals(expected, actual.toByteArray()));
+    }
+
+    @Test
+    public void testGzipResponse() throws IOException {
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            body.append(i > 0 ? "," : "").append("{\"id\":").append(i).append("}");
+        }
+        body.append("]");
+        server.when("/gzip/static", Method.GET).thenReturn(body.toString()).withMimeTypey("application/json");
+        server.when("/gzip/generated", Method.GET).thenReturn(GeneratedBody.pattern(100000, "abc".getBytes())).withMimeTypey("text/plain");
+        server.when("/gzip/small", Method.GET).thenReturn("{}").withMimeTypey("application/json");
+
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        HttpURLConnection con = makeRestCall(base + "/gzip/static", "Accept-Encoding", "gzip");
+        Assert.assertEquals("gzip", con.getHeaderField("Content-Encoding"));
+        Assert.assertEquals(body.toString(), readGzipBody(con));
+
+        con = makeRestCall(base + "/gzip/generated", "Accept-Encoding", "deflate, gzip;q=0.5");
+        Assert.assertEquals("gzip", con.getHeaderField("Content-Encoding"));
+        String generated = readGzipBody(con);
+        Assert.assertEquals(100000, generated.length());
+        Assert.assertEquals("abcabc", generated.substring(99990, 99996));
+
+        con = makeRestCall(base + "/gzip/generated", "Accept-Encoding", "gzip;q=0");
+        Assert.assertNull(con.getHeaderField("Content-Encoding"));
+        Assert.assertEquals(100000, readResponseBody(con).length());
+
+        con = makeRestCall(base + "/gzip/small", "Accept-Encoding", "gzip");
+        Assert.assertNull(con.getHeaderField("Content-Encoding"));
+        Assert.assertEquals("{}", readResponseBody(con));
+    }
+
+    @Test
+    public void testConditionalResponse() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            body.append("line ").append(i).append(' ');
+        }
+        server.when("/etag/static", Method.GET).thenReturn(body.toString()).withMimeTypey("text/plain").withHeader("Cache-Control", "max-age=0");
+
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        HttpURLConnection con = makeRestCall(base + "/etag/static");
+        String etag = con.getHeaderField("ETag");
+        Assert.assertNotNull(etag);
+        Assert.assertEquals(body.toString(), readResponseBody(con));
+
+        con = makeRestCall(base + "/etag/static", "If-None-Match", "\"other\", " + etag);
+        Assert.assertEquals(304, con.getResponseCode());
+        Assert.assertEquals(etag, con.getHeaderField("ETag"));
+        Assert.assertEquals("max-age=0", con.getHeaderField("Cache-Control"));
+        Assert.assertEquals("", readResponseBody(con));
+
+        con = makeRestCall(base + "/etag/static", "If-None-Match", "\"other\"");
+        Assert.assertEquals(200, con.getResponseCode());
+        Assert.assertEquals(body.toString(), readResponseBody(con));
+
+        con = makeRestCall(base + "/etag/static", "Accept-Encoding", "gzip");
+        String gzipEtag = con.getHeaderField("ETag");
+        Assert.assertFalse(etag.equals(gzipEtag));
+        Assert.assertEquals(body.toString(), readGzipBody(con));
+        con = makeRestCall(base + "/etag/static", "If-None-Match", gzipEtag);
+        Assert.assertEquals(304, con.getResponseCode());
+        Assert.assertEquals(gzipEtag, con.getHeaderField("ETag"));
+    }
+
+    @Test
+    public void testResponseSequence() throws IOException {
+        server.when("/sequence/job", Method.GET).thenReturn(Status.ACCEPTED).times(2).thenReturn("done");
+
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        Assert.assertEquals(202, makeRestCall(base + "/sequence/job").getResponseCode());
+        Assert.assertEquals(202, makeRestCall(base + "/sequence/job").getResponseCode());
+        Assert.assertEquals("done", readResponseBody(makeRestCall(base + "/sequence/job")));
+        Assert.assertEquals("done", readResponseBody(makeRestCall(base + "/sequence/job")));
+    }
+
+    @Test
+    public void testScenario() throws IOException {
+        server.when("/scenario/cart", Method.GET).inScenario("cart", RuleRegistry.STARTED).thenReturn("empty");
+        server.when("/scenario/cart/add", Method.GET).inScenario("cart", null).thenReturn("added").willSetStateTo("full");
+        server.when("/scenario/cart", Method.GET).inScenario("cart", "full").thenReturn("full");
+
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        Assert.assertEquals("empty", readResponseBody(makeRestCall(base + "/scenario/cart")));
+        Assert.assertEquals("added", readResponseBody(makeRestCall(base + "/scenario/cart/add")));
+        Assert.assertEquals("full", server.getScenarioState("cart"));
+        Assert.assertEquals("full", readResponseBody(makeRestCall(base + "/scenario/cart")));
+
+        server.setScenarioState("cart", RuleRegistry.STARTED);
+        Assert.assertEquals("empty", readResponseBody(makeRestCall(base + "/scenario/cart")));
+    }
+
+    @Test
+    public void testWeightedResponse() throws IOException {
+        server.when("/weighted/first", Method.GET).thenReturn("ok").withWeight(50).orReturn(Status.INTERNAL_ERROR).withWeight(50).withSeed(7);
+        server.when("/weighted/again", Method.GET).thenReturn("ok").withWeight(50).orReturn(Status.INTERNAL_ERROR).withWeight(50).withSeed(7);
+
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        StringBuilder first = new StringBuilder();
+        StringBuilder again = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            first.append(makeRestCall(base + "/weighted/first").getResponseCode()).append(' ');
+            again.append(makeRestCall(base + "/weighted/again").getResponseCode()).append(' ');
+        }
+        Assert.assertEquals(first.toString(), again.toString());
+        Assert.assertTrue(first.toString().contains("200"));
+        Assert.assertTrue(first.toString().contains("500"));
+    }
+
+    @Test
+    public void testFaultResponse() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            body.append("0123456789");
+        }
+        server.when("/fault/reset", Method.GET).thenFail(Fault.RESET);
+        server.when("/fault/truncate", Method.GET).thenReturn(body.toString()).withFault(Fault.TRUNCATE);
+        server.when("/fault/truncate-chunked", Method.GET).thenReturn(body.toString()).withThrottle(1 << 30, true).withFault(Fault.TRUNCATE);
+        server.when("/fault/hang", Method.GET).thenFail(Fault.HANG).withDelay(200);
+
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        try {
+            makeRestCall(base + "/fault/reset").getResponseCode();
+            Assert.fail("The connection should have been reset");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        HttpURLConnection con = makeRestCall(base + "/fault/truncate");
+        Assert.assertEquals(200, con.getResponseCode());
+        Assert.assertEquals("100000", con.getHeaderField("Content-Length"));
+        String truncated = readResponseBody(con);
+        Assert.assertTrue(null == truncated || truncated.length() < 100000);
+
+        // A chunked body is cut about halfway too, without its last chunk
+        Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        try {
+            socket.getOutputStream().write("GET /fault/truncate-chunked HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] buff = new byte[8192];
+            for (int n; (n = in.read(buff)) >= 0; ) {
+                received.write(buff, 0, n);
+            }
+            String response = received.toString("US-ASCII");
+            Assert.assertTrue(response.contains("Transfer-Encoding: chunked"));
+            int length = response.length() - response.indexOf("\r\n\r\n") - 4;
+            Assert.assertTrue(length > 45000 && length < 55000);
+            Assert.assertFalse(response.endsWith("0\r\n\r\n"));
+        } finally {
+            socket.close();
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            makeRestCall(base + "/fault/hang").getResponseCode();
+            Assert.fail("The connection should have been dropped");
+        } catch (IOException e) {
+            Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+        }
+    }
+
+    public String readGzipBody(HttpURLConnection con) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(con.getInputStream()), "UTF-8"));
+        StringBuilder sb = new StringBuilder();
+        String l;
+        while ((l = br.readLine()) != null) {
+            sb.append(l);
+        }
+        br.close();
+        return sb.toString();
+    }
+
+    @Test
+    public void testRecordingProxy() throws Exception {
+        MockServer upstream = new MockServer(SERVER_ADDRESS, 0);
+        upstream.start();
+        try {
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < 5000; i++) {
+                body.append("upstream ");
+            }
+            upstream.when("/proxied/item", Method.GET).thenReturn(body.toString()).withMimeTypey("text/plain").withHeader("X-Upstream", "yes");
+            server.proxyTo("http://" + SERVER_ADDRESS + ":" + upstream.getListeningPort(), 2, true);
+
+            String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+            HttpURLConnection con = makeRestCall(base + "/proxied/item");
+            Assert.assertEquals(200, con.getResponseCode());
+            Assert.assertEquals("yes", con.getHeaderField("X-Upstream"));
+            Assert.assertEquals(body.toString().trim(), readResponseBody(con).trim());
+            Assert.assertEquals(404, makeRestCall(base + "/proxied/missing").getResponseCode());
+            for (int i = 0; i < 100 && server.getProxy().getUpstream().getActiveCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, server.getProxy().getUpstream().getActiveCount());
+            Assert.assertEquals(1, server.getProxy().getUpstream().getIdleCount());
+
+            // Replayed without the upstream
+            server.setProxy(null);
+            con = makeRestCall(base + "/proxied/item");
+            Assert.assertEquals("yes", con.getHeaderField("X-Upstream"));
+            Assert.assertEquals(body.toString().trim(), readResponseBody(con).trim());
+        } finally {
+            server.setProxy(null);
+            upstream.stop();
+        }
+    }
+
+    @Test
+    public void testBulkExpect() throws IOException {
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        StringBuilder array = new StringBuilder("[");
+        for (int i = 0; i < 500; i++) {
+            array.append(i == 0 ? "" : ",").append("{\"request\":{\"method\":\"GET\",\"uri\":\"/bulk/array/").append(i)
+                .append("\"},\"response\":{\"status\":200,\"body\":\"array ").append(i).append("\"}}");
+        }
+        array.append("]");
+        HttpURLConnection con = postBody(base + "/__expect/bulk", array.toString());
+        Assert.assertEquals(200, con.getResponseCode());
+        Assert.assertTrue(readResponseBody(con).startsWith("{\"added\":500,\"ids\":["));
+
+        String ndjson = "{\"request\":{\"method\":\"GET\",\"uri\":\"/bulk/ndjson/1\"},\"response\":{\"status\":200,\"body\":\"one\"}}\n"
+            + "{\"request\":{\"method\":\"GET\",\"uri\":\"/bulk/ndjson/2\"},\"response\":{\"status\":202}}\n";
+        con = postBody(base + "/__expect/bulk", ndjson);
+        Assert.assertEquals(200, con.getResponseCode());
+
+        // One invalid rule: nothing is registered
+        String invalid = "{\"request\":{\"method\":\"GET\",\"uri\":\"/bulk/invalid/1\"},\"response\":{\"status\":200}}\n"
+            + "{\"request\":{\"method\":\"GET\",\"uri\":\"/bulk/invalid/2\"}}\n";
+        con = postBody(base + "/__expect/bulk", invalid);
+        Assert.assertEquals(400, con.getResponseCode());
+
+        // A Content-Length which isn't a length
+        Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        try {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("POST /__expect/bulk HTTP/1.1\r\nHost: localhost\r\nContent-Length: -5\r\n\r\n".getBytes("UTF-8"));
+            Assert.assertTrue(readLine(socket.getInputStream()).startsWith("HTTP/1.1 400 "));
+        } finally {
+            socket.close();
+        }
+
+        Assert.assertEquals("array 321", readResponseBody(makeRestCall(base + "/bulk/array/321")));
+        Assert.assertEquals("one", readResponseBody(makeRestCall(base + "/bulk/ndjson/1")));
+        Assert.assertEquals(202, makeRestCall(base + "/bulk/ndjson/2").getResponseCode());
+        Assert.assertEquals(404, makeRestCall(base + "/bulk/invalid/1").getResponseCode());
+    }
+
+    @Test
+    public void testPreloadRules() throws IOException {
+        File rules = File.createTempFile("MockServerTest", ".ndjson");
+        rules.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(rules), "UTF-8");
+        writer.write("{\"request\":{\"method\":\"GET\",\"uri\":\"/preload/1\"},\"response\":{\"status\":200,\"body\":\"caf\u00e9\"}}\n");
+        writer.write("{\"request\":{\"method\":\"GET\",\"uri\":\"/preload/2\",\"limit\":1},\"response\":{\"status\":202,\"delay\":1}}\n");
+        writer.close();
+
+        // Loaded rules are kept across resets, so they get a server of their own
+        MockServer preloaded = new MockServer(SERVER_ADDRESS, 0);
+        preloaded.start();
+        try {
+            RuleRegistry registry = preloaded.getNamespace(null).getRules();
+            Assert.assertEquals(2, preloaded.loadRules(rules));
+            Assert.assertEquals(2, preloaded.loadRules(rules));
+            Assert.assertEquals(2, registry.getRules().size());
+
+            String base = "http://" + SERVER_ADDRESS + ":" + preloaded.getListeningPort();
+            Assert.assertEquals(200, makeRestCall(base + "/preload/1").getResponseCode());
+            Assert.assertEquals(202, makeRestCall(base + "/preload/2").getResponseCode());
+
+            File snapshot = File.createTempFile("MockServerTest", ".snapshot");
+            snapshot.deleteOnExit();
+            preloaded.saveSnapshot(snapshot);
+            Assert.assertTrue(RuleSnapshot.isSnapshot(snapshot));
+            Assert.assertEquals(RuleFiles.read(rules), RuleSnapshot.read(snapshot));
+
+            // Another file, even with the same definitions, adds its own rules
+            Assert.assertEquals(2, preloaded.loadRules(snapshot));
+            Assert.assertEquals(4, registry.getRules().size());
+        } finally {
+            preloaded.stop();
+        }
+
+        // Or from the command line, before the server starts
+        MockServer configured = MockServer.create("--host=" + SERVER_ADDRESS, "--port=0", "--rules=" + rules.getPath());
+        configured.start();
+        try {
+            Assert.assertEquals(2, configured.getNamespace(null).getRules().getRules().size());
+            Assert.assertEquals(202, makeRestCall("http://" + SERVER_ADDRESS + ":" + configured.getListeningPort() + "/preload/2").getResponseCode());
+        } finally {
+            configured.stop();
+        }
+        try {
+            MockServer.create("--rule=" + rules.getPath());
+            Assert.fail("An unknown option should have been refused");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testHotReload() throws Exception {
+        File directory = File.createTempFile("MockServerTest", "");
+        Assert.assertTrue(directory.delete() && directory.mkdir());
+        File rules = new File(directory, "rules.json");
+        try {
+            writeRule(rules, "/hot/item", "before");
+            Assert.assertEquals(1, server.watchRules(directory));
+
+            String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+            Assert.assertEquals("before", readResponseBody(makeRestCall(base + "/hot/item")));
+
+            writeRule(rules, "/hot/item", "after");
+            String body = null;
+            for (int i = 0; i < 100 && !"after".equals(body); i++) {
+                Thread.sleep(50);
+                body = readResponseBody(makeRestCall(base + "/hot/item"));
+            }
+            Assert.assertEquals("after", body);
+
+            Assert.assertTrue(rules.delete());
+            int status = 200;
+            for (int i = 0; i < 100 && 404 != status; i++) {
+                Thread.sleep(50);
+                status = makeRestCall(base + "/hot/item").getResponseCode();
+            }
+            Assert.assertEquals(404, status);
+        } finally {
+            rules.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testRescanRules() throws Exception {
+        File directory = File.createTempFile("MockServerTest", "");
+        Assert.assertTrue(directory.delete() && directory.mkdir());
+        File kept = new File(directory, "kept.json");
+        File deleted = new File(directory, "deleted.json");
+        RuleWatcher watcher = null;
+        try {
+            writeRule(kept, "/rescan/kept", "kept");
+            writeRule(deleted, "/rescan/deleted", "deleted");
+            RuleFiles files = new RuleFiles();
+            RuleRegistry registry = new RuleRegistry();
+            Assert.assertEquals(2, files.load(directory, registry));
+
+            // As if the deletion was among events lost to an overflow
+            Assert.assertTrue(deleted.delete());
+            final Set<File> changed = new HashSet<File>();
+            watcher = new RuleWatcher(files, new RuleWatcher.Listener() {
+                @Override
+                public void rulesChanged(Set<File> reported) {
+                    changed.addAll(reported);
+                }
+            });
+            watcher.rescan(directory);
+            Assert.assertTrue(changed.contains(deleted.getAbsoluteFile()));
+            Assert.assertEquals(1, files.reload(changed, registry));
+            Assert.assertEquals(1, registry.getRules().size());
+            Assert.assertFalse(files.isLoaded(deleted));
+        } finally {
+            if (null != watcher) {
+                watcher.close();
+            }
+            kept.delete();
+            deleted.delete();
+            directory.delete();
+        }
+    }
+
+    private void writeRule(File file, String uri, String body) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write("{\"request\":{\"method\":\"GET\",\"uri\":\"" + uri + "\"},\"response\":{\"status\":200,\"body\":\"" + body + "\"}}");
+        writer.close();
+    }
+
+    @Test
+    public void testRuleIds() throws IOException {
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        OngoingResponse response = server.when("/ids/java", Method.GET).thenReturn("java").withHeader("X-Step", "1").withMimeTypey("text/plain");
+        Assert.assertEquals("1", makeRestCall(base + "/ids/java").getHeaderField("X-Step"));
+        Assert.assertTrue(server.removeRule(response.getRuleId()));
+        Assert.assertFalse(server.removeRule(response.getRuleId()));
+        Assert.assertEquals(404, makeRestCall(base + "/ids/java").getResponseCode());
+
+        HttpURLConnection con = postBody(base + "/__expect",
+            "{\"request\":{\"method\":\"GET\",\"uri\":\"/ids/http\"},\"response\":{\"status\":200,\"body\":\"before\"}}");
+        Assert.assertEquals(200, con.getResponseCode());
+        String location = con.getHeaderField("Location");
+        Assert.assertTrue(location.startsWith("/__rules/"));
+        Assert.assertEquals("before", readResponseBody(makeRestCall(base + "/ids/http")));
+
+        con = sendBody("PUT", base + location,
+            "{\"request\":{\"method\":\"GET\",\"uri\":\"/ids/http\"},\"response\":{\"status\":200,\"body\":\"after\"}}");
+        Assert.assertEquals(200, con.getResponseCode());
+        Assert.assertEquals("after", readResponseBody(makeRestCall(base + "/ids/http")));
+
+        con = (HttpURLConnection) new URL(base + location).openConnection();
+        con.setRequestMethod("DELETE");
+        Assert.assertEquals(200, con.getResponseCode());
+        Assert.assertEquals(404, makeRestCall(base + "/ids/http").getResponseCode());
+        Assert.assertEquals(404, sendBody("PUT", base + location, "{}").getResponseCode());
+    }
+
+    @Test
+    public void testNamespaces() throws IOException {
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        server.when("/ns/item", Method.GET).inNamespace("suite-a").thenReturn("a");
+        postBody(base + "/__ns/suite-b/__expect",
+            "{\"request\":{\"method\":\"GET\",\"uri\":\"/ns/item\",\"limit\":1},\"response\":{\"status\":200,\"body\":\"b\"}}").getResponseCode();
+
+        Assert.assertEquals("a", readResponseBody(makeRestCall(base + "/ns/item", "X-Mock-Namespace", "suite-a")));
+        Assert.assertEquals("b", readResponseBody(makeRestCall(base + "/__ns/suite-b/ns/item")));
+        Assert.assertEquals(404, makeRestCall(base + "/ns/item").getResponseCode());
+        Assert.assertEquals(404, makeRestCall(base + "/ns/item", "X-Mock-Namespace", "suite-c").getResponseCode());
+
+        // Only registering rules creates a namespace, and only the server's own shuts it down
+        Assert.assertNull(server.findNamespace("suite-c"));
+        Assert.assertEquals(200, makeRestCall(base + "/__ns/suite-c/__check").getResponseCode());
+        Assert.assertEquals(400, makeRestCall(base + "/__ns/suite-c/__shutdown").getResponseCode());
+
+        // Each namespace is checked, and reset, on its own
+        Assert.assertEquals(200, makeRestCall(base + "/__ns/suite-b/__check").getResponseCode());
+        Assert.assertEquals(404, makeRestCall(base + "/__ns/suite-b/ns/item").getResponseCode());
+        Assert.assertEquals("a", readResponseBody(makeRestCall(base + "/__ns/suite-a/ns/item")));
+        Assert.assertEquals(404, makeRestCall(base + "/__ns/suite-a/ns/other").getResponseCode());
+        Assert.assertEquals(409, makeRestCall(base + "/__ns/suite-a/__check").getResponseCode());
+        Assert.assertNull(server.findNamespace("suite-a"));
+
+        // Requests to a rule past its limit, which no other rule answered, are too many
+        postBody(base + "/__ns/suite-d/__expect",
+            "{\"request\":{\"method\":\"GET\",\"uri\":\"/ns/item\",\"limit\":1},\"response\":{\"status\":200,\"body\":\"d\"}}").getResponseCode();
+        Assert.assertEquals("d", readResponseBody(makeRestCall(base + "/__ns/suite-d/ns/item")));
+        Assert.assertEquals(404, makeRestCall(base + "/__ns/suite-d/ns/item").getResponseCode());
+        HttpURLConnection con = makeRestCall(base + "/__ns/suite-d/__check");
+        Assert.assertEquals(409, con.getResponseCode());
+        Assert.assertTrue(new String(readBytes(con.getErrorStream(), con.getContentLength()), "UTF-8")
+            .contains("\"Too many requests to \\\"/ns/item\\\". Expected 1 but received 2\""));
+    }
+
+    @Test
+    public void testRequestJournal() throws IOException {
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        OngoingResponse response = server.when("/journal/item", Method.POST).thenReturn(Status.CREATED);
+        Assert.assertEquals(201, postBody(base + "/journal/item", "first").getResponseCode());
+        Assert.assertEquals(201, postBody(base + "/journal/item", "second").getResponseCode());
+        Assert.assertEquals(404, makeRestCall(base + "/journal/missing").getResponseCode());
+
+        JsonArray requests = JsonArray.readFrom(readResponseBody(makeRestCall(base + "/__requests?uri=/journal/item")));
+        Assert.assertEquals(2, requests.size());
+        JsonObject first = requests.get(0).asObject();
+        Assert.assertEquals("POST", first.get("method").asString());
+        Assert.assertEquals("first", first.get("body").asString());
+        Assert.assertEquals(response.getRuleId(), first.get("rule").asInt());
+        Assert.assertEquals(201, first.get("status").asInt());
+
+        requests = JsonArray.readFrom(readResponseBody(makeRestCall(base + "/__requests?uri=regexp:/journal/.*&rule=none")));
+        Assert.assertEquals(1, requests.size());
+        Assert.assertEquals("/journal/missing", requests.get(0).asObject().get("uri").asString());
+
+        requests = JsonArray.readFrom(readResponseBody(makeRestCall(base + "/__requests?uri=/journal/item&limit=1")));
+        Assert.assertEquals("second", requests.get(0).asObject().get("body").asString());
+
+        // Clearing the requests of a namespace keeps those of the others
+        server.when("/journal/item", Method.GET).inNamespace("journal-a").thenReturn("a");
+        server.when("/journal/item", Method.GET).inNamespace("journal-b").thenReturn("b");
+        Assert.assertEquals("a", readResponseBody(makeRestCall(base + "/__ns/journal-a/journal/item")));
+        Assert.assertEquals("b", readResponseBody(makeRestCall(base + "/__ns/journal-b/journal/item")));
+        HttpURLConnection con = (HttpURLConnection) new URL(base + "/__ns/journal-a/__requests").openConnection();
+        con.setRequestMethod("DELETE");
+        Assert.assertEquals(200, con.getResponseCode());
+        Assert.assertEquals(0, JsonArray.readFrom(readResponseBody(makeRestCall(base + "/__ns/journal-a/__requests"))).size());
+        Assert.assertEquals(1, JsonArray.readFrom(readResponseBody(makeRestCall(base + "/__ns/journal-b/__requests"))).size());
+        Assert.assertEquals(2, JsonArray.readFrom(readResponseBody(makeRestCall(base + "/__requests?uri=/journal/item"))).size());
+    }
+
+    @Test
+    public void testVerify() throws IOException {
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        int login = server.when("/verify/login", Method.POST).thenReturn("welcome").getRuleId();
+        int list = server.when("/verify/list", Method.GET).thenReturn("[]").getRuleId();
+        Assert.assertEquals(200, postBody(base + "/verify/login", "user").getResponseCode());
+        Assert.assertEquals(200, makeRestCall(base + "/verify/list").getResponseCode());
+        Assert.assertEquals(200, makeRestCall(base + "/verify/list").getResponseCode());
+        Assert.assertEquals(404, makeRestCall(base + "/verify/missing").getResponseCode());
+
+        server.verify(list, 2);
+        server.verify(Method.GET, "/verify/missing", 1);
+        server.verifyNever(null, "/verify/logout");
+        server.verifyInOrder(login, list);
+        try {
+            server.verifyInOrder(list, login);
+            Assert.fail("Order not verified");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+
+        HttpURLConnection con = makeRestCall(base + "/__verify?rule=" + login + "&count=1");
+        Assert.assertEquals(200, con.getResponseCode());
+        Assert.assertEquals(1, JsonObject.readFrom(readResponseBody(con)).get("count").asInt());
+        Assert.assertEquals(409, makeRestCall(base + "/__verify?uri=/verify/list&method=GET&atMost=1").getResponseCode());
+        Assert.assertEquals(409, makeRestCall(base + "/__verify?uri=/verify/logout").getResponseCode());
+        Assert.assertEquals(200, makeRestCall(base + "/__verify?order=" + login + "," + list).getResponseCode());
+        Assert.assertEquals(400, makeRestCall(base + "/__verify?rule=first").getResponseCode());
+
+        // The calls of a namespace are verified apart
+        int other = server.when("/verify/list", Method.GET).inNamespace("verify-a").thenReturn("[]").getRuleId();
+        Assert.assertEquals(200, makeRestCall(base + "/__ns/verify-a/verify/list").getResponseCode());
+        server.verify("verify-a", other, 1);
+        server.verify("verify-a", Method.GET, "/verify/list", 1);
+        server.verifyNever("verify-a", Method.POST, "/verify/login");
+        server.verifyNever("verify-b", null, "/verify/list");
+        server.setScenarioState("verify-a", "flow", "Logged in");
+        Assert.assertEquals("Logged in", server.getScenarioState("verify-a", "flow"));
+        Assert.assertEquals(RuleRegistry.STARTED, server.getScenarioState("flow"));
+    }
+
+    @Test
+    public void testMetrics() throws IOException {
+        String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+        int rule = server.when("/metrics/item", Method.GET).thenReturn("item").getRuleId();
+        long misses = readMetric(base, "hms_rule_misses_total");
+        long sent = readMetric(base, "hms_sent_bytes_total");
+        Assert.assertEquals("item", readResponseBody(makeRestCall(base + "/metrics/item")));
+        Assert.assertEquals("item", readResponseBody(makeRestCall(base + "/metrics/item")));
+        Assert.assertEquals(404, makeRestCall(base + "/metrics/missing").getResponseCode());
+
+        Assert.assertEquals(2, readMetric(base, "hms_rule_hits_total{namespace=\"\",rule=\"" + rule + "\"}"));
+        Assert.assertEquals(misses + 1, readMetric(base, "hms_rule_misses_total"));
+        Assert.assertTrue(readMetric(base, "hms_sent_bytes_total") > sent);
+        Assert.assertTrue(readMetric(base, "hms_responses_total{status=\"404\"}") >= 1);
+        Assert.assertTrue(readMetric(base, "hms_phase_duration_seconds_count{phase=\"match\"}") >= 3);
+        Assert.assertTrue(readMetric(base, "hms_phase_duration_seconds_bucket{phase=\"parse\",le=\"+Inf\"}") >= 3);
+    }
+
+    @Test
+    public void testPipelinedRequests() throws IOException {
+        server.when("/pipelined/post", Method.POST).thenReturn("posted");
+        server.when("/pipelined/get", Method.GET).thenReturn("got");
+        StringBuilder requests = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            requests.append("POST /pipelined/post HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4\r\n\r\nbody");
+            requests.append("GET /pipelined/get HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        }
+
+        // All requests sent at once, so that most reads get more than one of them
+        Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        try {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(requests.toString().getBytes("UTF-8"));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            for (int i = 0; i < 200; i++) {
+                int length = -1;
+                for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        length = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                Assert.assertEquals(0 == i % 2 ? "posted" : "got", new String(body, "UTF-8"));
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testAdminPort() throws IOException {
+        MockServer split = new MockServer(SERVER_ADDRESS, 0, 0);
+        split.start();
+        try {
+            String base = "http://" + SERVER_ADDRESS + ":" + split.getListeningPort();
+            String admin = "http://" + SERVER_ADDRESS + ":" + split.getAdminPort();
+            Assert.assertTrue(split.getAdminPort() > 0);
+            Assert.assertTrue(split.getAdminPort() != split.getListeningPort());
+            HttpURLConnection con = postBody(admin + "/__expect",
+                "{\"request\":{\"method\":\"GET\",\"uri\":\"/__check\"},\"response\":{\"status\":200,\"body\":\"mocked\"}}");
+            Assert.assertEquals(200, con.getResponseCode());
+
+            // Admin paths are plain paths on the mock port, and only admin paths on the admin port
+            Assert.assertEquals("mocked", readResponseBody(makeRestCall(base + "/__check")));
+            Assert.assertEquals(404, makeRestCall(base + "/__metrics").getResponseCode());
+            Assert.assertEquals(200, makeRestCall(admin + "/__verify?uri=/__check&count=1").getResponseCode());
+            Assert.assertEquals(404, makeRestCall(admin + "/anything").getResponseCode());
+        } finally {
+            split.stop();
+        }
+    }
+
+    @Test
+    public void testGracefulStop() throws Exception {
+        final MockServer stopping = new MockServer(SERVER_ADDRESS, 0);
+        stopping.when("/stop/idle", Method.GET).thenReturn("idle");
+        stopping.when("/stop/slow", Method.GET).thenReturn("slow").withDelay(300);
+        stopping.start();
+
+        // A kept-alive connection with nothing in progress
+        Socket idle = new Socket(SERVER_ADDRESS, stopping.getListeningPort());
+        idle.setSoTimeout(5000);
+        idle.getOutputStream().write("GET /stop/idle HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("UTF-8"));
+        InputStream in = idle.getInputStream();
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            // Headers
+        }
+        Assert.assertEquals("idle", new String(readBytes(in, 4), "UTF-8"));
+
+        // A request in progress when the server is stopped
+        final String[] slow = new String[1];
+        Thread client = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    slow[0] = readResponseBody(makeRestCall("http://" + SERVER_ADDRESS + ":" + stopping.getListeningPort() + "/stop/slow"));
+                } catch (IOException ex) {
+                    slow[0] = ex.toString();
+                }
+            }
+        };
+        client.start();
+        Thread.sleep(100);
+
+        long start = System.nanoTime();
+        stopping.stop();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        client.join();
+        Assert.assertEquals("slow", slow[0]);
+        Assert.assertEquals(-1, in.read());
+        Assert.assertTrue("Stopped in " + elapsed + " ms", elapsed < 1000);
+        idle.close();
+    }
+
+    private byte[] readBytes(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        new DataInputStream(in).readFully(bytes);
+        return bytes;
+    }
+
+    private String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Value of a sample of /__metrics, -1 if it is missing
+     */
+    public long readMetric(String base, String sample) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(makeRestCall(base + "/__metrics").getInputStream()));
+        try {
+            String l;
+            while ((l = br.readLine()) != null) {
+                if (l.startsWith(sample + " ")) {
+                    return Long.parseLong(l.substring(sample.length() + 1));
+                }
+            }
+            return -1;
+        } finally {
+            br.close();
+        }
+    }
+
+    @Test
+    public void testMappedJournal() throws Exception {
+        File directory = File.createTempFile("MockServerTest", "");
+        Assert.assertTrue(directory.delete() && directory.mkdir());
+        MappedJournal journal = new MappedJournal(directory, MappedJournal.MIN_SEGMENT_SIZE, 2);
+        server.setJournal(journal);
+        try {
+            String base = "http://" + SERVER_ADDRESS + ":" + SERVER_PORT;
+            OngoingResponse response = server.when("/mapped/item", Method.POST).thenReturn(Status.CREATED);
+            long start = System.currentTimeMillis();
+            Assert.assertEquals(201, postBody(base + "/mapped/item", "first").getResponseCode());
+            Assert.assertEquals(404, makeRestCall(base + "/mapped/missing").getResponseCode());
+
+            JsonArray requests = JsonArray.readFrom(readResponseBody(makeRestCall(base + "/__requests?rule=" + response.getRuleId() + "&since=" + start)));
+            Assert.assertEquals(1, requests.size());
+            Assert.assertEquals("first", requests.get(0).asObject().get("body").asString());
+            Assert.assertEquals(0, JsonArray.readFrom(readResponseBody(makeRestCall(base + "/__requests?until=" + (start - 1)))).size());
+
+            // Rolled over segments beyond the two kept are dropped
+            char[] body = new char[60000];
+            Arrays.fill(body, 'x');
+            for (int i = 0; i < 40; i++) {
+                Assert.assertEquals(201, postBody(base + "/mapped/item", new String(body)).getResponseCode());
+            }
+            Assert.assertEquals(2, journal.getSegmentCount());
+            Assert.assertEquals(2, directory.list().length);
+
+            // Clearing a namespace drops the segments left with cleared entries only
+            server.when("/mapped/item", Method.GET).inNamespace("mapped-a").thenReturn("a");
+            Assert.assertEquals("a", readResponseBody(makeRestCall(base + "/__ns/mapped-a/mapped/item")));
+            HttpURLConnection con = (HttpURLConnection) new URL(base + "/__requests").openConnection();
+            con.setRequestMethod("DELETE");
+            Assert.assertEquals(200, con.getResponseCode());
+            Assert.assertEquals(1, journal.getSegmentCount());
+            Assert.assertEquals(1, directory.list().length);
+            Assert.assertEquals(0, JsonArray.readFrom(readResponseBody(makeRestCall(base + "/__requests"))).size());
+            Assert.assertEquals(1, JsonArray.readFrom(readResponseBody(makeRestCall(base + "/__ns/mapped-a/__requests"))).size());
+
+            // Replacing the journal closes it
+            server.setJournal(new RingJournal(RingJournal.DEFAULT_CAPACITY));
+            Assert.assertEquals(0, journal.getSegmentCount());
+            Assert.assertEquals(0, directory.list().length);
+        } finally {
+            server.setJournal(new RingJournal(RingJournal.DEFAULT_CAPACITY));
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    public HttpURLConnection postBody(String uri, String body) throws IOException {
+        return sendBody("POST", uri, body);
+    }
+
+    public HttpURLConnection sendBody(String method, String uri, String body) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(uri).openConnection();
+        con.setRequestMethod(method);
+        con.setDoOutput(true);
+        con.setDoInput(true);
+        OutputStream os = con.getOutputStream();
+        os.write(body.getBytes("UTF-8"));
+        os.close();
+        return con;
+    }
+
     public HttpURLConnection makeRestCall(String uri) throws IOException {
+        return makeRestCall(uri, null, null);
+    }
+
+    public HttpURLConnection makeRestCall(String uri, String headerName, String headerValue) throws IOException {
         URL url = new URL(uri);
         String query = "";
 
         //make connection
         HttpURLConnection con = (HttpURLConnection) url.openConnection();
-//        con.setRequestProperty("Content-Type", "application/xml");
+        if (headerName != null) {
+            con.setRequestProperty(headerName, headerValue);
+        }
         //use post mode
         con.setRequestMethod("GET");
         con.setDoOutput(true);
@@ -0,0 +1,30 @@
+package fi.iki.elonen;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+public class ResponseTest {
+
+    @Test
+    public void testDateFormat() {
+        Assert.assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", Response.formatDate(0));
+        Assert.assertEquals("Tue, 29 Feb 2000 12:34:56 GMT", Response.formatDate(951827696));
+        Assert.assertEquals("Mon, 01 Mar 2100 00:00:00 GMT", Response.formatDate(4107542400L));
+        Assert.assertEquals("Fri, 31 Dec 9999 23:59:59 GMT", Response.formatDate(253402300799L));
+
+        // As SimpleDateFormat formats them, up to the year 9999
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            long second = (random.nextLong() >>> 1) % 253402300800L;
+            Assert.assertEquals(format.format(new Date(1000 * second)), Response.formatDate(second));
+        }
+    }
+}